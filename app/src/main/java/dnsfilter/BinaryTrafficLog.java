@@ -0,0 +1,632 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+
+import util.FileLogger;
+import util.LoggerInterface;
+
+/**
+ * Compact binary format for the traffic log.
+ * Callers only copy the raw values (timestamp, client, type, class, host and answer bytes) into a record.
+ * The flusher thread of the FileLogger encodes the records with varint timestamp deltas and a per file (segment)
+ * dictionary for client addresses and host names. The text format of the traffic log is only produced when
+ * a log is rendered, e.g. for viewing or export.
+ *
+ * File format: magic "DTL1", base time (long) and a sequence of records, each starting with a tag:
+ * DICT: string added to the dictionary (next id), ENTRY: query or answer, TEXT: other log line, DROPPED: count of dropped records.
+ * Numbers are unsigned varints, timestamp deltas are zigzag encoded.
+ */
+public class BinaryTrafficLog implements LoggerInterface, FileLogger.RecordEncoder {
+
+	public static final String FILE_EXTENSION = ".dtl";
+	public static final String TEXT_HEADER = "timestamp, client:port, class, type, domain name, answer";
+
+	private static final byte[] MAGIC = new byte[] {'D', 'T', 'L', '1'};
+
+	// record tags (file format)
+	private static final int TAG_DICT = 1;
+	private static final int TAG_ENTRY = 2;
+	private static final int TAG_TEXT = 3;
+	private static final int TAG_DROPPED = 4;
+
+	// answer kinds
+	private static final int ANSWER_NONE = 0;
+	private static final int ANSWER_BYTES = 1;
+	private static final int ANSWER_STRING = 2;
+
+	// raw record kinds (in memory - written by the callers)
+	private static final byte RAW_ENTRY = 1;
+	private static final byte RAW_TEXT = 2;
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private FileLogger out;
+
+	private static ThreadLocal<byte[]> recordBuf = new ThreadLocal<byte[]>();
+
+	// encoder state - only used by the flusher thread
+	private HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+	private long lastTime;
+
+	/**
+	 * A decoded log record.
+	 */
+	public static class Record {
+		public long time;
+		public String client; // null for text records
+		public short clss;
+		public short type;
+		public String host;
+		public byte[] answerBytes;
+		public String answerString;
+		public int length;
+		public String text; // text records only
+		public long dropped; // dropped records only
+
+		public boolean isEntry() {
+			return client != null;
+		}
+
+		public boolean isAnswer() {
+			return answerBytes != null || answerString != null;
+		}
+
+		public String getAnswer() {
+			if (answerString != null)
+				return answerString;
+			if (answerBytes == null)
+				return null;
+			if ((type == 1 || type == 28) && (answerBytes.length == 4 || answerBytes.length == 16)) {
+				try {
+					return InetAddress.getByAddress(answerBytes).getHostAddress();
+				} catch (IOException e) {
+					// can not happen for raw addresses
+				}
+			}
+			return DNSResponsePatcher.getReadableStringFromBinary(answerBytes, 0, answerBytes.length);
+		}
+
+		// same format as the text traffic log (without timestamp)
+		public String toText() {
+			if (dropped > 0)
+				return "<" + dropped + " log records dropped>";
+			if (!isEntry())
+				return text;
+			if (isAnswer())
+				return client + ", " + clss + ", A-" + type + ", " + host + ", " + getAnswer() + ", /Length:" + length;
+			else
+				return client + ", " + clss + ", Q-" + type + ", " + host + ", " + "<empty>";
+		}
+	}
+
+	public BinaryTrafficLog(String logFolderPath, String name, long slotSize, int slotCount, int bufferSize, int overflowPolicy) throws IOException {
+		out = new FileLogger(logFolderPath, name, slotSize, slotCount, this, bufferSize, overflowPolicy);
+	}
+
+	/**********************************/
+	/* writer side - calling threads  */
+	/**********************************/
+
+	public void log(QueryContext ctx, short clss, short type, String host, byte[] answerBytes, String answerString, int length) {
+		byte[] b = getRecordBuffer();
+		try {
+			int pos = 0;
+			b[pos++] = RAW_ENTRY;
+			pos = putLong(b, pos, System.currentTimeMillis());
+			pos = putShort(b, pos, clss);
+			pos = putShort(b, pos, type);
+			pos = putShort(b, pos, length);
+			pos = putString(b, pos, ctx.getClientID());
+			pos = putString(b, pos, host);
+			if (answerBytes != null) {
+				b[pos++] = ANSWER_BYTES;
+				pos = putShort(b, pos, answerBytes.length);
+				System.arraycopy(answerBytes, 0, b, pos, answerBytes.length);
+				pos += answerBytes.length;
+			} else if (answerString != null) {
+				b[pos++] = ANSWER_STRING;
+				pos = putString(b, pos, answerString);
+			} else
+				b[pos++] = ANSWER_NONE;
+			out.logRecord(b, 0, pos);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// record larger than the max record length - not logged
+		}
+	}
+
+	private void logText(String txt) {
+		byte[] b = getRecordBuffer();
+		int pos = 0;
+		b[pos++] = RAW_TEXT;
+		pos = putLong(b, pos, System.currentTimeMillis());
+		try {
+			byte[] bytes = txt.getBytes("UTF-8");
+			int len = Math.min(bytes.length, b.length - pos);
+			System.arraycopy(bytes, 0, b, pos, len);
+			out.logRecord(b, 0, pos + len);
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+		}
+	}
+
+	private byte[] getRecordBuffer() {
+		byte[] b = recordBuf.get();
+		if (b == null || b.length != Math.min(out.maxRecordLength(), 4096)) {
+			b = new byte[Math.min(out.maxRecordLength(), 4096)];
+			recordBuf.set(b);
+		}
+		return b;
+	}
+
+	private static int putLong(byte[] b, int pos, long v) {
+		for (int i = 56; i >= 0; i -= 8)
+			b[pos++] = (byte) (v >> i);
+		return pos;
+	}
+
+	private static int putShort(byte[] b, int pos, int v) {
+		b[pos++] = (byte) (v >> 8);
+		b[pos++] = (byte) v;
+		return pos;
+	}
+
+	private static int putString(byte[] b, int pos, String s) {
+		int lenPos = pos;
+		pos += 2;
+		int cnt = s.length();
+		for (int i = 0; i < cnt; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				b[pos++] = (byte) c;
+			else {
+				// rare - non ascii characters
+				try {
+					byte[] rest = s.substring(i).getBytes("UTF-8");
+					System.arraycopy(rest, 0, b, pos, rest.length);
+					pos += rest.length;
+				} catch (UnsupportedEncodingException e) {
+					// UTF-8 is always supported
+				}
+				break;
+			}
+		}
+		putShort(b, lenPos, pos - lenPos - 2);
+		return pos;
+	}
+
+	@Override
+	public void logLine(String txt) {
+		logText(txt + LINE_SEPARATOR);
+	}
+
+	@Override
+	public void logException(Exception e) {
+		StringWriter str = new StringWriter();
+		e.printStackTrace(new PrintWriter(str));
+		logText(str.toString());
+	}
+
+	@Override
+	public void log(String txt) {
+		logText(txt);
+	}
+
+	@Override
+	public void message(String txt) {
+		log(txt);
+	}
+
+	@Override
+	public void closeLogger() {
+		out.closeLogger();
+	}
+
+	public long getDroppedCount() {
+		return out.getDroppedCount();
+	}
+
+	/**********************************/
+	/* encoder side - flusher thread  */
+	/**********************************/
+
+	@Override
+	public String getFileExtension() {
+		return FILE_EXTENSION;
+	}
+
+	@Override
+	public byte[] startSegment() {
+		dictionary.clear();
+		lastTime = System.currentTimeMillis();
+		byte[] header = new byte[MAGIC.length + 8];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		putLong(header, MAGIC.length, lastTime);
+		return header;
+	}
+
+	@Override
+	public int maxEncodedLength(int recordLength) {
+		// strings might be written twice (dictionary and reference), plus tags and varints
+		return 2 * recordLength + 64;
+	}
+
+	@Override
+	public void encode(ByteBuffer record, ByteBuffer buf) {
+		byte kind = record.get();
+		long time = record.getLong();
+		if (kind == RAW_TEXT) {
+			buf.put((byte) TAG_TEXT);
+			putZigZag(buf, time - lastTime);
+			putVarint(buf, record.remaining());
+			buf.put(record);
+		} else {
+			int clss = record.getShort() & 0xFFFF;
+			int type = record.getShort() & 0xFFFF;
+			int length = record.getShort() & 0xFFFF;
+			String client = getString(record);
+			int port = 0;
+			int portIdx = client.lastIndexOf(':');
+			if (portIdx != -1) {
+				try {
+					port = Integer.parseInt(client.substring(portIdx + 1)) + 1;
+					client = client.substring(0, portIdx);
+				} catch (NumberFormatException e) {
+					port = 0;
+				}
+			}
+			int clientRef = reference(client, buf);
+			int hostRef = reference(getString(record), buf);
+			int answerKind = record.get();
+			int answerRef = -1;
+			if (answerKind == ANSWER_STRING)
+				answerRef = reference(getString(record), buf);
+
+			buf.put((byte) TAG_ENTRY);
+			putZigZag(buf, time - lastTime);
+			putVarint(buf, clientRef);
+			putVarint(buf, port);
+			putVarint(buf, clss);
+			putVarint(buf, type);
+			putVarint(buf, hostRef);
+			buf.put((byte) answerKind);
+			if (answerKind == ANSWER_BYTES) {
+				int len = record.getShort() & 0xFFFF;
+				putVarint(buf, len);
+				for (int i = 0; i < len; i++)
+					buf.put(record.get());
+			} else if (answerKind == ANSWER_STRING)
+				putVarint(buf, answerRef);
+			if (answerKind != ANSWER_NONE)
+				putVarint(buf, length);
+		}
+		lastTime = time;
+	}
+
+	@Override
+	public void encodeDropped(long count, ByteBuffer buf) {
+		buf.put((byte) TAG_DROPPED);
+		putVarint(buf, count);
+	}
+
+	private static String getString(ByteBuffer record) {
+		int len = record.getShort() & 0xFFFF;
+		// ISO-8859-1 maps each byte to one char - used as dictionary key for the utf-8 bytes
+		String s = new String(record.array(), record.arrayOffset() + record.position(), len, ISO_8859_1);
+		record.position(record.position() + len);
+		return s;
+	}
+
+	// returns the dictionary id of the string - new strings are written to the dictionary first
+	private int reference(String s, ByteBuffer buf) {
+		Integer id = dictionary.get(s);
+		if (id == null) {
+			id = dictionary.size();
+			dictionary.put(s, id);
+			buf.put((byte) TAG_DICT);
+			putVarint(buf, s.length());
+			for (int i = 0; i < s.length(); i++)
+				buf.put((byte) s.charAt(i));
+		}
+		return id;
+	}
+
+	private static void putVarint(ByteBuffer buf, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	private static void putZigZag(ByteBuffer buf, long v) {
+		putVarint(buf, (v << 1) ^ (v >> 63));
+	}
+
+	/**********************************/
+	/* reader side                    */
+	/**********************************/
+
+	public static class Reader {
+
+		private ByteBuffer in;
+		private int base = 0; // file position of the start of in
+		private ArrayList<String> dictionary = new ArrayList<String>();
+		private long lastTime;
+		private int recordPos;
+
+		public Reader(File f) throws IOException {
+			this(read(f));
+		}
+
+		public Reader(ByteBuffer in) throws IOException {
+			this.in = in;
+			byte[] magic = new byte[MAGIC.length];
+			try {
+				in.get(magic);
+				lastTime = in.getLong();
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Invalid binary traffic log!");
+			}
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("Invalid binary traffic log!");
+		}
+
+		// reads the whole file into a heap buffer - log files are not mapped, as the logger truncates them on rotation
+		public static ByteBuffer read(File f) throws IOException {
+			FileInputStream fin = new FileInputStream(f);
+			try {
+				FileChannel channel = fin.getChannel();
+				return read(channel, 0, (int) channel.size());
+			} finally {
+				fin.close();
+			}
+		}
+
+		// reads up to len bytes from the given file position - less at the end of the file
+		public static ByteBuffer read(FileChannel channel, long pos, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			while (buf.hasRemaining()) {
+				int r = channel.read(buf, pos + buf.position());
+				if (r == -1)
+					break;
+			}
+			buf.flip();
+			return buf;
+		}
+
+		// returns null at the end of the log
+		public Record next() throws IOException {
+			while (in.hasRemaining()) {
+				int pos = in.position();
+				Record r = null;
+				try {
+					int tag = in.get();
+					switch (tag) {
+						case TAG_DICT:
+							dictionary.add(readString());
+							break;
+						case TAG_TEXT:
+							r = new Record();
+							r.time = lastTime + readZigZag();
+							r.text = readString();
+							break;
+						case TAG_DROPPED:
+							r = new Record();
+							r.time = lastTime;
+							r.dropped = readVarint();
+							break;
+						case TAG_ENTRY:
+							r = readEntry(lastTime + readZigZag());
+							break;
+						default:
+							throw new IOException("Invalid record tag in binary traffic log: " + tag);
+					}
+				} catch (BufferUnderflowException e) {
+					in.position(pos); // incomplete last record - might still be written
+					return null;
+				}
+				if (r != null) {
+					recordPos = base + pos;
+					lastTime = r.time;
+					return r;
+				}
+			}
+			return null;
+		}
+
+		// reads the entry at the start of buf, read from a position returned by getRecordPosition()
+		// time is not stored absolute and has to be passed
+		public Record readEntryAt(ByteBuffer buf, long time) throws IOException {
+			Reader reader = new Reader(buf, dictionary);
+			try {
+				if (buf.get() != TAG_ENTRY)
+					throw new IOException("No entry at position!");
+				reader.readZigZag();
+				return reader.readEntry(time);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated entry in binary traffic log!");
+			}
+		}
+
+		private Reader(ByteBuffer in, ArrayList<String> dictionary) {
+			this.in = in;
+			this.dictionary = dictionary;
+		}
+
+		// continues reading with the bytes appended to the file, buf starting at getPosition()
+		public void append(ByteBuffer buf) {
+			base = getPosition();
+			in = buf;
+		}
+
+		// file position of the last record returned by next()
+		public int getRecordPosition() {
+			return recordPos;
+		}
+
+		// file position after the last complete record
+		public int getPosition() {
+			return base + in.position();
+		}
+
+		public void close() {
+			// heap buffers only
+		}
+
+		private Record readEntry(long time) throws IOException {
+			try {
+				Record r = new Record();
+				r.time = time;
+				r.client = dictionary.get((int) readVarint());
+				int port = (int) readVarint();
+				if (port != 0)
+					r.client = r.client + ":" + (port - 1);
+				r.clss = (short) readVarint();
+				r.type = (short) readVarint();
+				r.host = dictionary.get((int) readVarint());
+				int answerKind = in.get();
+				if (answerKind == ANSWER_BYTES) {
+					r.answerBytes = new byte[(int) readVarint()];
+					in.get(r.answerBytes);
+				} else if (answerKind == ANSWER_STRING)
+					r.answerString = dictionary.get((int) readVarint());
+				if (answerKind != ANSWER_NONE)
+					r.length = (int) readVarint();
+				return r;
+			} catch (IndexOutOfBoundsException e) {
+				throw new IOException("Invalid dictionary reference in binary traffic log!");
+			}
+		}
+
+		private String readString() {
+			byte[] b = new byte[(int) readVarint()];
+			in.get(b);
+			return new String(b, UTF_8);
+		}
+
+		private long readVarint() {
+			long v = 0;
+			int shift = 0;
+			while (true) {
+				int b = in.get();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+				shift += 7;
+			}
+		}
+
+		private long readZigZag() {
+			long v = readVarint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+	// returns the slot files of the binary log in chronological order
+	public static File[] getLogFiles(String logFolderPath, String name) {
+		File dir = new File(logFolderPath + "/" + name);
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		ArrayList<File> result = new ArrayList<File>();
+		for (int i = 0; i < files.length; i++)
+			if (files[i].getName().startsWith(name + "_") && files[i].getName().endsWith(FILE_EXTENSION))
+				result.add(files[i]);
+		final File[] sorted = result.toArray(new File[result.size()]);
+		final HashMap<File, Long> baseTimes = new HashMap<File, Long>();
+		for (int i = 0; i < sorted.length; i++)
+			baseTimes.put(sorted[i], getBaseTime(sorted[i]));
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long diff = baseTimes.get(f1) - baseTimes.get(f2);
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		return sorted;
+	}
+
+	// base time from the file header - file modification time only has second precision on some file systems
+	private static long getBaseTime(File f) {
+		try {
+			FileInputStream fin = new FileInputStream(f);
+			try {
+				return new Reader(Reader.read(fin.getChannel(), 0, MAGIC.length + 8)).lastTime;
+			} finally {
+				fin.close();
+			}
+		} catch (IOException e) {
+			return f.lastModified();
+		}
+	}
+
+	// renders the binary log to the text format of the traffic log
+	public static void render(File[] files, Writer out) throws IOException {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+		out.write(TEXT_HEADER + "\r\n");
+		for (int i = 0; i < files.length; i++) {
+			Reader reader = new Reader(files[i]);
+			try {
+				Record r;
+				while ((r = reader.next()) != null) {
+					out.write(dateFormat.format(new Date(r.time)) + " " + r.toText());
+					if (r.text == null)
+						out.write(LINE_SEPARATOR);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		out.flush();
+	}
+
+	// export from command line: BinaryTrafficLog <log folder> <log name>
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("Usage: BinaryTrafficLog <log folder> <log name>");
+			return;
+		}
+		render(getLogFiles(args[0], args[1]), new OutputStreamWriter(System.out, "UTF-8"));
+	}
+}
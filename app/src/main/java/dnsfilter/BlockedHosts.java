@@ -29,6 +29,7 @@ import java.util.Iterator;
 import java.util.Set;
 
 import util.ExecutionEnvironment;
+import util.FlightRecorderEvents;
 import util.HugePackedSet;
 import util.LRUCache;
 import util.Logger;
@@ -247,6 +248,7 @@ public class BlockedHosts implements Set {
 	@Override
 	public boolean contains(Object object) {
 
+		FlightRecorderEvents.Event jfrEvent = FlightRecorderEvents.FILTER_LOOKUP.begin();
 		try {
 			lock(0); //shared read lock ==> block Updates of the structure
 			boolean ip = false;
@@ -258,17 +260,23 @@ public class BlockedHosts implements Set {
 			}
 			long hosthash = Utils.getLongStringHash(hostName);
 
+			boolean cached = true;
+			boolean result;
 			if (okCache.get(hosthash) != null)
-				return false;
+				result = false;
 			else if (filterListCache.get(hosthash) != null)
-				return true;
-			else if (contains(hostName, hosthash, !ip, !ip)) {
-				filterListCache.put(hosthash, NOT_NULL);
-				return true;
-			} else {
-				okCache.put(hosthash, NOT_NULL);
-				return false;
+				result = true;
+			else {
+				cached = false;
+				result = contains(hostName, hosthash, !ip, !ip);
+				if (result)
+					filterListCache.put(hosthash, NOT_NULL);
+				else
+					okCache.put(hosthash, NOT_NULL);
 			}
+			if (jfrEvent != null)
+				jfrEvent.set(0, hosthash).set(1, result).set(2, cached).commit();
+			return result;
 		} finally {
 			unLock(0);
 		}
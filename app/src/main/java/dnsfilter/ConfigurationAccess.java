@@ -102,4 +102,22 @@ public abstract class ConfigurationAccess {
 
     abstract public void releaseWakeLock() throws IOException;
 
+    // traffic log entries matching the filters (null for any) - see TrafficLogIndex.find
+    abstract public String[] queryTrafficLog(String domain, String client, long from, long to, int limit) throws IOException;
+
+    // query counts per verdict and type in minute, hour or day buckets - see QueryStatistics.getBuckets
+    abstract public long[][] getQueryStatistics(int resolution, long from, long to) throws IOException;
+
+    // top n filtered or allowed domains of the last hours (max 24) - see TopDomains.getTop
+    abstract public String[] getTopDomains(boolean filtered, int hours, int n) throws IOException;
+
+    // top n domains or clients by number of queries - see TrafficLogIndex.top
+    abstract public String[] topTrafficLog(int groupBy, String domain, String client, long from, long to, int n) throws IOException;
+
+    // current counters, gauges and latency histograms, one line per metric - see util.Metrics
+    abstract public String[] getMetrics() throws IOException;
+
+    // retained per query traces, only the slow ones in case slowOnly is true - see QueryTrace.dump
+    abstract public String[] getQueryTraces(boolean slowOnly) throws IOException;
+
 }
@@ -0,0 +1,214 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.Properties;
+
+import util.ExecutionEnvironment;
+import util.Logger;
+
+/**
+ * Keeps warm connections to the current DNS server in case it is connection based (TCP, DoT, DoH).
+ * After a network change or DNS server switch the configured number of connections is opened right away,
+ * so that user queries do not need to wait for TCP and TLS setup. While DNS requests are performed,
+ * the pooled connections are kept alive with small queries sent before the pool timeout expires.
+ * Background queries are limited by an hourly budget and stop when the device is idle.
+ */
+public class ConnectionPrewarmer implements Runnable {
+
+	private static ConnectionPrewarmer INSTANCE = new ConnectionPrewarmer();
+
+	private boolean enabled = false;
+	private int connections = 1;
+	private long keepAliveInterval = 25000; // below the pool timeout of 30s - see DNSServer.init
+	private long idleLimit = 300000;
+	private int budget = 240; // per hour
+
+	private Thread thread = null;
+	private boolean triggered = false;
+	private volatile long lastActivity = 0;
+	private DNSServer lastWarmed = null;
+	private long budgetStart = 0;
+	private int budgetUsed = 0;
+	private long prewarmCnt = 0;
+	private long keepAliveCnt = 0;
+
+	public static ConnectionPrewarmer getInstance() {
+		return INSTANCE;
+	}
+
+	public void init(Properties config) throws IOException {
+		try {
+			int connections = Integer.parseInt(config.getProperty("dnsPrewarmConnections", "1").trim());
+			int interval = Integer.parseInt(config.getProperty("dnsKeepAliveInterval", "25").trim());
+			int idleLimit = Integer.parseInt(config.getProperty("dnsKeepAliveIdleLimit", "300").trim());
+			int budget = Integer.parseInt(config.getProperty("dnsKeepAliveBudget", "240").trim());
+
+			synchronized (this) {
+				this.connections = connections;
+				this.keepAliveInterval = Math.max(interval, 1) * 1000L;
+				this.idleLimit = idleLimit * 1000L;
+				this.budget = budget;
+				this.enabled = connections > 0;
+				if (enabled && thread == null) {
+					thread = new Thread(this, "ConnectionPrewarmer");
+					thread.setDaemon(true);
+					thread.start();
+				}
+				notifyAll();
+			}
+		} catch (NumberFormatException nfe) {
+			Logger.getLogger().logLine("Cannot parse connection prewarm configuration!");
+			throw new IOException(nfe);
+		}
+	}
+
+	public synchronized void stop() {
+		enabled = false;
+		thread = null;
+		notifyAll();
+	}
+
+	// called after network change or DNS server switch
+	public synchronized void trigger() {
+		if (!enabled)
+			return;
+		triggered = true;
+		lastWarmed = null;
+		notifyAll();
+	}
+
+	// called for each upstream DNS request
+	public void requestPerformed() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			boolean prewarm;
+			synchronized (this) {
+				if (thread != Thread.currentThread())
+					return; // stopped
+				if (!triggered) {
+					try {
+						wait(keepAliveInterval);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				if (thread != Thread.currentThread())
+					return;
+				prewarm = triggered;
+				triggered = false;
+			}
+			try {
+				warmUp(prewarm);
+			} catch (Exception e) {
+				Logger.getLogger().logException(e);
+			}
+		}
+	}
+
+	private void warmUp(boolean prewarm) throws IOException {
+		if (!ExecutionEnvironment.getEnvironment().hasNetwork())
+			return;
+		if (!DNSCommunicator.getInstance().hasDNSServers())
+			return; // not yet configured - nothing to keep alive
+
+		DNSServer server = DNSCommunicator.getInstance().getCurrentDNS();
+		if (!server.isConnectionPooled())
+			return;
+
+		boolean newServer = server != lastWarmed;
+		long now = System.currentTimeMillis();
+
+		// keep alive only while the device is used
+		if (!prewarm && !newServer && now - lastActivity > idleLimit)
+			return;
+
+		if (!takeBudget(connections, now)) {
+			if (ExecutionEnvironment.getEnvironment().debug())
+				Logger.getLogger().logLine("Connection keep alive budget exceeded!");
+			return;
+		}
+		lastWarmed = server;
+
+		// parallel requests in order to get the configured number of connections into the pool
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new KeepAliveRequest(server));
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+		synchronized (this) {
+			if (prewarm || newServer)
+				prewarmCnt++;
+			else
+				keepAliveCnt++;
+		}
+	}
+
+	private synchronized boolean takeBudget(int cnt, long now) {
+		if (now - budgetStart > 3600000) {
+			budgetStart = now;
+			budgetUsed = 0;
+		}
+		if (budgetUsed + cnt > budget)
+			return false;
+		budgetUsed += cnt;
+		return true;
+	}
+
+	public synchronized String getStats() {
+		return "prewarm=" + prewarmCnt + ", keepalive=" + keepAliveCnt + ", budgetUsed=" + budgetUsed + "/" + budget;
+	}
+
+	private static class KeepAliveRequest implements Runnable {
+
+		private DNSServer server;
+
+		KeepAliveRequest(DNSServer server) {
+			this.server = server;
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] buf = new byte[DNSServer.getBufSize()];
+				server.resolve(DNSServer.getKeepAliveRequest(), new DatagramPacket(buf, 0, buf.length));
+			} catch (IOException e) {
+				if (ExecutionEnvironment.getEnvironment().debug())
+					Logger.getLogger().logLine("Connection prewarm failed for " + server + ": " + e.getMessage());
+			}
+		}
+	}
+}
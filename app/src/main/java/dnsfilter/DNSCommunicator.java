@@ -29,12 +29,18 @@ import java.net.DatagramPacket;
 import java.util.Date;
 
 import util.ExecutionEnvironment;
+import util.FlightRecorderEvents;
+import util.Log;
 import util.Logger;
+import util.Metrics;
 import util.Utils;
+import util.conpool.Connection;
 
 public class DNSCommunicator {
 
 	private static DNSCommunicator INSTANCE = new DNSCommunicator();
+	private static final Metrics.Counter UPSTREAM_ERRORS = Metrics.counter("upstream.errors");
+	private static final Log.Category LOG = Log.category("upstream");
 
 	private static int TIMEOUT = 12000;
 	DNSServer[] dnsServers = new DNSServer[0];
@@ -156,7 +162,13 @@ public class DNSCommunicator {
 
 								synchronized (monitor) {
 									//Logger.getLogger().logLine(dnsServer+": "+result+"ms");
-									writeDNSPerfInfo(dnsServer+": "+result+"ms\r\n");
+									String rttInfo = dnsServer.getRTTInfo();
+									String tlsInfo = dnsServer.getTLSInfo();
+									if (!tlsInfo.equals(""))
+										rttInfo = rttInfo.equals("") ? tlsInfo : rttInfo + ", " + tlsInfo;
+									if (!rttInfo.equals(""))
+										rttInfo = " ("+rttInfo+")";
+									writeDNSPerfInfo(dnsServer+": "+result+"ms"+rttInfo+"\r\n");
 
 									if (!fastestFound) {
 										if (acceptCurrent || dnsIdx != curDNSCopy[0]) {
@@ -207,6 +219,7 @@ public class DNSCommunicator {
 							if (curDNS != -1) {
 								Logger.getLogger().logLine("Selected DNS: (" + dnsServersCopy[curDNS].lastPerformance + "ms) " + dnsServersCopy[curDNS]);
 								lastDNS = dnsServers[curDNS].toString();
+								ConnectionPrewarmer.getInstance().trigger();
 							}
 						}
 					}
@@ -224,6 +237,7 @@ public class DNSCommunicator {
 
 					if (dnsPerfOut[0] != null) {
 						try {
+							dnsPerfOut[0].write(("\r\n#Connection pool: " + Connection.getPoolStats() + ", " + ConnectionPrewarmer.getInstance().getStats()).getBytes());
 							dnsPerfOut[0].write(("\r\n#Terminated: " + new Date() + "\r\n\r\n").getBytes());
 							dnsPerfOut[0].flush();
 							dnsPerfOut[0].close();
@@ -253,11 +267,14 @@ public class DNSCommunicator {
 		if (current == getCurrentDNS()) {  //might have been switched by other thread already
 			//curDNS = (curDNS + 1) % dnsServers.length;
 			setFastestDNSFromServers(false);
-			if (ExecutionEnvironment.getEnvironment().debug())
-				Logger.getLogger().logLine("Switched DNS server to:" + getCurrentDNS().getAddress().getHostAddress());
+			LOG.debug("Switched DNS server to:{}").arg(getCurrentDNS().getAddress().getHostAddress()).log();
 		}
 	}
 
+	public synchronized boolean hasDNSServers() {
+		return dnsServers.length > 0;
+	}
+
 	public synchronized DNSServer getCurrentDNS() throws IOException {
 		if (dnsServers.length == 0)
 			throw new IOException("No DNS server initialized!");
@@ -274,11 +291,23 @@ public class DNSCommunicator {
 	public void requestDNS(DatagramPacket request, DatagramPacket response) throws IOException {
 
 		DNSServer dns = getCurrentDNS();
+		ConnectionPrewarmer.getInstance().requestPerformed();
+		QueryTrace trace = QueryTrace.current();
+		if (trace != null)
+			trace.event(QueryTrace.SERVER, dns.toString());
 
+		FlightRecorderEvents.Event jfrEvent = FlightRecorderEvents.UPSTREAM_RESOLVE.begin();
+		long start = System.nanoTime();
 		try {
 			//DNSServer.getInstance().createDNSServer(DNSServer.UDP,dns,53,TIMEOUT, null).resolve(request, response);
 			dns.resolve(request, response);
+			dns.getLatencyHistogram().recordSince(start);
+			if (jfrEvent != null)
+				jfrEvent.set(0, dns.toString()).set(1, "ok").set(2, response.getLength()).commit();
 		} catch (IOException eio) {
+			UPSTREAM_ERRORS.increment();
+			if (jfrEvent != null)
+				jfrEvent.set(0, dns.toString()).set(1, eio.toString()).commit();
 			if (ExecutionEnvironment.getEnvironment().hasNetwork())
 				switchDNSServer(dns);
 			//Logger.getLogger().logException(eio);
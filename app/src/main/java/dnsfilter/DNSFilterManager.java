@@ -60,8 +60,11 @@ import dnsfilter.android.AndroidEnvironment;
 import dnsfilter.android.DomCustosAPI;
 import util.ExecutionEnvironment;
 import util.FileLogger;
+import util.FlightRecorderEvents;
+import util.Log;
 import util.Logger;
 import util.LoggerInterface;
+import util.Metrics;
 import util.PatternSequence;
 import util.Utils;
 import util.conpool.TLSSocketFactory;
@@ -1252,6 +1255,49 @@ public class DNSFilterManager extends ConfigurationAccess  {
 		ExecutionEnvironment.getEnvironment().releaseWakeLock();
 	}
 
+	@Override
+	public String[] queryTrafficLog(String domain, String client, long from, long to, int limit) throws IOException {
+		return getTrafficLogIndex().find(domain, client, from, to, limit);
+	}
+
+	@Override
+	public String[] topTrafficLog(int groupBy, String domain, String client, long from, long to, int n) throws IOException {
+		try {
+			return getTrafficLogIndex().top(groupBy, domain, client, from, to, n);
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationAccessException(e.getMessage());
+		}
+	}
+
+	@Override
+	public long[][] getQueryStatistics(int resolution, long from, long to) throws IOException {
+		if (resolution < QueryStatistics.MINUTES || resolution > QueryStatistics.DAYS)
+			throw new ConfigurationAccessException("Invalid resolution: " + resolution);
+		return QueryStatistics.getInstance().getBuckets(resolution, from, to);
+	}
+
+	@Override
+	public String[] getTopDomains(boolean filtered, int hours, int n) {
+		return TopDomains.format(TopDomains.getInstance().getTop(filtered, hours), n);
+	}
+
+	@Override
+	public String[] getMetrics() {
+		String snapshot = Metrics.snapshot();
+		if (snapshot.length() == 0)
+			return new String[0];
+		return snapshot.split("\n");
+	}
+
+	@Override
+	public String[] getQueryTraces(boolean slowOnly) {
+		return QueryTrace.dump(slowOnly);
+	}
+
+	private TrafficLogIndex getTrafficLogIndex() throws IOException {
+		return TrafficLogIndex.getInstance(getPath() + "log", getConfig().getProperty("trafficLogName", "trafficlog"));
+	}
+
 	public void switchBlockingActive() throws IOException {
 		Properties config = getConfig();
 		boolean active = !Boolean.parseBoolean(config.getProperty("filterActive", "true"));
@@ -1542,6 +1588,9 @@ public class DNSFilterManager extends ConfigurationAccess  {
 
 	private void rebuildIndex() throws IOException {
 		synchronized (INSTANCE) {
+			FlightRecorderEvents.Event jfrEvent = FlightRecorderEvents.INDEX_REBUILD.begin();
+			int indexedEntries = 0;
+			boolean completed = false;
 			try {
 				updatingFilter = true;
 
@@ -1664,6 +1713,7 @@ public class DNSFilterManager extends ConfigurationAccess  {
 					}
 				}
 				ffileCount = uniqueEntries;
+				indexedEntries = uniqueEntries;
 				Logger.getLogger().message("Building index for " + processed + "/" + size + " entries completed!");
 				fin.close();
 				if (aborted) {
@@ -1712,10 +1762,13 @@ public class DNSFilterManager extends ConfigurationAccess  {
 				}
 				setIndexOutdated(false);
 				validIndex = true;
+				completed = true;
 				Logger.getLogger().logLine("Processing new filter file completed!");
 			} finally {
 				updatingFilter = false;
 				INSTANCE.notifyAll();
+				if (jfrEvent != null)
+					jfrEvent.set(0, indexedEntries).set(1, completed).commit();
 			}
 		}
 	}
@@ -2049,6 +2102,21 @@ public class DNSFilterManager extends ConfigurationAccess  {
             }
 
 			DNSServer.init();
+			DNSResponseCache.getInstance().init(config);
+			ConnectionPrewarmer.getInstance().init(config);
+			QueryStatistics.getInstance().load();
+
+			int metricsDumpInterval = Integer.parseInt(config.getProperty("metricsDumpInterval", "0"));
+			if (metricsDumpInterval > 0)
+				Metrics.startDump(new File(getPath() + "metrics.info"), metricsDumpInterval * 1000L);
+			else
+				Metrics.stopDump();
+
+			Log.configure(config);
+
+			QueryTrace.configure(Integer.parseInt(config.getProperty("traceSampleRate", "100")),
+					Integer.parseInt(config.getProperty("traceSlowThreshold", "1000")),
+					Integer.parseInt(config.getProperty("traceBufferSize", "64")));
 
 			serverStopped = false;
 
@@ -2079,19 +2147,30 @@ public class DNSFilterManager extends ConfigurationAccess  {
 			//Init traffic Logger
 			try {
 
-				if (config.getProperty("enableTrafficLog", "true").equalsIgnoreCase("true")) {
+				if (config.getProperty("enableTrafficLog", "true").equalsIgnoreCase("true") && config.getProperty("trafficLogFormat", "text").trim().equalsIgnoreCase("binary")) {
+					TRAFFIC_LOG = new BinaryTrafficLog(getPath() + "log",
+							config.getProperty("trafficLogName", "trafficlog"),
+							Integer.parseInt(config.getProperty("trafficLogSize", "1048576").trim()),
+							Integer.parseInt(config.getProperty("trafficLogSlotCount", "2").trim()),
+							Integer.parseInt(config.getProperty("trafficLogBufferSize", "262144").trim()),
+							FileLogger.parseOverflowPolicy(config.getProperty("trafficLogOverflowPolicy", "count")));
+
+					Logger.setLogger(TRAFFIC_LOG, "TrafficLogger");
+				} else if (config.getProperty("enableTrafficLog", "true").equalsIgnoreCase("true")) {
 					TRAFFIC_LOG = new FileLogger(getPath() + "log",
 							config.getProperty("trafficLogName", "trafficlog"),
 							Integer.parseInt(config.getProperty("trafficLogSize", "1048576").trim()),
 							Integer.parseInt(config.getProperty("trafficLogSlotCount", "2").trim()),
-							"timestamp, client:port, class, type, domain name, answer");
+							"timestamp, client:port, class, type, domain name, answer",
+							Integer.parseInt(config.getProperty("trafficLogBufferSize", "262144").trim()),
+							FileLogger.parseOverflowPolicy(config.getProperty("trafficLogOverflowPolicy", "count")));
 
 					((FileLogger) TRAFFIC_LOG).enableTimestamp(true);
 
 					Logger.setLogger(TRAFFIC_LOG, "TrafficLogger");
 				} else TRAFFIC_LOG = null;
 
-			} catch (NumberFormatException nfe) {
+			} catch (IllegalArgumentException nfe) {
 				Logger.getLogger().logLine("Cannot parse log configuration!");
 				throw new IOException(nfe);
 			}
@@ -2194,6 +2273,10 @@ public class DNSFilterManager extends ConfigurationAccess  {
 				hostFilter.clear();
 
 			DNSResponsePatcher.init(null, null);
+			DNSResponseCache.getInstance().saveSnapshot();
+			ConnectionPrewarmer.getInstance().stop();
+			QueryStatistics.getInstance().save();
+			Metrics.stopDump();
 
 			if (TRAFFIC_LOG != null) {
 				TRAFFIC_LOG.closeLogger();
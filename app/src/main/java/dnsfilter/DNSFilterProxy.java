@@ -28,10 +28,12 @@ import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
 
 import util.ExecutionEnvironment;
+import util.FlightRecorderEvents;
 import util.GroupedLogger;
 import util.Logger;
 import util.LoggerInterface;
@@ -40,6 +42,8 @@ import util.SuppressRepeatingsLogger;
 public class DNSFilterProxy implements Runnable {
 
 	DatagramSocket receiver;
+	DNSProxyEventLoop eventLoop;
+	DNSProxyTCPListener tcpListener;
 	boolean stopped = false;
 	int port = 53;
 
@@ -136,6 +140,7 @@ public class DNSFilterProxy implements Runnable {
 		SuppressRepeatingsLogger myLogger = new SuppressRepeatingsLogger(new StandaloneLogger());
 		Logger.setLogger(new GroupedLogger(new LoggerInterface[] {myLogger}));
 		ExecutionEnvironment.setEnvironment(new StandaloneEnvironment());
+		FlightRecorderEvents.init(); // custom JFR events, only in case the JVM supports them
 		DNSFilterManager filtermgr = DNSFilterManager.getInstance();
 		filtermgr.init();
 
@@ -180,15 +185,38 @@ public class DNSFilterProxy implements Runnable {
 		int max_resolvers;
 		boolean onlyLocal;
 		boolean androidRootMode;
+		boolean eventLoopMode;
+		int eventLoopWorkers;
+		int eventLoopChannels;
+		boolean tcpEnabled;
+		int tcpIdleTimeout;
+		int tcpMaxConnections;
 		try {
 			max_resolvers  = Integer.parseInt(DNSFilterManager.getInstance().getConfig().getProperty("maxResolverCount", "100"));
 			onlyLocal = Boolean.parseBoolean(DNSFilterManager.getInstance().getConfig().getProperty("dnsProxyOnlyLocalRequests", "true"));
 			androidRootMode = Boolean.parseBoolean(DNSFilterManager.getInstance().getConfig().getProperty("rootModeOnAndroid", "false"));
+			eventLoopMode = Boolean.parseBoolean(DNSFilterManager.getInstance().getConfig().getProperty("dnsProxyEventLoopMode", "false"));
+			eventLoopWorkers = Integer.parseInt(DNSFilterManager.getInstance().getConfig().getProperty("dnsProxyEventLoopWorkers", "32"));
+			eventLoopChannels = Integer.parseInt(DNSFilterManager.getInstance().getConfig().getProperty("dnsProxyEventLoopChannels", "1"));
+			tcpEnabled = Boolean.parseBoolean(DNSFilterManager.getInstance().getConfig().getProperty("dnsProxyTCP", "false"));
+			tcpIdleTimeout = Integer.parseInt(DNSFilterManager.getInstance().getConfig().getProperty("dnsProxyTCPIdleTimeout", "10000"));
+			tcpMaxConnections = Integer.parseInt(DNSFilterManager.getInstance().getConfig().getProperty("dnsProxyTCPMaxConnections", "100"));
 		} catch (Exception e) {
 			Logger.getLogger().logLine("Exception:Cannot get configuration!");
 			Logger.getLogger().logException(e);
 			return;
 		}
+
+		// TCP listener is only supported for non Android
+		if (tcpEnabled && ExecutionEnvironment.getEnvironment().getEnvironmentID() == 0)
+			startTCPListener(onlyLocal, tcpIdleTimeout, tcpMaxConnections, max_resolvers);
+
+		// event loop mode is only supported for non Android
+		if (eventLoopMode && ExecutionEnvironment.getEnvironment().getEnvironmentID() == 0) {
+			runEventLoop(onlyLocal, Math.max(eventLoopChannels, 1), Math.max(eventLoopWorkers, 1), max_resolvers);
+			return;
+		}
+
 		try {
 			if (onlyLocal && (ExecutionEnvironment.getEnvironment().getEnvironmentID() == 0 || androidRootMode))
 				//currently only possible for non Android - see below!
@@ -234,9 +262,54 @@ public class DNSFilterProxy implements Runnable {
 		Logger.getLogger().logLine("DNSFilterProxy stopped!");
 	}
 
+	private void startTCPListener(boolean onlyLocal, int idleTimeout, int maxConnections, int max_resolvers) {
+		try {
+			synchronized (this) {
+				if (stopped)
+					return;
+				tcpListener = new DNSProxyTCPListener(port, onlyLocal, idleTimeout, maxConnections, max_resolvers);
+			}
+			new Thread(tcpListener).start();
+			Logger.getLogger().logLine("DNSFilterProxy listening on TCP port " + port + "!");
+		} catch (IOException eio) {
+			Logger.getLogger().logLine("Exception:Cannot open DNS TCP port " + port + "!" + eio.getMessage());
+		}
+	}
+
+	private void runEventLoop(boolean onlyLocal, int channels, int workers, int max_resolvers) {
+		try {
+			InetSocketAddress bindAdr;
+			if (onlyLocal)
+				bindAdr = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+			else
+				bindAdr = new InetSocketAddress(port);
+
+			synchronized (this) {
+				if (stopped)
+					return;
+				eventLoop = new DNSProxyEventLoop(bindAdr, channels, workers, max_resolvers);
+			}
+		} catch (IOException eio) {
+			Logger.getLogger().logLine("Exception:Cannot open DNS port " + port + "!" + eio.getMessage());
+			return;
+		}
+		Logger.getLogger().logLine("DNSFilterProxy running on port " + port + " in event loop mode!");
+		eventLoop.start();
+		try {
+			eventLoop.join();
+		} catch (InterruptedException e) {
+			eventLoop.stop();
+		}
+		Logger.getLogger().logLine("DNSFilterProxy stopped!");
+	}
+
 
 	public synchronized void stop() {
 		stopped = true;
+		if (tcpListener != null)
+			tcpListener.stop();
+		if (eventLoop != null)
+			eventLoop.stop();
 		if (receiver == null)
 			return;
 		receiver.close();
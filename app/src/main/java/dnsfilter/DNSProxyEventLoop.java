@@ -0,0 +1,286 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import util.ExecutionEnvironment;
+import util.Logger;
+
+/**
+ * Selector based receiver for the non Android DNSFilterProxy.
+ * Requests are received via non blocking channels, locally mapped requests are answered directly on the event loop,
+ * all others (including filtered ones, which are reported to the API) are dispatched to a fixed set of worker threads.
+ * Optionally multiple channels are bound to the same port via SO_REUSEPORT, each served by its own loop thread.
+ */
+public class DNSProxyEventLoop {
+
+	private static final int BUF_POOL_SIZE = 256;
+
+	private static class Job {
+		DNSResolver resolver;
+		byte[] buf;
+
+		Job(DNSResolver resolver, byte[] buf) {
+			this.resolver = resolver;
+			this.buf = buf;
+		}
+	}
+
+	private DatagramChannel[] channels;
+	private Selector[] selectors;
+	private Thread[] loops;
+	private Thread[] workers;
+	private BlockingQueue<Job> jobs;
+	private volatile boolean stopped = false;
+
+	private byte[][] bufPool = new byte[BUF_POOL_SIZE][];
+	private int bufPoolCnt = 0;
+
+	public DNSProxyEventLoop(InetSocketAddress bindAdr, int channelCnt, int workerCnt, int maxQueued) throws IOException {
+
+		if (channelCnt > 1 && !isReusePortSupported()) {
+			Logger.getLogger().logLine("SO_REUSEPORT not supported - using single channel!");
+			channelCnt = 1;
+		}
+
+		channels = new DatagramChannel[channelCnt];
+		selectors = new Selector[channelCnt];
+		try {
+			for (int i = 0; i < channelCnt; i++) {
+				channels[i] = DatagramChannel.open();
+				if (channelCnt > 1)
+					setReusePort(channels[i]);
+				channels[i].socket().bind(bindAdr);
+				channels[i].configureBlocking(false);
+				ExecutionEnvironment.getEnvironment().protectSocket(channels[i].socket(), 1);
+				selectors[i] = Selector.open();
+				channels[i].register(selectors[i], SelectionKey.OP_READ);
+			}
+		} catch (IOException eio) {
+			closeAll();
+			throw eio;
+		}
+		jobs = new ArrayBlockingQueue<Job>(Math.max(maxQueued, 1));
+		loops = new Thread[channelCnt];
+		workers = new Thread[workerCnt];
+	}
+
+	public void start() {
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "DNSProxyWorker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		for (int i = 0; i < loops.length; i++) {
+			final int idx = i;
+			loops[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loop(channels[idx], selectors[idx]);
+				}
+			}, "DNSProxyEventLoop-" + i);
+			loops[i].start();
+		}
+	}
+
+	public void join() throws InterruptedException {
+		for (int i = 0; i < loops.length; i++)
+			loops[i].join();
+	}
+
+	public synchronized void stop() {
+		stopped = true;
+		for (int i = 0; i < channels.length; i++) {
+			try {
+				channels[i].close();
+			} catch (IOException e) {
+				Logger.getLogger().logException(e);
+			}
+			selectors[i].wakeup(); // loop thread closes its selector when done
+		}
+		for (int i = 0; i < workers.length; i++)
+			if (workers[i] != null)
+				workers[i].interrupt();
+		jobs.clear();
+	}
+
+	private void closeAll() {
+		for (int i = 0; i < channels.length; i++) {
+			try {
+				if (selectors[i] != null)
+					selectors[i].close();
+				if (channels[i] != null)
+					channels[i].close();
+			} catch (IOException e) {
+				Logger.getLogger().logException(e);
+			}
+		}
+	}
+
+	private void loop(DatagramChannel channel, Selector selector) {
+		ByteBuffer rcvBuf = ByteBuffer.allocateDirect(DNSServer.getBufSize());
+
+		while (!stopped) {
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+
+				// drain all pending requests
+				while (!stopped) {
+					if (rcvBuf.capacity() < DNSServer.getBufSize())
+						rcvBuf = ByteBuffer.allocateDirect(DNSServer.getBufSize());
+					rcvBuf.clear();
+					SocketAddress source = channel.receive(rcvBuf);
+					if (source == null)
+						break;
+					rcvBuf.flip();
+					handleRequest(channel, rcvBuf, source);
+				}
+			} catch (IOException e) {
+				if (!stopped)
+					Logger.getLogger().logLine("Exception:" + e.getMessage());
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Logger.getLogger().logException(e);
+		}
+	}
+
+	private void handleRequest(DatagramChannel channel, ByteBuffer rcvBuf, SocketAddress source) {
+		// the resolver pipeline works on arrays - copy into a pooled one which is reused for the response
+		byte[] buf = obtainBuffer();
+		int len = rcvBuf.remaining();
+		rcvBuf.get(buf, 0, len);
+		DatagramPacket request = new DatagramPacket(buf, 0, len);
+		request.setSocketAddress(source);
+
+		DNSResolver resolver = new DNSResolver(request, channel);
+		try {
+			if (resolver.resolveInline()) {
+				releaseBuffer(buf);
+				return;
+			}
+		} catch (IOException e) {
+			if (ExecutionEnvironment.getEnvironment().debug())
+				Logger.getLogger().logLine("Exception:" + e.getMessage());
+			releaseBuffer(buf);
+			return;
+		} catch (RuntimeException e) {
+			// a single bad request must not kill the loop thread serving all clients
+			Logger.getLogger().logException(e);
+			releaseBuffer(buf);
+			return;
+		}
+
+		if (!jobs.offer(new Job(resolver, buf))) {
+			Logger.getLogger().message("Max resolver count reached: " + jobs.size());
+			releaseBuffer(buf);
+		}
+	}
+
+	private void work() {
+		while (!stopped) {
+			Job job;
+			try {
+				job = jobs.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				job.resolver.run();
+			} finally {
+				releaseBuffer(job.buf);
+			}
+		}
+	}
+
+	private byte[] obtainBuffer() {
+		int size = DNSServer.getBufSize();
+		synchronized (bufPool) {
+			while (bufPoolCnt > 0) {
+				byte[] buf = bufPool[--bufPoolCnt];
+				bufPool[bufPoolCnt] = null;
+				if (buf.length >= size)
+					return buf;
+				// buffer size was increased in between - drop the smaller one
+			}
+		}
+		return new byte[size];
+	}
+
+	private void releaseBuffer(byte[] buf) {
+		synchronized (bufPool) {
+			if (bufPoolCnt < BUF_POOL_SIZE)
+				bufPool[bufPoolCnt++] = buf;
+		}
+	}
+
+	// SO_REUSEPORT is not available on all platforms and Java versions (e.g. Android) - accessed via reflection
+
+	private static Object getReusePortOption() throws Exception {
+		return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+	}
+
+	private static boolean isReusePortSupported() {
+		try {
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				Object supported = DatagramChannel.class.getMethod("supportedOptions").invoke(channel);
+				return ((java.util.Set) supported).contains(getReusePortOption());
+			} finally {
+				channel.close();
+			}
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static void setReusePort(DatagramChannel channel) throws IOException {
+		try {
+			Class<?> optionClass = Class.forName("java.net.SocketOption");
+			DatagramChannel.class.getMethod("setOption", optionClass, Object.class).invoke(channel, getReusePortOption(), Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			throw new IOException("Cannot set SO_REUSEPORT!", e.getCause());
+		} catch (Exception e) {
+			throw new IOException("Cannot set SO_REUSEPORT!", e);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+import util.ExecutionEnvironment;
+import util.Logger;
+import util.TimeoutListener;
+import util.TimoutNotificator;
+
+/**
+ * TCP listener for the DNSFilterProxy (RFC 7766).
+ * Each connection supports pipelining - queries are read as soon as they arrive and resolved in parallel
+ * via the common resolver pipeline, responses are written in the order they complete.
+ * Idle connections are closed after the configured timeout, the number of connections is limited.
+ * Connections of clients not reading their responses within the same timeout are closed as well, so the
+ * resolver threads writing to them are released.
+ */
+public class DNSProxyTCPListener implements Runnable {
+
+	// max number of queries in progress per connection - further reads wait until responses are sent
+	private static final int MAX_PENDING_PER_CONNECTION = 32;
+
+	private ServerSocket server;
+	private volatile boolean stopped = false;
+	private int idleTimeout;
+	private int maxConnections;
+	private int maxResolvers;
+	private boolean onlyLocal;
+	private HashSet<ClientConnection> connections = new HashSet<ClientConnection>();
+	private static TimoutNotificator writeTimeouts = TimoutNotificator.getNewInstance();
+
+	public class ClientConnection implements Runnable, TimeoutListener {
+
+		private Socket socket;
+		private DataInputStream in;
+		private OutputStream out;
+		private int pending = 0;
+		private boolean readDone = false;
+		private boolean closed = false;
+		private volatile long writeDeadline = 0;
+
+		private ClientConnection(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new DataInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+		}
+
+		// called by the resolver threads - responses are written in the order they complete
+		public void sendResponse(byte[] data, int offs, int length) throws IOException {
+			byte[] msg = new byte[length + 2];
+			msg[0] = (byte) (length >> 8);
+			msg[1] = (byte) length;
+			System.arraycopy(data, offs, msg, 2, length);
+			synchronized (out) {
+				// a client not reading would block the write forever - closing the socket releases it
+				writeDeadline = System.currentTimeMillis() + idleTimeout;
+				writeTimeouts.register(this);
+				try {
+					out.write(msg);
+					out.flush();
+				} finally {
+					writeTimeouts.unregister(this);
+				}
+			}
+		}
+
+		@Override
+		public void timeoutNotification() {
+			Logger.getLogger().logLine("TCP client " + socket.getRemoteSocketAddress() + " does not read responses - closing connection!");
+			close();
+		}
+
+		@Override
+		public long getTimoutTime() {
+			return writeDeadline;
+		}
+
+		private synchronized void queryStarted() throws InterruptedException {
+			while (pending >= MAX_PENDING_PER_CONNECTION && !closed)
+				wait();
+			pending++;
+		}
+
+		private synchronized void queryDone() {
+			pending--;
+			notifyAll();
+			if (readDone && pending == 0)
+				close();
+		}
+
+		private synchronized boolean hasPending() {
+			return pending > 0;
+		}
+
+		private synchronized void readDone() {
+			readDone = true;
+			if (pending == 0)
+				close();
+		}
+
+		private void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				notifyAll();
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			synchronized (connections) {
+				connections.remove(this);
+			}
+		}
+
+		// returns the first byte of the next length prefix, or -1 in case of EOF or idle timeout
+		private int readFirstByte() throws IOException {
+			while (true) {
+				try {
+					return in.read();
+				} catch (SocketTimeoutException e) {
+					if (!hasPending())
+						return -1; // idle
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stopped) {
+					int b = readFirstByte();
+					if (b == -1)
+						break;
+
+					int length = (b << 8) + in.readUnsignedByte();
+					byte[] buf = new byte[Math.max(length, DNSServer.getBufSize())];
+					in.readFully(buf, 0, length);
+
+					DatagramPacket request = new DatagramPacket(buf, 0, length);
+					request.setSocketAddress(socket.getRemoteSocketAddress());
+
+					if (DNSResolver.getResolverCount() > maxResolvers) {
+						Logger.getLogger().message("Max resolver count reached: " + maxResolvers);
+						// answer right away - a pipelining client would wait for its timeout otherwise
+						int len = servFail(buf, length);
+						if (len == -1)
+							break; // invalid request - close the connection
+						sendResponse(buf, 0, len);
+						continue;
+					}
+
+					queryStarted();
+					final DNSResolver resolver = new DNSResolver(request, this);
+					new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								resolver.run();
+							} finally {
+								queryDone();
+							}
+						}
+					}).start();
+				}
+			} catch (EOFException e) {
+				// client closed connection within a message
+			} catch (SocketTimeoutException e) {
+				// stalled within a message
+			} catch (IOException e) {
+				if (!stopped && ExecutionEnvironment.getEnvironment().debug())
+					Logger.getLogger().logLine("TCP connection error: " + e.getMessage());
+			} catch (InterruptedException e) {
+				// stopped
+			} finally {
+				readDone();
+			}
+		}
+	}
+
+	// turns the request into a SERVFAIL response with the question section only
+	// returns the response length, -1 in case the request can not be parsed
+	private static int servFail(byte[] buf, int length) {
+		if (length < 12)
+			return -1;
+		try {
+			ByteBuffer msg = ByteBuffer.wrap(buf, 0, length);
+			int qdCount = msg.getShort(4) & 0xFFFF;
+			msg.position(12);
+			for (int i = 0; i < qdCount; i++) {
+				DNSResponsePatcher.skipDomainName(msg);
+				msg.position(msg.position() + 4); // type and class
+			}
+			buf[2] = (byte) ((buf[2] & 0x79) | 0x80); // QR, keep opcode and RD
+			buf[3] = (byte) 0x82; // RA, RCODE 2 (SERVFAIL)
+			for (int i = 6; i < 12; i++)
+				buf[i] = 0; // no answer, authority and additional records
+			return msg.position();
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	public DNSProxyTCPListener(int port, boolean onlyLocal, int idleTimeout, int maxConnections, int maxResolvers) throws IOException {
+		this.onlyLocal = onlyLocal;
+		this.idleTimeout = idleTimeout;
+		this.maxConnections = maxConnections;
+		this.maxResolvers = maxResolvers;
+
+		if (onlyLocal && ExecutionEnvironment.getEnvironment().getEnvironmentID() == 0)
+			server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		else
+			server = new ServerSocket(port);
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				if (!stopped)
+					Logger.getLogger().logLine("Exception:" + e.getMessage());
+				continue;
+			}
+			try {
+				// On Android the socket can not be bound to localhost only - see DNSFilterProxy
+				if (onlyLocal && ExecutionEnvironment.getEnvironment().getEnvironmentID() == 1 && !DNSFilterProxy.isAlocalAddress(socket.getInetAddress())) {
+					Logger.getLogger().logLine(socket.getInetAddress() + " not permitted! Only local access!");
+					socket.close();
+					continue;
+				}
+				ClientConnection con;
+				synchronized (connections) {
+					if (connections.size() >= maxConnections) {
+						Logger.getLogger().message("Max TCP connection count reached: " + maxConnections);
+						socket.close();
+						continue;
+					}
+					socket.setSoTimeout(idleTimeout);
+					socket.setTcpNoDelay(true);
+					con = new ClientConnection(socket);
+					connections.add(con);
+				}
+				new Thread(con).start();
+			} catch (IOException e) {
+				Logger.getLogger().logLine("Exception:" + e.getMessage());
+				try {
+					socket.close();
+				} catch (IOException e1) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			Logger.getLogger().logException(e);
+		}
+		ClientConnection[] cons;
+		synchronized (connections) {
+			cons = connections.toArray(new ClientConnection[0]);
+		}
+		for (int i = 0; i < cons.length; i++)
+			cons[i].close();
+	}
+}
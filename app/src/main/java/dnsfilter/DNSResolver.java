@@ -30,12 +30,18 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
-import ip.IPPacket;
 import ip.UDPPacket;
 import util.ExecutionEnvironment;
+import util.FlightRecorderEvents;
+import util.LatencyHistogram;
+import util.Log;
 import util.Logger;
+import util.Metrics;
 import util.PatternSequence;
+import util.Utils;
 
 public class DNSResolver implements Runnable {
 
@@ -43,6 +49,25 @@ public class DNSResolver implements Runnable {
 	private static Object CNT_SYNC = new Object();
 	private static boolean IO_ERROR=false;
 
+	// pipeline stages - derived from the QueryContext timing marks
+	private static final LatencyHistogram PARSE = Metrics.histogram("dns.stage.parse");
+	private static final LatencyHistogram LOCAL = Metrics.histogram("dns.stage.local");
+	private static final LatencyHistogram UPSTREAM = Metrics.histogram("dns.stage.upstream");
+	private static final LatencyHistogram PATCH = Metrics.histogram("dns.stage.patch");
+	private static final LatencyHistogram RESPOND = Metrics.histogram("dns.stage.respond");
+	private static final LatencyHistogram TOTAL = Metrics.histogram("dns.total");
+
+	private static final Log.Category LOG = Log.category("resolver");
+
+	static {
+		Metrics.gauge("dns.resolvers", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return getResolverCount();
+			}
+		});
+	}
+
 
 	//for android usage based on IP packages from the VPN Interface
 	private UDPPacket udpRequestPacket;
@@ -52,6 +77,14 @@ public class DNSResolver implements Runnable {
 	private DatagramPacket dataGramRequest;
 	private DatagramSocket replySocket;
 
+	//for non android usage via non blocking channel - see DNSProxyEventLoop
+	private DatagramChannel replyChannel;
+	private QueryContext preparedCtx = null;
+	private boolean localDeferred = false; // local resolution needs blocking I/O - done by the worker
+
+	//for DNS requests received via TCP - see DNSProxyTCPListener
+	private DNSProxyTCPListener.ClientConnection tcpReply;
+
 	private boolean datagramPacketMode = false;
 
 
@@ -78,17 +111,67 @@ public class DNSResolver implements Runnable {
 		this.replySocket = replySocket;
 	}
 
+	//for non Android usage based on DatagramPacket received via non blocking channel
+	public DNSResolver(DatagramPacket request, DatagramChannel replyChannel) {
+		datagramPacketMode = true;
+		this.dataGramRequest = request;
+		this.replyChannel = replyChannel;
+	}
+
+	//for non Android usage based on DatagramPacket received via TCP connection
+	public DNSResolver(DatagramPacket request, DNSProxyTCPListener.ClientConnection tcpReply) {
+		datagramPacketMode = true;
+		this.dataGramRequest = request;
+		this.tcpReply = tcpReply;
+	}
+
+	/**
+	 * Called by the event loop. Parses the request and directly answers it in case no upstream DNS is needed
+	 * and no blocking I/O is done (locally mapped hosts). Filtered hosts are reported to the API, so they are
+	 * answered by the worker like invalid requests.
+	 * Returns false in case the request needs to be forwarded - run() then continues with the already parsed request.
+	 */
+	public boolean resolveInline() throws IOException {
+		QueryContext ctx = QueryContext.obtain();
+		try {
+			SocketAddress sourceAdr = dataGramRequest.getSocketAddress();
+			ctx.init(dataGramRequest.getData(), dataGramRequest.getOffset(), dataGramRequest.getLength());
+			ctx.setClient(sourceAdr);
+
+			DatagramPacket response = createDatagramResponse();
+			if (!resolveLocal(ctx, dataGramRequest, response, false)) {
+				preparedCtx = ctx;
+				ctx.trace(QueryTrace.ENQUEUED);
+				return false;
+			}
+			ctx.mark(QueryContext.T_LOCAL_RESOLVED);
+			ctx.mark(QueryContext.T_PATCHED);
+			sendDatagramResponse(ctx, response, sourceAdr);
+			return true;
+		} finally {
+			if (preparedCtx != ctx)
+				ctx.release();
+		}
+	}
 
 
-	public boolean resolveLocal(String client, DatagramPacket request, DatagramPacket response) throws IOException {
+
+	public boolean resolveLocal(QueryContext ctx, DatagramPacket request, DatagramPacket response) throws IOException {
+		return resolveLocal(ctx, request, response, true);
+	}
+
+	// in case mayBlock is false, requests needing blocking I/O are not resolved and marked as localDeferred
+	private boolean resolveLocal(QueryContext ctx, DatagramPacket request, DatagramPacket response, boolean mayBlock) throws IOException {
 
 		if (!enableLocalResolver)
 			return false;
 
-		SimpleDNSMessage dnsQuery = null;
-		try {
-			dnsQuery = new SimpleDNSMessage(request.getData(), request.getOffset(), request.getLength());
-		} catch (Exception e){
+		if (ctx.parseError != null) {
+			if (!mayBlock) {
+				localDeferred = true;
+				return false;
+			}
+			Exception e = ctx.parseError;
 			if (ExecutionEnvironment.getEnvironment().debug()) {
 				File dump = new File(ExecutionEnvironment.getEnvironment().getWorkDir() + "/dnsdump_" + System.currentTimeMillis());
 				FileOutputStream dumpout = new FileOutputStream(dump);
@@ -100,56 +183,70 @@ public class DNSResolver implements Runnable {
 			throw new IOException(e);
 		}
 
-		if (!dnsQuery.isStandardQuery())
+		if (!ctx.isStandardQuery() || !ctx.isParsed())
 			return false;
 
-		Object[] info = dnsQuery.getQueryData();
+		SimpleDNSMessage dnsQuery = new SimpleDNSMessage(ctx);
 
-		short type = (short) info[1];
-		short clss = (short) info[2];
+		short type = ctx.qType;
+		short clss = ctx.qClass;
 
 		if(type != 1 && type != 28)
-			return handle_NonTyp_1_28(client, dnsQuery, response);
+			return handle_NonTyp_1_28(ctx, dnsQuery, response, mayBlock);
 
-		String host = (String) info[0];
+		String host = ctx.qHost;
 		byte[] ip = null;
 		String prfx = ">4";
 		byte[] filterIP = DNSResponsePatcher.ipv4_blocked;
+		String filterIPStr = DNSResponsePatcher.ipv4_blocked_str;
 		if (type == 28) {
 			prfx = ">6";
 			filterIP = DNSResponsePatcher.ipv6_blocked;
+			filterIPStr = DNSResponsePatcher.ipv6_blocked_str;
 		}
 
 		if (customIPMappings != null)
 			ip = (byte[]) customIPMappings.match(prfx+host.toLowerCase());
 		if (ip == null && DNSResponsePatcher.filter(host, false)) {
+			if (!mayBlock) {
+				localDeferred = true;
+				return false;
+			}
 			DNSResponsePatcher.logNstats(true, host);
 			ip = filterIP;
+			ctx.filtered = true;
 		}
 		if (ip != null) {
 
-			DNSResponsePatcher.trafficLog(client,clss,type,host,null,0);
+			DNSResponsePatcher.trafficLog(ctx,clss,type,host,null,0);
 			int length = dnsQuery.produceResponse(response.getData(), response.getOffset(), ip, localResolverTTL);
 			response.setLength(length);
 
-			String addrStr = InetAddress.getByAddress(ip).getHostAddress().toString();
+			String addrStr = filterIPStr;
+			if (ip != filterIP)
+				addrStr = InetAddress.getByAddress(ip).getHostAddress();
 
-			DNSResponsePatcher.trafficLog(client,clss,type,host, addrStr, ip.length);
+			DNSResponsePatcher.trafficLog(ctx,clss,type,host, addrStr, ip.length);
 
 			if (ip != filterIP)
-				Logger.getLogger().logLine("MAPPED_CUSTOM_IP: "+host+"->"+addrStr);
+				LOG.info("MAPPED_CUSTOM_IP: {}->{}").arg(host).arg(addrStr).log();
 			
 			return true;
 		} else
 			return false;
 	}
 
-	private boolean handle_NonTyp_1_28(String client, SimpleDNSMessage dnsQuery, DatagramPacket response) {
+	private boolean handle_NonTyp_1_28(QueryContext ctx, SimpleDNSMessage dnsQuery, DatagramPacket response, boolean mayBlock) {
 		//Logger.getLogger().logLine("TYPE 65");
 		String host = dnsQuery.qHost;
 		if (!DNSResponsePatcher.filter(host, false))
 			return false;
-		DNSResponsePatcher.trafficLog(client, dnsQuery.qClass, dnsQuery.qType, host,null,0);
+		if (!mayBlock) {
+			localDeferred = true;
+			return false;
+		}
+		ctx.filtered = true;
+		DNSResponsePatcher.trafficLog(ctx, dnsQuery.qClass, dnsQuery.qType, host,null,0);
 		DNSResponsePatcher.logNstats(true, host);
 		int length = dnsQuery.get_NonTyp_1_28_FilterResponse(response.getData(), response.getOffset());
 		response.setLength(length);
@@ -157,14 +254,13 @@ public class DNSResolver implements Runnable {
 	}
 
 
-	private void processIPPackageMode() throws Exception {
+	private void processIPPackageMode(QueryContext ctx) throws Exception {
 		int ttl = udpRequestPacket.getTTL();
 		int[] sourceIP = udpRequestPacket.getSourceIP();
 		int[] destIP = udpRequestPacket.getDestIP();
 		int sourcePort = udpRequestPacket.getSourcePort();
 		int destPort = udpRequestPacket.getDestPort();
 		int version = udpRequestPacket.getVersion();
-		String clientID = IPPacket.int2ip(sourceIP).getHostAddress() + ":" + sourcePort;
 
 		int hdrLen = udpRequestPacket.getHeaderLength();
 		byte[] packetData = udpRequestPacket.getData();
@@ -172,6 +268,10 @@ public class DNSResolver implements Runnable {
 		int offs = ipOffs + hdrLen;
 		int len = udpRequestPacket.getIPPacketLength() - hdrLen;
 
+		// parse the request once - the context is used by all further stages
+		ctx.init(packetData, offs, len);
+		ctx.setClient(sourceIP, sourcePort);
+
 		// build request datagram packet from UDP request packet
 		DatagramPacket request = new DatagramPacket(packetData, offs, len);
 
@@ -179,13 +279,14 @@ public class DNSResolver implements Runnable {
 		DatagramPacket response = new DatagramPacket(packetData, offs, packetData.length - offs);
 
 		//forward request to DNS and receive response
-		if (!resolveLocal(clientID, request, response)) {
-			
-			DNSCommunicator.getInstance().requestDNS(request, response);
+		if (!resolveLocal(ctx, request, response)) {
+			resolveUpstream(ctx, request, response);
 
 			// patch the response by applying filter
-			byte[] buf = DNSResponsePatcher.patchResponse(clientID, response.getData(), offs);
-		}
+			DNSResponsePatcher.patchResponse(ctx, response.getData(), offs);
+		} else
+			ctx.mark(QueryContext.T_LOCAL_RESOLVED);
+		ctx.mark(QueryContext.T_PATCHED);
 
 		//create  UDP Header and update source and destination IP and port			
 		UDPPacket udp = UDPPacket.createUDPPacket(response.getData(), ipOffs, hdrLen + response.getLength(), version);
@@ -199,39 +300,86 @@ public class DNSResolver implements Runnable {
 			responseOut.write(udp.getData(), udp.getIPPacketOffset(), udp.getIPPacketLength());
 			responseOut.flush();
 		}
+		responded(ctx);
 	}
 
-	private void processDatagramPackageMode() throws Exception {
-		SocketAddress sourceAdr = dataGramRequest.getSocketAddress();
-		String clientID = sourceAdr.toString();
-
+	private DatagramPacket createDatagramResponse() {
 		//we reuse the request data array
 		byte[] data = dataGramRequest.getData();
-		DatagramPacket response = new DatagramPacket(data, dataGramRequest.getOffset(), data.length - dataGramRequest.getOffset());
+		return new DatagramPacket(data, dataGramRequest.getOffset(), data.length - dataGramRequest.getOffset());
+	}
+
+	private void sendDatagramResponse(QueryContext ctx, DatagramPacket response, SocketAddress sourceAdr) throws IOException {
+		if (tcpReply != null)
+			tcpReply.sendResponse(response.getData(), response.getOffset(), response.getLength());
+		else if (replyChannel != null) {
+			// non blocking - in case the socket buffer is full the response is dropped like any other UDP packet
+			if (replyChannel.send(ByteBuffer.wrap(response.getData(), response.getOffset(), response.getLength()), sourceAdr) == 0)
+				LOG.debug("Response dropped for {}!").arg(sourceAdr).log();
+		} else {
+			response.setSocketAddress(sourceAdr);
+			replySocket.send(response);
+		}
+		responded(ctx);
+	}
 
-		if (!resolveLocal(clientID, dataGramRequest, response)) {
+	private void processDatagramPackageMode(QueryContext ctx) throws Exception {
+		SocketAddress sourceAdr = dataGramRequest.getSocketAddress();
+		DatagramPacket response = createDatagramResponse();
+		boolean resolvedLocal = false;
+
+		if (ctx != preparedCtx) {
+			// parse the request once - the context is used by all further stages
+			ctx.init(dataGramRequest.getData(), dataGramRequest.getOffset(), dataGramRequest.getLength());
+			ctx.setClient(sourceAdr);
+			resolvedLocal = resolveLocal(ctx, dataGramRequest, response);
+		} else if (localDeferred)
+			resolvedLocal = resolveLocal(ctx, dataGramRequest, response);
+
+		if (!resolvedLocal) {
 			//forward request to DNS and receive response
-			DNSCommunicator.getInstance().requestDNS(dataGramRequest, response);
+			resolveUpstream(ctx, dataGramRequest, response);
 
 			// patch the response by applying filter
-			DNSResponsePatcher.patchResponse(clientID, response.getData(), response.getOffset());
-		}
+			DNSResponsePatcher.patchResponse(ctx, response.getData(), response.getOffset());
+		} else
+			ctx.mark(QueryContext.T_LOCAL_RESOLVED);
+		ctx.mark(QueryContext.T_PATCHED);
 
 		//finally return the response to the request source
-		response.setSocketAddress(sourceAdr);
-		replySocket.send(response);
+		sendDatagramResponse(ctx, response, sourceAdr);
+	}
+
+	// resolves via cache or upstream DNS - the trace of a sampled query is exposed to the upstream stages meanwhile
+	private static void resolveUpstream(QueryContext ctx, DatagramPacket request, DatagramPacket response) throws IOException {
+		ctx.mark(QueryContext.T_UPSTREAM_START);
+		QueryTrace trace = ctx.getTrace();
+		if (trace != null)
+			trace.attach();
+		try {
+			DNSResponseCache.getInstance().resolve(ctx, request, response);
+		} finally {
+			if (trace != null)
+				trace.detach();
+		}
+		ctx.mark(QueryContext.T_UPSTREAM_DONE);
 	}
 
 	@Override
 	public void run() {
+		QueryContext ctx = preparedCtx;
+		if (ctx == null)
+			ctx = QueryContext.obtain();
+		else
+			ctx.trace(QueryTrace.DEQUEUED);
 		try {
 			synchronized (CNT_SYNC) {
 				THR_COUNT++;
 			}
 			if (datagramPacketMode)
-				processDatagramPackageMode();
+				processDatagramPackageMode(ctx);
 			else
-				processIPPackageMode();
+				processIPPackageMode(ctx);
 
 			IO_ERROR=false;
 
@@ -242,6 +390,8 @@ public class DNSResolver implements Runnable {
 			String msg = e.getMessage();
 			if (e.getMessage()==null)
 				msg = e.toString();
+			ctx.trace(QueryTrace.ERROR, msg);
+			commitQueryEvent(ctx, msg);
 			if (ExecutionEnvironment.getEnvironment().debug())
 				Logger.getLogger().logLine(msg);
 			else if (!IO_ERROR && hasNetwork) {
@@ -250,14 +400,57 @@ public class DNSResolver implements Runnable {
 				IO_ERROR= true; //prevent repeating error logs
 			}
 		} catch (Exception e) {
+			ctx.trace(QueryTrace.ERROR, e.toString());
+			commitQueryEvent(ctx, e.toString());
 			Logger.getLogger().logException(e);
 		} finally {
+			preparedCtx = null;
+			ctx.release();
 			synchronized (CNT_SYNC) {
 				THR_COUNT--;
 			}
 		}
 	}
 
+	// records the durations of the pipeline stages passed by the query and counts it once with its final verdict
+	private static void responded(QueryContext ctx) {
+		ctx.mark(QueryContext.T_RESPONDED);
+		if (ctx.isParsed())
+			QueryStatistics.getInstance().record(ctx.filtered ? QueryStatistics.FILTERED : QueryStatistics.ALLOWED, ctx.qType);
+		long received = ctx.getMark(QueryContext.T_RECEIVED);
+		long parsed = ctx.getMark(QueryContext.T_PARSED);
+		long upstreamStart = ctx.getMark(QueryContext.T_UPSTREAM_START);
+		long upstreamDone = ctx.getMark(QueryContext.T_UPSTREAM_DONE);
+		long patched = ctx.getMark(QueryContext.T_PATCHED);
+		long responded = ctx.getMark(QueryContext.T_RESPONDED);
+
+		PARSE.record(parsed - received);
+		if (upstreamStart != 0) {
+			LOCAL.record(upstreamStart - parsed);
+			UPSTREAM.record(upstreamDone - upstreamStart);
+			PATCH.record(patched - upstreamDone);
+		} else
+			LOCAL.record(ctx.getMark(QueryContext.T_LOCAL_RESOLVED) - parsed);
+		RESPOND.record(responded - patched);
+		TOTAL.record(responded - received);
+		commitQueryEvent(ctx, upstreamStart != 0 ? "forwarded" : "local");
+	}
+
+	private static void commitQueryEvent(QueryContext ctx, String outcome) {
+		FlightRecorderEvents.Event event = ctx.jfrEvent;
+		if (event == null)
+			return;
+		ctx.jfrEvent = null;
+		long upstreamStart = ctx.getMark(QueryContext.T_UPSTREAM_START);
+		long upstreamDone = ctx.getMark(QueryContext.T_UPSTREAM_DONE);
+		// same hash as used by the filter lookup, so both events can be correlated
+		event.set(0, ctx.qHost != null ? Utils.getLongStringHash(ctx.qHost.toLowerCase()) : 0L)
+				.set(1, (int) ctx.qType)
+				.set(2, outcome)
+				.set(3, upstreamDone > upstreamStart && upstreamStart != 0 ? upstreamDone - upstreamStart : 0L)
+				.commit();
+	}
+
 	public static int getResolverCount() {
 		return THR_COUNT;
 	}
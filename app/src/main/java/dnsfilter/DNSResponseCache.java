@@ -0,0 +1,807 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+
+import util.ExecutionEnvironment;
+import util.LRUCache;
+import util.LatencyHistogram;
+import util.Logger;
+import util.Metrics;
+
+/**
+ * Cache for upstream DNS responses.
+ * The raw (unpatched) upstream response is stored, so the filter is applied on each hit by the DNSResponsePatcher.
+ * Entries are evicted in least recently used order. Requests of DNSSEC aware clients (DO or CD bit set) bypass the cache,
+ * and cached responses larger than the client accepts via UDP are not served from the cache.
+ * In case upstream DNS fails or does not answer within the client timeout, an expired response is
+ * served with a short TTL (serve stale - RFC 8767) while the upstream request continues in the background.
+ * Frequently used entries are refreshed in the background shortly before they expire (prefetch).
+ * Optionally companion queries (A/AAAA of the same host, CNAME targets) are resolved speculatively.
+ * The cache content is saved periodically and on stop to a snapshot file in the work dir, which is loaded
+ * in background on startup.
+ */
+public class DNSResponseCache {
+
+	private static DNSResponseCache INSTANCE = new DNSResponseCache();
+
+	private static final int SNAPSHOT_MAGIC = 0x44435331; // "DCS1"
+	private static final String SNAPSHOT_FILE = "dnscache.snapshot";
+
+	static class Entry {
+		byte[] answer; // raw upstream response
+		long created;  // ms
+		long expiry;   // ms
+		int hits = 0;
+		volatile boolean refreshing = false;
+		boolean speculative = false; // created by speculation and not used yet
+
+		Entry(byte[] answer, long created, long expiry) {
+			this.answer = answer;
+			this.created = created;
+			this.expiry = expiry;
+		}
+	}
+
+	// background query - either refresh of a popular entry before it expires (prefetch) or a speculative lookup
+	private class BackgroundQuery implements Runnable {
+
+		private String key;
+		private byte[] query;
+		private Entry refreshEntry;
+
+		BackgroundQuery(String key, byte[] query, Entry refreshEntry) {
+			this.key = key;
+			this.query = query;
+			this.refreshEntry = refreshEntry;
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] buf = new byte[DNSServer.getBufSize()];
+				DatagramPacket response = new DatagramPacket(buf, 0, buf.length);
+				DNSCommunicator.getInstance().requestDNS(new DatagramPacket(query, 0, query.length), response);
+				Entry stored = store(key, response, System.currentTimeMillis());
+				if (stored != null) {
+					if (refreshEntry != null)
+						stored.hits = refreshEntry.hits / 2; // keep it hot, but let it cool down when not used anymore
+					else
+						stored.speculative = true;
+				}
+			} catch (IOException e) {
+				if (ExecutionEnvironment.getEnvironment().debug())
+					Logger.getLogger().logLine("Background DNS request failed for " + key + ": " + e.getMessage());
+			} finally {
+				synchronized (DNSResponseCache.this) {
+					if (refreshEntry != null)
+						refreshEntry.refreshing = false;
+					else
+						speculating.remove(key);
+					backgroundRunning--;
+				}
+			}
+		}
+	}
+
+	// upstream request running in the background - the client waits for it at most until the client timeout
+	private class UpstreamRequest implements Runnable {
+
+		private String key;
+		private DatagramPacket request;
+		private DatagramPacket response;
+		private boolean done = false;
+		private boolean failed = false;
+
+		UpstreamRequest(String key, DatagramPacket request) {
+			this.key = key;
+			byte[] data = new byte[request.getLength()];
+			System.arraycopy(request.getData(), request.getOffset(), data, 0, data.length);
+			this.request = new DatagramPacket(data, 0, data.length);
+			byte[] buf = new byte[DNSServer.getBufSize()];
+			this.response = new DatagramPacket(buf, 0, buf.length);
+		}
+
+		@Override
+		public void run() {
+			boolean success = false;
+			try {
+				DNSCommunicator.getInstance().requestDNS(request, response);
+				store(key, response, System.currentTimeMillis());
+				success = true;
+			} catch (IOException e) {
+				if (ExecutionEnvironment.getEnvironment().debug())
+					Logger.getLogger().logLine("Background DNS request failed: " + e.getMessage());
+			} finally {
+				synchronized (this) {
+					done = success;
+					failed = !success;
+					notifyAll();
+				}
+			}
+		}
+
+		// returns true in case the upstream response was received in time and copied to target
+		synchronized boolean await(long timeout, DatagramPacket target) {
+			long deadline = System.currentTimeMillis() + timeout;
+			long wait = timeout;
+			while (!done && !failed && wait > 0) {
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+				wait = deadline - System.currentTimeMillis();
+			}
+			if (!done)
+				return false;
+
+			copyTo(response.getData(), response.getOffset(), response.getLength(), target);
+			return true;
+		}
+	}
+
+	private LRUCache cache = new LRUCache(0, true);
+	private int size = 0;
+	private boolean enabled = false;
+	private int maxTTL = 86400;
+	private boolean serveStale = false;
+	private long maxStale = 0;
+	private int staleTTL = 30;
+	private int clientTimeout = 1800;
+	private boolean prefetch = false;
+	private int prefetchThreshold = 90;
+	private int prefetchMinHits = 3;
+	private int prefetchBudget = 120;
+	private boolean speculate = false;
+	private boolean speculateOnMetered = false;
+	private int speculateBudget = 60;
+	private volatile boolean meteredNetwork = false;
+
+	private final Metrics.Counter hitCnt = Metrics.counter("cache.hit");
+	private final Metrics.Counter missCnt = Metrics.counter("cache.miss");
+	private final Metrics.Counter staleCnt = Metrics.counter("cache.stale_served");
+	private final Metrics.Counter prefetchCnt = Metrics.counter("cache.prefetch");
+	private final Metrics.Counter speculateCnt = Metrics.counter("cache.speculation");
+	private final Metrics.Counter speculateUsedCnt = Metrics.counter("cache.speculation_used");
+	private final LatencyHistogram hitLatency = Metrics.histogram("cache.hit.latency");
+
+	// prefetch rate limit - max prefetchBudget refreshes per minute
+	private long prefetchWindowStart = 0;
+	private int prefetchWindowCnt = 0;
+
+	// speculation rate limit - max speculateBudget lookups per minute
+	private long speculateWindowStart = 0;
+	private int speculateWindowCnt = 0;
+	private HashSet<String> speculating = new HashSet<String>();
+
+	private int backgroundRunning = 0;
+	private static final int MAX_BACKGROUND_RUNNING = 8;
+
+	private boolean snapshot = false;
+	private int snapshotInterval = 300;
+	private boolean snapshotLoaded = false;
+	private Thread snapshotWriter = null;
+	private volatile boolean modified = false;
+
+	public static DNSResponseCache getInstance() {
+		return INSTANCE;
+	}
+
+	public void init(Properties config) throws IOException {
+		try {
+			boolean enabled = Boolean.parseBoolean(config.getProperty("dnsCacheEnabled", "true"));
+			int size = Integer.parseInt(config.getProperty("dnsCacheSize", "2000").trim());
+			int maxTTL = Integer.parseInt(config.getProperty("dnsCacheMaxTTL", "86400").trim());
+			boolean serveStale = Boolean.parseBoolean(config.getProperty("serveStale", "true"));
+			int maxStaleSecs = Integer.parseInt(config.getProperty("serveStaleMaxAge", "86400").trim());
+			int staleTTL = Integer.parseInt(config.getProperty("serveStaleTTL", "30").trim());
+			int clientTimeout = Integer.parseInt(config.getProperty("serveStaleClientTimeout", "1800").trim());
+			boolean prefetch = Boolean.parseBoolean(config.getProperty("dnsCachePrefetch", "true"));
+			int prefetchThreshold = Integer.parseInt(config.getProperty("dnsCachePrefetchThreshold", "90").trim());
+			int prefetchMinHits = Integer.parseInt(config.getProperty("dnsCachePrefetchMinHits", "3").trim());
+			int prefetchBudget = Integer.parseInt(config.getProperty("dnsCachePrefetchBudget", "120").trim());
+			boolean speculate = Boolean.parseBoolean(config.getProperty("dnsSpeculativePrefetch", "false"));
+			boolean speculateOnMetered = Boolean.parseBoolean(config.getProperty("dnsSpeculativePrefetchOnMetered", "false"));
+			int speculateBudget = Integer.parseInt(config.getProperty("dnsSpeculativePrefetchBudget", "60").trim());
+			boolean snapshot = Boolean.parseBoolean(config.getProperty("dnsCacheSnapshot", "true"));
+			int snapshotInterval = Integer.parseInt(config.getProperty("dnsCacheSnapshotInterval", "300").trim());
+
+			synchronized (this) {
+				if (size != this.size)
+					cache = new LRUCache(size, true);
+				this.size = size;
+				this.maxTTL = maxTTL;
+				this.serveStale = serveStale;
+				this.maxStale = maxStaleSecs * 1000L;
+				this.staleTTL = staleTTL;
+				this.clientTimeout = clientTimeout;
+				this.prefetch = prefetch && prefetchBudget > 0;
+				this.prefetchThreshold = prefetchThreshold;
+				this.prefetchMinHits = prefetchMinHits;
+				this.prefetchBudget = prefetchBudget;
+				this.speculate = speculate && speculateBudget > 0;
+				this.speculateOnMetered = speculateOnMetered;
+				this.speculateBudget = speculateBudget;
+				this.snapshotInterval = Math.max(snapshotInterval, 10);
+				this.enabled = enabled && size > 0;
+				this.snapshot = snapshot && this.enabled;
+			}
+			if (this.snapshot)
+				startSnapshotHandling();
+		} catch (NumberFormatException nfe) {
+			Logger.getLogger().logLine("Cannot parse DNS cache configuration!");
+			throw new IOException(nfe);
+		}
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public long getHitCount() {
+		return hitCnt.get();
+	}
+
+	public long getMissCount() {
+		return missCnt.get();
+	}
+
+	public long getStaleServedCount() {
+		return staleCnt.get();
+	}
+
+	public long getPrefetchCount() {
+		return prefetchCnt.get();
+	}
+
+	public long getSpeculationCount() {
+		return speculateCnt.get();
+	}
+
+	// number of speculatively resolved entries which were requested by a client afterwards
+	public long getSpeculationUsedCount() {
+		return speculateUsedCnt.get();
+	}
+
+	public void setMeteredNetwork(boolean metered) {
+		meteredNetwork = metered;
+	}
+
+	public boolean isSpeculationActive() {
+		return enabled && speculate && (speculateOnMetered || !meteredNetwork);
+	}
+
+	/**
+	 * Resolves the request via the cache or upstream DNS.
+	 * The response is not patched yet - the caller applies the filter via DNSResponsePatcher.
+	 */
+	public void resolve(QueryContext ctx, DatagramPacket request, DatagramPacket response) throws IOException {
+
+		if (!enabled || !ctx.isParsed() || ctx.qdCount != 1 || isDNSSECRequest(ctx)) {
+			DNSCommunicator.getInstance().requestDNS(request, response);
+			return;
+		}
+
+		// clients almost always query A and AAAA together
+		if (ctx.qType == 1)
+			speculate(ctx.qHost, (short) 28, ctx.qClass);
+		else if (ctx.qType == 28)
+			speculate(ctx.qHost, (short) 1, ctx.qClass);
+
+		long start = System.nanoTime();
+		String key = getKey(ctx.qHost, ctx.qType, ctx.qClass);
+		long now = System.currentTimeMillis();
+		Entry entry = (Entry) cache.get(key);
+		if (entry != null && entry.answer.length > getMaxResponseSize(ctx))
+			entry = null; // e.g. received via TCP - the client has to get it from upstream, truncated in case needed
+
+		if (entry != null && entry.expiry > now) {
+			hitCnt.increment();
+			ctx.trace(QueryTrace.CACHE_HIT);
+			if (entry.speculative) {
+				synchronized (this) {
+					if (entry.speculative) {
+						entry.speculative = false;
+						speculateUsedCnt.increment();
+					}
+				}
+			}
+			entry.hits++;
+			checkPrefetch(key, entry, now);
+			writeResponse(ctx, entry, response, now, -1);
+			hitLatency.recordSince(start);
+			return;
+		}
+		missCnt.increment();
+		ctx.trace(QueryTrace.CACHE_MISS);
+
+		if (entry == null || !serveStale || now - entry.expiry > maxStale) {
+			DNSCommunicator.getInstance().requestDNS(request, response);
+			store(key, response, System.currentTimeMillis());
+			return;
+		}
+
+		// stale entry available - wait for upstream only until client timeout
+		UpstreamRequest upstream = new UpstreamRequest(key, request);
+		new Thread(upstream).start();
+		if (upstream.await(clientTimeout, response))
+			return;
+
+		// upstream failed or too slow - serve stale while the request continues in background
+		staleCnt.increment();
+		ctx.trace(QueryTrace.CACHE_STALE);
+		if (ExecutionEnvironment.getEnvironment().debug())
+			Logger.getLogger().logLine("SERVE STALE: " + ctx.qHost);
+		writeResponse(ctx, entry, response, now, staleTTL);
+	}
+
+	private static String getKey(String host, short type, short clss) {
+		return host.toLowerCase() + "/" + type + "/" + clss;
+	}
+
+	// DO bit in the OPT record or CD bit in the header - the cached response might lack the DNSSEC records or validation
+	static boolean isDNSSECRequest(QueryContext ctx) {
+		if ((ctx.resFlgs & 0x10) != 0)
+			return true;
+		int optPos = getOPT(ctx);
+		return optPos != -1 && (ctx.data[optPos + 7] & 0x80) != 0;
+	}
+
+	// max response size the client accepts via UDP - 512 bytes without EDNS(0) (RFC 6891)
+	static int getMaxResponseSize(QueryContext ctx) {
+		int optPos = getOPT(ctx);
+		if (optPos == -1)
+			return 512;
+		return Math.max(readShort(ctx.data, optPos + 3), 512);
+	}
+
+	// returns the position of the complete OPT record of the request or -1 in case there is none
+	private static int getOPT(QueryContext ctx) {
+		if (ctx.arCount == 0)
+			return -1;
+		int optPos = UDP.findOPT(ctx.data, ctx.offs, ctx.length);
+		if (optPos == -1 || optPos + 11 > ctx.offs + ctx.length || ctx.data[optPos] != 0)
+			return -1;
+		return optPos;
+	}
+
+	/**
+	 * Resolves the given host in the background in case it is not cached yet.
+	 * Used for companion queries (A/AAAA) and CNAME targets - rate limited by the speculation budget.
+	 */
+	public void speculate(String host, short type, short clss) {
+		if (!isSpeculationActive())
+			return;
+
+		String key = getKey(host, type, clss);
+		long now = System.currentTimeMillis();
+		Entry entry = (Entry) cache.get(key);
+		if (entry != null && entry.expiry > now)
+			return;
+
+		byte[] query;
+		try {
+			query = createQuery(host, type, clss);
+		} catch (IOException e) {
+			return; // invalid host name
+		}
+
+		synchronized (this) {
+			if (speculating.contains(key) || backgroundRunning >= MAX_BACKGROUND_RUNNING)
+				return;
+			if (now - speculateWindowStart >= 60000) {
+				speculateWindowStart = now;
+				speculateWindowCnt = 0;
+			}
+			if (speculateWindowCnt >= speculateBudget)
+				return;
+			speculateWindowCnt++;
+			backgroundRunning++;
+			speculateCnt.increment();
+			speculating.add(key);
+		}
+		startBackgroundQuery(new BackgroundQuery(key, query, null));
+	}
+
+	private static void startBackgroundQuery(BackgroundQuery query) {
+		Thread t = new Thread(query);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	Entry store(String key, DatagramPacket response, long now) {
+		byte[] data = response.getData();
+		int offs = response.getOffset();
+		int len = response.getLength();
+
+		int ttl = getCacheTTL(data, offs, len);
+		if (ttl <= 0)
+			return null;
+
+		byte[] answer = new byte[len];
+		System.arraycopy(data, offs, answer, 0, len);
+		Entry entry = new Entry(answer, now, now + Math.min(ttl, maxTTL) * 1000L);
+		cache.put(key, entry);
+		modified = true;
+		return entry;
+	}
+
+	// triggers a background refresh for popular entries close to expiry, rate limited by the prefetch budget
+	private void checkPrefetch(String key, Entry entry, long now) {
+		if (!prefetch || entry.refreshing || entry.hits < prefetchMinHits)
+			return;
+
+		long ttl = entry.expiry - entry.created;
+		if ((now - entry.created) * 100 < ttl * prefetchThreshold)
+			return;
+
+		byte[] query;
+		try {
+			query = createQuery(entry.answer);
+		} catch (IOException e) {
+			return;
+		}
+
+		synchronized (this) {
+			if (entry.refreshing || backgroundRunning >= MAX_BACKGROUND_RUNNING)
+				return;
+			if (now - prefetchWindowStart >= 60000) {
+				prefetchWindowStart = now;
+				prefetchWindowCnt = 0;
+			}
+			if (prefetchWindowCnt >= prefetchBudget)
+				return;
+			prefetchWindowCnt++;
+			backgroundRunning++;
+			prefetchCnt.increment();
+			entry.refreshing = true;
+		}
+		startBackgroundQuery(new BackgroundQuery(key, query, entry));
+	}
+
+	private synchronized void startSnapshotHandling() {
+		if (!snapshotLoaded) {
+			snapshotLoaded = true;
+			Thread loader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loadSnapshot();
+				}
+			});
+			loader.setDaemon(true);
+			loader.start();
+		}
+		if (snapshotWriter == null) {
+			snapshotWriter = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(snapshotInterval * 1000L);
+						} catch (InterruptedException e) {
+							// ignore
+						}
+						if (snapshot && modified)
+							saveSnapshot();
+					}
+				}
+			});
+			snapshotWriter.setDaemon(true);
+			snapshotWriter.start();
+		}
+	}
+
+	private static File getSnapshotFile() {
+		return new File(ExecutionEnvironment.getEnvironment().getWorkDir() + File.separator + SNAPSHOT_FILE);
+	}
+
+	/**
+	 * Writes all cached responses with their absolute expiry to the snapshot file.
+	 * Format: magic, entry count, then per entry: key (UTF), created, expiry, answer length and answer.
+	 */
+	public void saveSnapshot() {
+		if (!snapshot)
+			return;
+		saveSnapshot(getSnapshotFile());
+	}
+
+	void saveSnapshot(File file) {
+		Object[] entries;
+		LRUCache cache = this.cache;
+		synchronized (cache) {
+			entries = cache.entrySet().toArray();
+		}
+		modified = false;
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(entries.length);
+				for (int i = 0; i < entries.length; i++) {
+					Map.Entry<?, ?> mapEntry = (Map.Entry<?, ?>) entries[i];
+					Entry entry = (Entry) mapEntry.getValue();
+					out.writeUTF((String) mapEntry.getKey());
+					out.writeLong(entry.created);
+					out.writeLong(entry.expiry);
+					out.writeShort(entry.answer.length);
+					out.write(entry.answer);
+				}
+				out.flush();
+			} finally {
+				out.close();
+			}
+			if ((file.exists() && !file.delete()) || !tmp.renameTo(file))
+				throw new IOException("Cannot replace " + file);
+		} catch (IOException e) {
+			Logger.getLogger().logLine("Cannot write DNS cache snapshot: " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	private void loadSnapshot() {
+		loadSnapshot(getSnapshotFile());
+	}
+
+	void loadSnapshot(File file) {
+		if (!file.exists())
+			return;
+
+		int loaded = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != SNAPSHOT_MAGIC)
+					throw new IOException("Invalid snapshot file!");
+
+				long now = System.currentTimeMillis();
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String key = in.readUTF();
+					long created = in.readLong();
+					long expiry = in.readLong();
+					int len = in.readShort() & 0xFFFF;
+
+					// skip expired entries - except those still usable for serve stale
+					if (expiry <= now && (!serveStale || now - expiry > maxStale)) {
+						if (in.skipBytes(len) != len)
+							throw new IOException("Snapshot file truncated!");
+						continue;
+					}
+					byte[] answer = new byte[len];
+					in.readFully(answer);
+
+					synchronized (cache) {
+						// entries resolved since startup are more recent
+						if (cache.get(key) == null) {
+							cache.put(key, new Entry(answer, created, expiry));
+							loaded++;
+						}
+					}
+				}
+			} finally {
+				in.close();
+			}
+			if (ExecutionEnvironment.getEnvironment().debug())
+				Logger.getLogger().logLine("Loaded " + loaded + " entries from DNS cache snapshot!");
+		} catch (Exception e) {
+			Logger.getLogger().logLine("Cannot read DNS cache snapshot: " + e.toString());
+		}
+	}
+
+	// creates a query for the given host, type and class
+	private static byte[] createQuery(String host, short type, short clss) throws IOException {
+		byte[] name = host.getBytes();
+		byte[] query = new byte[12 + name.length + 2 + 4];
+		int pos = 12;
+		int labelStart = 0;
+		for (int i = 0; i <= name.length; i++) {
+			if (i == name.length || name[i] == '.') {
+				int labelLen = i - labelStart;
+				if (labelLen == 0 || labelLen > 63) {
+					if (i == name.length && labelLen == 0 && i > 0)
+						break; // trailing dot
+					throw new IOException("Invalid host name: " + host);
+				}
+				query[pos++] = (byte) labelLen;
+				System.arraycopy(name, labelStart, query, pos, labelLen);
+				pos = pos + labelLen;
+				labelStart = i + 1;
+			}
+		}
+		query[pos++] = 0;
+		query[pos++] = (byte) (type >> 8);
+		query[pos++] = (byte) type;
+		query[pos++] = (byte) (clss >> 8);
+		query[pos++] = (byte) clss;
+
+		int id = (int) (Math.random() * 0xFFFF);
+		query[0] = (byte) (id >> 8);
+		query[1] = (byte) id;
+		query[2] = 1; // standard query, recursion desired
+		query[5] = 1; // one question
+
+		if (pos == query.length)
+			return query;
+		byte[] result = new byte[pos];
+		System.arraycopy(query, 0, result, 0, pos);
+		return result;
+	}
+
+	// creates a query for the question of the given response
+	private static byte[] createQuery(byte[] answer) throws IOException {
+		int qEnd = skipName(answer, 12, answer.length) + 4;
+		byte[] query = new byte[qEnd];
+		System.arraycopy(answer, 0, query, 0, qEnd);
+		int id = (int) (Math.random() * 0xFFFF);
+		query[0] = (byte) (id >> 8);
+		query[1] = (byte) id;
+		query[2] = 1; // standard query, recursion desired
+		query[3] = 0;
+		query[4] = 0;
+		query[5] = 1; // one question
+		for (int i = 6; i < 12; i++)
+			query[i] = 0;
+		return query;
+	}
+
+	private static void copyTo(byte[] data, int offs, int len, DatagramPacket target) {
+		int targetOffs = target.getOffset();
+		if (target.getData().length - targetOffs < len) {
+			byte[] buf = new byte[targetOffs + len];
+			target.setData(buf, targetOffs, len);
+		}
+		System.arraycopy(data, offs, target.getData(), targetOffs, len);
+		target.setLength(len);
+	}
+
+	// copies the cached response to the target, fixing ID, question name and TTLs
+	static void writeResponse(QueryContext ctx, Entry entry, DatagramPacket target, long now, int fixedTTL) throws IOException {
+		byte[] answer = entry.answer;
+		copyTo(answer, 0, answer.length, target);
+		byte[] data = target.getData();
+		int offs = target.getOffset();
+
+		data[offs] = (byte) (ctx.id >> 8);
+		data[offs + 1] = (byte) ctx.id;
+
+		// take over the question as sent by the client (case might differ)
+		int qEnd = skipName(answer, 12, answer.length) + 4;
+		if (qEnd == ctx.questionEnd - ctx.offs)
+			System.arraycopy(ctx.data, ctx.offs + 12, data, offs + 12, qEnd - 12);
+
+		int elapsed = (int) ((now - entry.created) / 1000);
+		int pos = offs + qEnd;
+		int end = offs + answer.length;
+		int rrCount = readShort(data, offs + 6) + readShort(data, offs + 8) + readShort(data, offs + 10);
+		for (int i = 0; i < rrCount; i++) {
+			pos = skipName(data, pos, end);
+			if (pos + 10 > end)
+				throw new IOException("Invalid cached DNS response!");
+			int type = readShort(data, pos);
+			if (type != 41) { // OPT record has no TTL
+				int ttl = fixedTTL;
+				if (ttl < 0)
+					ttl = Math.max(readInt(data, pos + 4) - elapsed, 0);
+				writeInt(data, pos + 4, ttl);
+			}
+			pos = pos + 10 + readShort(data, pos + 8);
+		}
+	}
+
+	/**
+	 * Returns the TTL in seconds for caching the response or -1 in case the response must not be cached.
+	 * For negative answers the SOA record from the authority section is used (RFC 2308).
+	 */
+	static int getCacheTTL(byte[] data, int offs, int len) {
+		try {
+			int end = offs + len;
+			if (len < 12)
+				return -1;
+			if ((data[offs + 2] & 2) != 0) // truncated
+				return -1;
+			int rcode = data[offs + 3] & 0xF;
+			if (rcode != 0 && rcode != 3) // only NOERROR and NXDOMAIN
+				return -1;
+
+			int qdCount = readShort(data, offs + 4);
+			int anCount = readShort(data, offs + 6);
+			int nsCount = readShort(data, offs + 8);
+			int arCount = readShort(data, offs + 10);
+
+			int pos = offs + 12;
+			for (int i = 0; i < qdCount; i++)
+				pos = skipName(data, pos, end) + 4;
+
+			long minTTL = Long.MAX_VALUE;
+			boolean soaFound = false;
+			int rrCount = anCount + nsCount + arCount;
+			for (int i = 0; i < rrCount; i++) {
+				pos = skipName(data, pos, end);
+				if (pos + 10 > end)
+					return -1;
+				int type = readShort(data, pos);
+				long ttl = readInt(data, pos + 4) & 0xFFFFFFFFL;
+				int rdLen = readShort(data, pos + 8);
+				if (pos + 10 + rdLen > end)
+					return -1;
+				if (type == 6 && i >= anCount && i < anCount + nsCount) {
+					// SOA in authority - negative caching TTL is min of SOA TTL and minimum field
+					soaFound = true;
+					ttl = Math.min(ttl, readInt(data, pos + 10 + rdLen - 4) & 0xFFFFFFFFL);
+				}
+				if (type != 41)
+					minTTL = Math.min(minTTL, ttl);
+				pos = pos + 10 + rdLen;
+			}
+			if ((anCount == 0 && !soaFound) || minTTL == Long.MAX_VALUE)
+				return -1;
+
+			return (int) Math.min(minTTL, Integer.MAX_VALUE);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static int skipName(byte[] data, int pos, int end) throws IOException {
+		while (true) {
+			if (pos >= end)
+				throw new IOException("Invalid DNS response - name exceeds message!");
+			int count = data[pos] & 0xFF;
+			if (count == 0)
+				return pos + 1;
+			if ((count & 0xc0) != 0)
+				return pos + 2; // pointer terminates the name
+			pos = pos + 1 + count;
+		}
+	}
+
+	private static int readShort(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+	}
+
+	private static int readInt(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+	}
+
+	private static void writeInt(byte[] data, int pos, int val) {
+		data[pos] = (byte) (val >> 24);
+		data[pos + 1] = (byte) (val >> 16);
+		data[pos + 2] = (byte) (val >> 8);
+		data[pos + 3] = (byte) val;
+	}
+}
@@ -28,8 +28,12 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.Set;
 
+import util.Log;
 import util.Logger;
+import util.LatencyHistogram;
 import util.LoggerInterface;
+import util.Metrics;
+import util.StripedCounter;
 
 public class DNSResponsePatcher {
 
@@ -38,9 +42,14 @@ public class DNSResponsePatcher {
 
 	protected static byte[] ipv4_blocked;
 	protected static byte[] ipv6_blocked;
-
-	private static long okCnt=0;
-	private static long filterCnt=0;
+	protected static String ipv4_blocked_str;
+	protected static String ipv6_blocked_str;
+
+	private static StripedCounter okCnt = new StripedCounter();
+	private static StripedCounter filterCnt = new StripedCounter();
+	private static final LatencyHistogram FILTER_LOOKUP = Metrics.histogram("filter.lookup");
+	private static final Log.Category FILTER_LOG = Log.category("filter");
+	private static final Log.Category TRAFFIC = Log.category("traffic");
 	private static boolean checkIP = false;
 	private static boolean checkCNAME = true;
 
@@ -49,6 +58,8 @@ public class DNSResponsePatcher {
 		try {
 			ipv4_blocked = InetAddress.getByName(ConfigurationAccess.getLocal().getConfig().getProperty("ipV4BlockedHost","127.0.0.1")).getAddress();
 			ipv6_blocked = InetAddress.getByName(ConfigurationAccess.getLocal().getConfig().getProperty("ipV6BlockedHost","::1")).getAddress();
+			ipv4_blocked_str = InetAddress.getByAddress(ipv4_blocked).getHostAddress();
+			ipv6_blocked_str = InetAddress.getByAddress(ipv6_blocked).getHostAddress();
 		} catch (Exception e) {
 			Logger.getLogger().logException(e);
 		}
@@ -69,15 +80,15 @@ public class DNSResponsePatcher {
 	}
 
 	public static long getFilterCount() {
-		return filterCnt;
+		return filterCnt.sum();
 	}
 
 	public static long getOkCount() {
-		return okCnt;
+		return okCnt.sum();
 	}
 
 
-	public static byte[] patchResponse(String client, byte[] response, int offs) throws IOException {
+	public static byte[] patchResponse(QueryContext ctx, byte[] response, int offs) throws IOException {
 
 		try {
 			ByteBuffer buf = ByteBuffer.wrap(response, offs, response.length - offs);
@@ -94,8 +105,16 @@ public class DNSResponsePatcher {
 
 			for (int i = 0; i < questCount; i++) {
 
-				queryHost = readDomainName(buf, offs);
-				short type = buf.getShort(); // query type
+				short type;
+				if (i == 0 && ctx.isParsed()) {
+					// question already parsed from the request - just skip it
+					skipDomainName(buf);
+					queryHost = ctx.qHost;
+					type = buf.getShort(); // query type
+				} else {
+					queryHost = readDomainName(buf, offs);
+					type = buf.getShort(); // query type
+				}
 
 				//checking the filter on the answer does not always work due to cname redirects (type 5 responses)
 				//therefore we just check the filter on the query host and thus we'll disallow also all cname redirects.
@@ -106,11 +125,17 @@ public class DNSResponsePatcher {
 
 				short clss = buf.getShort(); // query class
 
-				trafficLog(client, clss, type, queryHost,null,0);
+				trafficLog(ctx, clss, type, queryHost,null,0);
 			}
 
 			for (int i = 0; i < answerCount; i++) {
-				String host = readDomainName(buf, offs);
+				String host;
+				if (ctx.isParsed() && (response[buf.position()] & 0xFF) == 0xC0 && response[buf.position()+1] == 12) {
+					// pointer to the question name - already known
+					buf.position(buf.position()+2);
+					host = ctx.qHost;
+				} else
+					host = readDomainName(buf, offs);
 				short type = buf.getShort(); // type
 				short clss = buf.getShort(); // class
 				buf.getInt(); // TTL
@@ -137,6 +162,7 @@ public class DNSResponsePatcher {
 						String ip = InetAddress.getByAddress(answer).getHostAddress();
 						if (filterIP(ip)) {
 							filtered = true;
+							ctx.filtered = true;
 							if (type == 1) // IPV4
 								buf.put(ipv4_blocked);
 							else if (type == 28) // IPV6
@@ -147,6 +173,15 @@ public class DNSResponsePatcher {
 				if (!filtered)
 					buf.position(buf.position() + len); // go ahead
 
+				// CNAME targets are usually requested next - resolve them speculatively
+				if (type == 5 && !filter && ctx.isParsed() && DNSResponseCache.getInstance().isSpeculationActive()) {
+					int pos = buf.position();
+					buf.position(pos - len);
+					String target = readDomainName(buf, offs);
+					buf.position(pos);
+					DNSResponseCache.getInstance().speculate(target, ctx.qType, clss);
+				}
+
 				//log answer
 				if (TRAFFIC_LOG != null) {
 					byte[] answer = new byte[len];
@@ -158,14 +193,21 @@ public class DNSResponsePatcher {
 					else {
 						buf.get(answer);
 
+						if (TRAFFIC_LOG instanceof BinaryTrafficLog) {
+							// binary log stores the raw answer - converted to text only when rendered
+							((BinaryTrafficLog) TRAFFIC_LOG).log(ctx, clss, type, host, answer, null, len);
+							continue;
+						}
 						if (type == 1 || type == 28)
 							answerStr = InetAddress.getByAddress(answer).getHostAddress();
 						else
 							answerStr = getReadableStringFromBinary(answer,0,answer.length);
 					}
-					trafficLog(client, clss, type, host, answerStr, len);
+					trafficLog(ctx, clss, type, host, answerStr, len);
 				}
 			}
+			if (filter)
+				ctx.filtered = true;
 			return buf.array();
 		} catch (IOException eio) {
 			throw eio;
@@ -183,7 +225,9 @@ public class DNSResponsePatcher {
 		} else if (FILTER == null) {
 			result = false;
 		} else {
+			long start = System.nanoTime();
 			result = FILTER.contains(host);
+			FILTER_LOOKUP.recordSince(start);
 		}
 
 		if (log)
@@ -193,9 +237,17 @@ public class DNSResponsePatcher {
 	}
 
 
-	protected static void trafficLog(String client, short clss, short type, String host, String answer, int length) {
+	protected static void trafficLog(QueryContext ctx, short clss, short type, String host, String answer, int length) {
 		if (TRAFFIC_LOG == null)
 			return;
+		if (TRAFFIC_LOG instanceof BinaryTrafficLog) {
+			((BinaryTrafficLog) TRAFFIC_LOG).log(ctx, clss, type, host, null, answer, length);
+			return;
+		}
+		if (!TRAFFIC.isEnabled(Log.INFO))
+			return;
+		// written directly - the traffic logger is asynchronous itself and applies its own overflow policy
+		String client = ctx.getClientID();
 		if (answer != null)
 			TRAFFIC_LOG.logLine(client + ", "+ clss + ", A-" + type + ", " + host + ", " + answer + ", /Length:" + length);
 		else
@@ -208,22 +260,23 @@ public class DNSResponsePatcher {
 		boolean dynamicBlock = dnsfilter.android.DomCustosAPI.isSiteBlocked(host);
 		if (dynamicBlock) {
 			result = true; // Forçar bloqueio se na lista dinâmica
-			Logger.getLogger().logLine("FILTERED (API):" + host);
+			FILTER_LOG.info("FILTERED (API):{}").arg(host).log();
 			dnsfilter.android.DomCustosAPI.logActivity("doh_blocked_agent_rule", host, "DoH - Bloqueado");
 		} else {
 			if (result == true) {
-				Logger.getLogger().logLine("FILTERED:" + host);
+				FILTER_LOG.info("FILTERED:{}").arg(host).log();
 				dnsfilter.android.DomCustosAPI.logActivity("filtered", host, "DNS blocked");
 			} else {
-				Logger.getLogger().logLine("ALLOWED:" + host);
+				FILTER_LOG.info("ALLOWED:{}").arg(host).log();
 				dnsfilter.android.DomCustosAPI.logActivity("allowed", host, "DNS allowed");
 			}
 		}
 
 		if (result == false)
-			okCnt++;
+			okCnt.increment();
 		else
-			filterCnt++;
+			filterCnt.increment();
+		TopDomains.getInstance().record(host, result);
 	}
 
 
@@ -236,19 +289,31 @@ public class DNSResponsePatcher {
 			result = FILTER.contains("%IP%"+ip);
 
 		if (result) {
-			Logger.getLogger().logLine("FILTERED:" + ip);
+			FILTER_LOG.info("FILTERED:{}").arg(ip).log();
 			dnsfilter.android.DomCustosAPI.logActivity("filtered", ip, "IP blocked");
 		}
 
-		if (!result)
-			okCnt++;
-		else
-			filterCnt++;
+		if (!result)
+			okCnt.increment();
+		else
+			filterCnt.increment();
 
 		return result;
 	}
 
 
+	protected static void skipDomainName(ByteBuffer buf) {
+		int count = buf.get() & 0xFF;
+		while (count != 0) {
+			if ((count & 0xc0) != 0) { // pointer terminates the name
+				buf.get();
+				return;
+			}
+			buf.position(buf.position() + count);
+			count = buf.get() & 0xFF;
+		}
+	}
+
 	protected static String readDomainName(ByteBuffer buf, int offs) throws IOException {
 
 		byte[] substr = new byte[64];
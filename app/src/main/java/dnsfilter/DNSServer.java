@@ -39,9 +39,13 @@ import java.util.StringTokenizer;
 import java.util.Vector;
 
 import util.ExecutionEnvironment;
+import util.LatencyHistogram;
+import util.Log;
 import util.Logger;
+import util.Metrics;
 import util.conpool.Connection;
 import util.conpool.HttpProxy;
+import util.conpool.ResumingSSLSocketFactory;
 import util.http.HttpChunkedInputStream;
 import util.http.HttpHeader;
 
@@ -50,13 +54,20 @@ public class DNSServer {
     protected InetSocketAddress address;
     protected int timeout;
     protected long lastPerformance = -1;
-    protected static int bufSize=1024;
+    protected int largestResponse = 0; // largest response size received from this server
+    private LatencyHistogram latency = null;
+    protected static int bufSize=1024; // initial buffer size for requests - responses are sized per server
     protected static int maxBufSize= -1; //will be read in static initializer below
+    protected static int ednsUDPSize = 1232; // UDP payload size advertised via EDNS(0), 0 for disabled
+    protected static int tlsSessionCacheSize = 8; // per DoT / DoH destination
+    protected static int tlsSessionTimeout = 86400; // seconds
     public static final int UDP = 0; //Via UDP
     public static final int TCP = 1; //Via TCP
     public static final int DOT = 2; // DNS over TLS
     public static final int DOH = 3; // DNS of HTTPS
 
+    protected static final Log.Category LOG = Log.category("upstream");
+
     private static DNSServer INSTANCE = new DNSServer(null,0,0);
 
     protected static Proxy proxy = Proxy.NO_PROXY;
@@ -155,6 +166,14 @@ public class DNSServer {
 
     static void init(){
         Connection.setPoolTimeoutSeconds(30);
+        try {
+            int maxIdle = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("dnsConnectionPoolMaxIdle","8").trim());
+            int maxTotal = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("dnsConnectionPoolMaxTotal","0").trim());
+            Connection.setPoolLimits(maxIdle, maxTotal);
+        } catch (Exception e) {
+            Logger.getLogger().logLine("Exception during connection pool config access - using defaults!");
+            Logger.getLogger().logException(e);
+        }
         //load proxy
         try {
             boolean useProxy =  Boolean.parseBoolean(ConfigurationAccess.getLocal().getConfig().getProperty("resolveOverHttpProxy", "false"));
@@ -191,11 +210,43 @@ public class DNSServer {
             Logger.getLogger().logLine("Exception during MTU config access - using default 3000!");
             Logger.getLogger().logException(e);
         }
+
+        //load TLS session cache config
+        try {
+            tlsSessionCacheSize = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("tlsSessionCacheSize","8").trim());
+            tlsSessionTimeout = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("tlsSessionTimeout","86400").trim());
+        } catch (Exception e) {
+            Logger.getLogger().logLine("Exception during TLS session cache config access - using defaults!");
+            Logger.getLogger().logException(e);
+        }
+
+        //load EDNS(0) config
+        try {
+            ednsUDPSize = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("ednsUDPSize","1232").trim());
+            if (ednsUDPSize != 0)
+                ednsUDPSize = Math.min(Math.max(ednsUDPSize, 512), 65535);
+        } catch (Exception e) {
+            ednsUDPSize = 1232;
+            Logger.getLogger().logLine("Exception during EDNS config access - using default 1232!");
+            Logger.getLogger().logException(e);
+        }
+
+        //load UDP retransmission timeout config
+        try {
+            int minRTO = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("udpMinRetransmitTimeout","100").trim());
+            int maxRTO = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("udpMaxRetransmitTimeout","3000").trim());
+            int initialRTO = Integer.parseInt(ConfigurationAccess.getLocal().getConfig().getProperty("udpInitialRetransmitTimeout","1000").trim());
+            RTTEstimator.configure(minRTO, maxRTO, initialRTO);
+        } catch (Exception e) {
+            Logger.getLogger().logLine("Exception during retransmit timeout config access - using defaults!");
+            Logger.getLogger().logException(e);
+        }
     }
     
     public static void invalidateOpenConnections() {
         Connection.invalidate(); //invalidate all pooled TCP connections
         dnsfilter.UDP.invalidateAllUDPSessions();
+        ConnectionPrewarmer.getInstance().trigger();
     }
 
     public static int getProtoFromString(String s) throws IOException{
@@ -323,12 +374,34 @@ public class DNSServer {
 
     public String getProtocolName(){return "";}
 
+    // RTT estimation state for diagnostics - only available for UDP
+    public String getRTTInfo() {
+        return "";
+    }
+
+    // true in case requests are sent via pooled connections, which can be prewarmed - see ConnectionPrewarmer
+    public boolean isConnectionPooled() {
+        return false;
+    }
+
+    // TLS handshake statistics for diagnostics - only available for DoT and DoH
+    public String getTLSInfo() {
+        return "";
+    }
+
 
     @Override
     public String toString() {
         return "["+address.getAddress().getHostAddress()+"]::"+address.getPort()+"::"+getProtocolName();
     }
 
+    // latency of client requests resolved via this server - see DNSCommunicator.requestDNS
+    public LatencyHistogram getLatencyHistogram() {
+        if (latency == null)
+            latency = Metrics.histogram("upstream." + toString());
+        return latency;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null || ! (obj.getClass().equals(this.getClass())))
@@ -337,22 +410,21 @@ public class DNSServer {
        return address.equals(((DNSServer) obj).address);
     }
 
-    protected void readResponseFromStream(DataInputStream in, int size, DatagramPacket response) throws IOException {
+    protected void trackResponseSize(int size) {
+        if (size > largestResponse)
+            largestResponse = size; // only informational - races are acceptable
+    }
 
-        if (size + response.getOffset() > response.getData().length) { //existing buffer does not fit
-            synchronized (DNSServer.class) {
-                //Write access to static data, synchronization against the class is needed.
-                //Could be optimized in future by setting the buf size per DNSServer Instance and not static.
-                //However at the time the buffer is created, it is not known what will be the DNSServer used, because it be might be switched.
+    public int getLargestResponseSize() {
+        return largestResponse;
+    }
 
-                if (size + response.getOffset() < maxBufSize && bufSize < size+response.getOffset()) { //resize for future requests
-                    bufSize = Math.min(1024*(((size +response.getOffset()) / 1024) +1), maxBufSize);
-                    Logger.getLogger().logLine("BUFFER RESIZE:"+bufSize);
-                } else if (size + response.getOffset() >= maxBufSize ) throw new IOException("Max response buffer to small for response of length " + size);
+    protected void readResponseFromStream(DataInputStream in, int size, DatagramPacket response) throws IOException {
 
-                response.setData(new byte[bufSize],response.getOffset(),bufSize-response.getOffset());
-            }
-        }
+        if (size + response.getOffset() > response.getData().length) //existing buffer does not fit
+            response.setData(new byte[size + response.getOffset()],response.getOffset(),size);
+
+        trackResponseSize(size);
         try {
             in.readFully(response.getData(), response.getOffset(), size);
         } catch (IOException eio) {
@@ -387,6 +459,12 @@ public class DNSServer {
         return perf;
     }
 
+    // query for the root zone, which is always cached by the DNS server - used to warm up and keep alive connections
+    static DatagramPacket getKeepAliveRequest() {
+        byte[] request = buildDNSRequest(new String[0]);
+        return new DatagramPacket(request,request.length);
+    }
+
     private static DatagramPacket getRandomRequest() {
         int random = (int) Math.abs(Math.random()*Integer.MAX_VALUE);
         byte[] request = buildDNSRequest(new String[]{"www","t"+random,"org"});
@@ -429,8 +507,9 @@ public class DNSServer {
 
 class UDP extends DNSServer {
 
-    private static int UDP_RETRY_CNT = 10;
     private static HashSet  sessions = new HashSet<DatagramSocket>();
+    private RTTEstimator rtt = new RTTEstimator();
+    private TCP tcpFallbackServer = null;
 
     protected UDP(InetAddress address, int port, int timeout) {
         super(address, port, timeout);
@@ -450,11 +529,26 @@ class UDP extends DNSServer {
     @Override
     public String getProtocolName(){return "UDP";}
 
+    @Override
+    public String getRTTInfo() {
+        return rtt.toString();
+    }
+
     @Override
     public void resolve(DatagramPacket request, DatagramPacket response) throws IOException {
         boolean tcpFallback = false;
+
+        // advertise our UDP payload size via EDNS(0) in case the client did not
+        DatagramPacket upstreamRequest = request;
+        boolean optAdded = false;
+        if (ednsUDPSize > 0 && findOPT(request.getData(), request.getOffset(), request.getLength()) == -1) {
+            upstreamRequest = addOPT(request);
+            optAdded = upstreamRequest != request;
+        }
+
         //need to ensure response as own data buffer in order to not overwrite the request, which  might still be needed in case of TCP fallback
-        response.setData(new byte[bufSize],response.getOffset(),bufSize-response.getOffset());
+        int rcvBufSize = getReceiveBufferSize();
+        response.setData(new byte[response.getOffset() + rcvBufSize],response.getOffset(),rcvBufSize);
 
         DatagramSocket socket = new DatagramSocket();
         synchronized (sessions) {
@@ -462,36 +556,62 @@ class UDP extends DNSServer {
         }
         ExecutionEnvironment.getEnvironment().protectSocket(socket,1);
 
+        QueryTrace trace = QueryTrace.current();
         try {
-            request.setSocketAddress(address);
-            socket.setSoTimeout(timeout/UDP_RETRY_CNT );
+            upstreamRequest.setSocketAddress(address);
+            long start = System.currentTimeMillis();
             int retry = 0;
-            while (retry < UDP_RETRY_CNT ) {
+            while (true) {
+                // retransmission timeout derived from the measured RTT with exponential backoff, within the total timeout
+                long remaining = timeout - (System.currentTimeMillis() - start);
+                if (remaining <= 0)
+                    throw new IOException("No DNS response from " + address);
+                int rto = (int) Math.max(Math.min(rtt.getRTO(retry), remaining), 1);
+                socket.setSoTimeout(rto);
+                if (trace != null)
+                    trace.event(QueryTrace.ATTEMPT, "udp #" + (retry + 1) + ", timeout " + rto + "ms");
+
+                long sent = System.currentTimeMillis();
                 try {
-                    socket.send(request);
+                    socket.send(upstreamRequest);
                 } catch (IOException eio) {
                     throw new IOException("Cannot reach " + address + "!" + eio.getMessage());
                 }
                 try {
                     socket.receive(response);
-                    if (isTruncatedResponse(response)) {
+                    if (trace != null)
+                        trace.event(QueryTrace.RESPONSE, response.getLength() + " bytes");
+                    if (retry == 0) // Karn's rule - no samples from retransmitted requests
+                        rtt.addSample(System.currentTimeMillis() - sent);
+
+                    boolean bufferExceeded = response.getLength() >= rcvBufSize;
+                    if (bufferExceeded) // response might be cut - use bigger buffer for future requests
+                        trackResponseSize(Math.min(response.getLength() * 2, 65535));
+                    else
+                        trackResponseSize(response.getLength());
+
+                    if (bufferExceeded || isTruncatedResponse(response)) {
                         tcpFallback = true;
+                        if (trace != null)
+                            trace.event(QueryTrace.TCP_FALLBACK);
                         doTcpFallback(request, response);
-                    }
-                    checkResizeNeed(response);
+                    } else if (optAdded)
+                        stripOPT(response);
                     return;
                 } catch (IOException eio) {
 
                     if (tcpFallback)
                         throw eio;
 
+                    if (trace != null)
+                        trace.event(QueryTrace.TIMEOUT, eio.getMessage());
+
                     synchronized (sessions) {
                         if (!sessions.contains(socket))
                             throw new IOException("Sessions are closed due to network change!");
                     }
                     retry++;
-                    if (retry == UDP_RETRY_CNT )
-                        throw new IOException("No DNS response from " + address);
+                    rtt.retransmitted();
                 }
             }
         } finally {
@@ -502,47 +622,140 @@ class UDP extends DNSServer {
         }
     }
 
-    private void checkResizeNeed(DatagramPacket response) {
-        if (response.getOffset()+response.getLength() >= bufSize) {
-            synchronized (DNSServer.class) {
-                //Write access to static data, synchronization against the class is needed.
-                //Could be optimized in future by setting the buf size per DNSServer Instance and not static.
-                //However at the time the buffer is created, it is not known what will be the DNSServer used, because it be might be switched.
-
-                if (response.getOffset()+response.getLength() >= bufSize && bufSize < maxBufSize)  { //resize for future requests
-                    bufSize = (int) Math.min(bufSize*1.2, maxBufSize);
-                    Logger.getLogger().logLine("BUFFER RESIZE:"+bufSize);
-                } else if (bufSize >= maxBufSize )
-                    Logger.getLogger().logLine("MAX BUFFER SIZE reached:"+bufSize);
+    // receive buffer sized for the advertised payload size and the largest response seen from this server
+    private int getReceiveBufferSize() {
+        return Math.min(Math.max(Math.max(ednsUDPSize, 512), largestResponse) + 1, 65536);
+    }
 
-                response.setData(new byte[bufSize],response.getOffset(),bufSize-response.getOffset());
-            }
+    private TCP getTcpFallbackServer() throws IOException {
+        TCP tcp = tcpFallbackServer;
+        if (tcp == null) {
+            tcp = new TCP(address.getAddress(), address.getPort(), timeout, false, null);
+            tcpFallbackServer = tcp;
         }
+        return tcp;
     }
 
     private void doTcpFallback(DatagramPacket request, DatagramPacket response) throws IOException {
-        Logger.getLogger().logLine("Truncated UDP response - fallback to TCP!");
-        new TCP(address.getAddress(), address.getPort(), timeout, false, null).resolve(request, response);
+        LOG.debug("Truncated UDP response - fallback to TCP!").log();
+        // TCP connections are pooled - see Connection.connect
+        getTcpFallbackServer().resolve(request, response);
     }
 
     private boolean isTruncatedResponse(DatagramPacket response) {
         return ((response.getData()[response.getOffset()+2] & 0XFF) & 2) == 2;
     }
+
+    // returns the absolute position of the OPT record in the additional section or -1 if there is none
+    static int findOPT(byte[] data, int offs, int length) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data, offs, length);
+            buf.position(offs + 4);
+            int qdCount = buf.getShort() & 0xFFFF;
+            int rrCount = (buf.getShort() & 0xFFFF) + (buf.getShort() & 0xFFFF);
+            int arCount = buf.getShort() & 0xFFFF;
+
+            for (int i = 0; i < qdCount; i++) {
+                DNSResponsePatcher.skipDomainName(buf);
+                buf.position(buf.position() + 4);
+            }
+            for (int i = 0; i < rrCount + arCount; i++) {
+                int rrStart = buf.position();
+                DNSResponsePatcher.skipDomainName(buf);
+                int type = buf.getShort();
+                if (type == 41 && i >= rrCount)
+                    return rrStart;
+                buf.position(buf.position() + 6); // class and TTL
+                int rdLen = buf.getShort() & 0xFFFF;
+                buf.position(buf.position() + rdLen);
+            }
+        } catch (RuntimeException e) {
+            // invalid message - nothing found
+        }
+        return -1;
+    }
+
+    static DatagramPacket addOPT(DatagramPacket request) {
+        int len = request.getLength();
+        if (len < 12)
+            return request;
+
+        byte[] data = new byte[len + 11];
+        System.arraycopy(request.getData(), request.getOffset(), data, 0, len);
+        int arCount = (((data[10] & 0xFF) << 8) | (data[11] & 0xFF)) + 1;
+        data[10] = (byte) (arCount >> 8);
+        data[11] = (byte) arCount;
+
+        // OPT record: root name, type 41, class = UDP payload size, extended RCODE/flags 0, no options
+        int pos = len;
+        data[pos++] = 0;
+        data[pos++] = 0;
+        data[pos++] = 41;
+        data[pos++] = (byte) (ednsUDPSize >> 8);
+        data[pos++] = (byte) ednsUDPSize;
+        // remaining 6 bytes (TTL and RDLEN) are 0
+        return new DatagramPacket(data, 0, data.length);
+    }
+
+    // removes the OPT record added by us from the response, as the client did not send one
+    // responses exceeding 512 bytes are truncated then, so the client retries via TCP (RFC 6891 section 7)
+    static void stripOPT(DatagramPacket response) {
+        byte[] data = response.getData();
+        int offs = response.getOffset();
+        int len = response.getLength();
+        int optPos = findOPT(data, offs, len);
+        if (optPos == -1)
+            return;
+
+        ByteBuffer buf = ByteBuffer.wrap(data, offs, len);
+        buf.position(optPos);
+        DNSResponsePatcher.skipDomainName(buf);
+        buf.position(buf.position() + 8);
+        int optEnd = buf.position() + (buf.getShort() & 0xFFFF) + 2;
+
+        System.arraycopy(data, optEnd, data, optPos, offs + len - optEnd);
+        int arCount = (((data[offs + 10] & 0xFF) << 8) | (data[offs + 11] & 0xFF)) - 1;
+        data[offs + 10] = (byte) (arCount >> 8);
+        data[offs + 11] = (byte) arCount;
+        response.setLength(len - (optEnd - optPos));
+        if (response.getLength() > 512)
+            truncate(response);
+    }
+
+    // cuts the response behind the question section and sets the TC flag
+    private static void truncate(DatagramPacket response) {
+        byte[] data = response.getData();
+        int offs = response.getOffset();
+        ByteBuffer buf = ByteBuffer.wrap(data, offs, response.getLength());
+        buf.position(offs + 4);
+        int qdCount = buf.getShort() & 0xFFFF;
+        buf.position(offs + 12);
+        for (int i = 0; i < qdCount; i++) {
+            DNSResponsePatcher.skipDomainName(buf);
+            buf.position(buf.position() + 4);
+        }
+        data[offs + 2] = (byte) (data[offs + 2] | 2);
+        for (int i = 6; i < 12; i++)
+            data[offs + i] = 0;
+        response.setLength(buf.position() - offs);
+    }
 }
 
 class TCP extends DNSServer {
     boolean ssl;
+    ResumingSSLSocketFactory sslSocketFactory = null;
 
     protected TCP(InetAddress address, int port, int timeout, boolean ssl, String hostName) throws IOException {
         super(address, port, timeout);
         this.ssl = ssl;
-
         if (hostName != null) {
             if (hostName.indexOf("://")!= -1)
                 throw new IOException("Invalid hostname specified for "+getProtocolName()+": "+hostName);
 
             this.address = new InetSocketAddress(InetAddress.getByAddress(hostName, address.getAddress()), port);
         }
+        if (ssl)
+            sslSocketFactory = ResumingSSLSocketFactory.getFactory(this.address.getHostName(), port, tlsSessionCacheSize, tlsSessionTimeout);
     }
 
     @Override
@@ -551,12 +764,27 @@ class TCP extends DNSServer {
         else return "TCP";
     }
 
+    @Override
+    public boolean isConnectionPooled() {
+        return true;
+    }
+
+    @Override
+    public String getTLSInfo() {
+        if (sslSocketFactory != null)
+            return sslSocketFactory.toString();
+        return "";
+    }
+
     @Override
     public void resolve(DatagramPacket request, DatagramPacket response) throws IOException {
 
-        Connection con = Connection.connect(address, timeout, ssl, null, proxy);
+        QueryTrace trace = QueryTrace.current();
+        Connection con = Connection.connect(address, timeout, ssl, sslSocketFactory, proxy);
         for (int i = 0; i < 2; i++) { //retry once in case of EOFException (pooled connection was already closed)
             con.setSoTimeout(timeout);
+            if (trace != null)
+                trace.event(QueryTrace.ATTEMPT, (ssl ? "tls" : "tcp") + " #" + (i + 1));
             try {
                 DataInputStream in = new DataInputStream(con.getInputStream());
                 DataOutputStream out = new DataOutputStream(con.getOutputStream());
@@ -565,14 +793,18 @@ class TCP extends DNSServer {
                 out.flush();
                 int size = in.readShort();
                 readResponseFromStream(in, size, response);
+                if (trace != null)
+                    trace.event(QueryTrace.RESPONSE, response.getLength() + " bytes");
                 response.setSocketAddress(address);
                 con.release(true);
                 return;
             } catch (EOFException eof) {
-                if (i == 0)
+                if (i == 0) {
                     // pooled connection was closed in between - refresh connection and retry!
+                    if (trace != null)
+                        trace.event(QueryTrace.RECONNECT);
                     con.refreshConnection();
-                else {
+                } else {
                     con.release(false);
                     throw new IOException("EOF when reading from " + this.toString(), eof); // retried already once, now throw exception
                 }
@@ -590,6 +822,7 @@ class DoH extends DNSServer {
     String urlHost;
     String reqTemplate;
     InetSocketAddress urlHostAddress;
+    ResumingSSLSocketFactory sslSocketFactory;
 
     protected DoH(InetAddress address, int port, int timeout, String url) throws IOException {
         super(address, port, timeout);
@@ -600,11 +833,22 @@ class DoH extends DNSServer {
         this.url= url;
         buildTemplate();
         urlHostAddress = new InetSocketAddress(InetAddress.getByAddress(urlHost, address.getAddress()), port);
+        sslSocketFactory = ResumingSSLSocketFactory.getFactory(urlHost, port, tlsSessionCacheSize, tlsSessionTimeout);
     }
 
     @Override
     public String getProtocolName(){return "DOH";}
 
+    @Override
+    public boolean isConnectionPooled() {
+        return true;
+    }
+
+    @Override
+    public String getTLSInfo() {
+        return sslSocketFactory.toString();
+    }
+
     private void buildTemplate() throws IOException {
         String user_agent= "Mozilla/5.0 ("+System.getProperty("os.name")+"; "+System.getProperty("os.version")+")";
         HttpHeader REQ_TEMPLATE = new HttpHeader(HttpHeader.REQUEST_HEADER);
@@ -628,11 +872,14 @@ class DoH extends DNSServer {
 
         byte[] reqHeader = buildRequestHeader(request.getLength());
 
-        Connection con = Connection.connect(urlHostAddress, timeout, true, null, proxy);
+        QueryTrace trace = QueryTrace.current();
+        Connection con = Connection.connect(urlHostAddress, timeout, true, sslSocketFactory, proxy);
         con.setSoTimeout(timeout);
 
         for (int i = 0; i<2; i++) { //retry once in case of EOFException (pooled connection was already closed)
 
+            if (trace != null)
+                trace.event(QueryTrace.ATTEMPT, "doh #" + (i + 1));
             try {
                 OutputStream out = con.getOutputStream();
                 InputStream in = con.getInputStream();
@@ -667,14 +914,18 @@ class DoH extends DNSServer {
                     in = new ByteArrayInputStream(buf,0, size);
                 }
                 readResponseFromStream(new DataInputStream(in), size, response);
+                if (trace != null)
+                    trace.event(QueryTrace.RESPONSE, response.getLength() + " bytes");
                 response.setSocketAddress(address);
                 con.release(reuse && !responseHeader.getConnectionClose());
                 return;
             } catch (EOFException eof) {
-                if (i == 0)
+                if (i == 0) {
                     // pooled connection was closed in between - refresh connection and retry!
+                    if (trace != null)
+                        trace.event(QueryTrace.RECONNECT);
                     con.refreshConnection();
-                else {
+                } else {
                     con.release(false);
                     throw new IOException("EOF when reading from " + this.toString(), eof); // retried already once, now throw exception
                 }
@@ -0,0 +1,281 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+
+import ip.IPPacket;
+import util.FlightRecorderEvents;
+
+/**
+ * Per query state, parsed once when the request arrives and then handed through all stages
+ * (local resolver, filter, upstream, response patcher and logging).
+ * Instances are pooled - obtain() / release() - in order to avoid per query allocations.
+ */
+public class QueryContext {
+
+	// timing marks (System.nanoTime() based)
+	public static final int T_RECEIVED = 0;
+	public static final int T_PARSED = 1;
+	public static final int T_LOCAL_RESOLVED = 2;
+	public static final int T_UPSTREAM_START = 3;
+	public static final int T_UPSTREAM_DONE = 4;
+	public static final int T_PATCHED = 5;
+	public static final int T_RESPONDED = 6;
+	private static final int MARK_COUNT = 7;
+
+	private static final int POOL_SIZE = 64;
+	private static final QueryContext[] POOL = new QueryContext[POOL_SIZE];
+	private static int poolCnt = 0;
+
+	// raw request
+	byte[] data;
+	int offs;
+	int length;
+
+	// header
+	int id;
+	int rqFlgs;
+	int resFlgs;
+	int qdCount;
+	int anCount;
+	int nsCount;
+	int arCount;
+
+	// question (first entry only)
+	boolean parsed = false;
+	Exception parseError = null;
+	String qHost;
+	short qType;
+	short qClass;
+	int questionEnd; // absolute offset within data directly behind the question section
+
+	// final verdict - set by the local resolver or the response patcher
+	boolean filtered = false;
+
+	// client
+	private int[] clientIP;
+	private int clientPort;
+	private SocketAddress clientAdr;
+	private String clientID;
+
+	private long[] marks = new long[MARK_COUNT];
+	private QueryTrace trace = null; // only set for sampled queries - see QueryTrace
+	FlightRecorderEvents.Event jfrEvent = null; // only set while a flight recording is running
+	private byte[] nameBuf = new byte[256];
+
+	public static QueryContext obtain() {
+		synchronized (POOL) {
+			if (poolCnt > 0) {
+				QueryContext ctx = POOL[--poolCnt];
+				POOL[poolCnt] = null;
+				return ctx;
+			}
+		}
+		return new QueryContext();
+	}
+
+	public void release() {
+		reset();
+		synchronized (POOL) {
+			if (poolCnt < POOL_SIZE)
+				POOL[poolCnt++] = this;
+		}
+	}
+
+	private void reset() {
+		if (trace != null) {
+			trace.finish(this);
+			trace = null;
+		} else if (marks[T_RECEIVED] != 0)
+			QueryTrace.retainSlow(this, marks);
+		jfrEvent = null;
+		data = null;
+		parsed = false;
+		parseError = null;
+		qHost = null;
+		filtered = false;
+		clientIP = null;
+		clientAdr = null;
+		clientID = null;
+		for (int i = 0; i < MARK_COUNT; i++)
+			marks[i] = 0;
+	}
+
+	public void init(byte[] data, int offs, int length) {
+		this.data = data;
+		this.offs = offs;
+		this.length = length;
+		marks[T_RECEIVED] = System.nanoTime();
+		trace = QueryTrace.sample(marks[T_RECEIVED]);
+		jfrEvent = FlightRecorderEvents.DNS_QUERY.begin();
+		try {
+			parse();
+		} catch (Exception e) {
+			parsed = false;
+			parseError = e;
+		}
+		mark(T_PARSED);
+	}
+
+	public void setClient(int[] ip, int port) {
+		clientIP = ip;
+		clientPort = port;
+		clientAdr = null;
+		clientID = null;
+	}
+
+	public void setClient(SocketAddress adr) {
+		clientAdr = adr;
+		clientIP = null;
+		clientID = null;
+	}
+
+	public String getClientID() {
+		if (clientID == null) {
+			if (clientIP != null) {
+				try {
+					clientID = IPPacket.int2ip(clientIP).getHostAddress() + ":" + clientPort;
+				} catch (UnknownHostException e) {
+					clientID = "<unknown>:" + clientPort; //can not happen for raw addresses
+				}
+			} else if (clientAdr != null)
+				clientID = clientAdr.toString();
+			else
+				clientID = "";
+		}
+		return clientID;
+	}
+
+	public void mark(int idx) {
+		marks[idx] = System.nanoTime();
+		if (trace != null)
+			trace.event(idx);
+	}
+
+	public QueryTrace getTrace() {
+		return trace;
+	}
+
+	public void trace(int event) {
+		if (trace != null)
+			trace.event(event);
+	}
+
+	public void trace(int event, String detail) {
+		if (trace != null)
+			trace.event(event, detail);
+	}
+
+	public long getMark(int idx) {
+		return marks[idx];
+	}
+
+	public boolean isStandardQuery() {
+		return (length >= 12 && (rqFlgs >> 3) == 0);
+	}
+
+	public boolean isParsed() {
+		return parsed;
+	}
+
+	public String getHost() {
+		return qHost;
+	}
+
+	public short getType() {
+		return qType;
+	}
+
+	public short getQClass() {
+		return qClass;
+	}
+
+	private void parse() throws IOException {
+
+		if (length < 12)
+			return; //not a valid message, incomplete header
+
+		id = readShort(offs);
+		rqFlgs = data[offs + 2] & 0xFF;
+		resFlgs = data[offs + 3] & 0xFF;
+		qdCount = readShort(offs + 4);
+		anCount = readShort(offs + 6);
+		nsCount = readShort(offs + 8);
+		arCount = readShort(offs + 10);
+
+		if (isStandardQuery() && qdCount > 0) {
+			int pos = readName(offs + 12);
+			if (pos + 4 > offs + length)
+				throw new IOException("Invalid DNS query - question truncated!");
+			qType = (short) readShort(pos);
+			qClass = (short) readShort(pos + 2);
+			questionEnd = pos + 4;
+			parsed = true;
+		}
+	}
+
+	private int readShort(int pos) {
+		return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+	}
+
+	// reads the name at pos into qHost and returns the position behind the name
+	private int readName(int pos) throws IOException {
+		int end = offs + length;
+		int nameLen = 0;
+		int ptrJumpPos = -1;
+		int jumps = 0;
+
+		while (true) {
+			if (pos >= end)
+				throw new IOException("Invalid DNS query - name exceeds message!");
+			int count = data[pos] & 0xFF;
+			if (count == 0) {
+				pos++;
+				break;
+			}
+			if ((count & 0xc0) == 0) {
+				if (pos + 1 + count > end || nameLen + count + 1 > nameBuf.length)
+					throw new IOException("Invalid DNS query - invalid label length!");
+				if (nameLen > 0)
+					nameBuf[nameLen++] = '.';
+				System.arraycopy(data, pos + 1, nameBuf, nameLen, count);
+				nameLen = nameLen + count;
+				pos = pos + 1 + count;
+			} else { // pointer
+				if (++jumps > 16)
+					throw new IOException("Invalid DNS query - too many compression pointers!");
+				if (ptrJumpPos == -1)
+					ptrJumpPos = pos + 2;
+				pos = offs + (readShort(pos) & 0x3fff);
+			}
+		}
+		qHost = new String(nameBuf, 0, nameLen);
+
+		if (ptrJumpPos != -1)
+			return ptrJumpPos;
+		return pos;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+import util.ExecutionEnvironment;
+import util.Logger;
+import util.StripedCounter;
+
+/**
+ * Query statistics per verdict (allowed / filtered) and query type in minute, hour and day buckets.
+ * Recording a query only increments a striped counter. The counters are rolled up into the buckets by the first
+ * query of each new minute (or by a read), hour and day buckets are persisted to a fixed size file hourly
+ * and on stop, so charts can be drawn without scanning the traffic log.
+ */
+public class QueryStatistics {
+
+	public static final int ALLOWED = 0;
+	public static final int FILTERED = 1;
+
+	public static final int MINUTES = 0;
+	public static final int HOURS = 1;
+	public static final int DAYS = 2;
+
+	// tracked query types - all others are counted as OTHER
+	private static final int[] TYPES = {1, 28, 65, 5, 12, 16, 15, 33};
+	public static final String[] TYPE_NAMES = {"A", "AAAA", "HTTPS", "CNAME", "PTR", "TXT", "MX", "SRV", "OTHER"};
+	private static final int TYPE_CNT = TYPE_NAMES.length;
+	public static final int CELLS = 2 * TYPE_CNT;
+
+	private static final int[] BUCKET_COUNT = {60, 168, 92}; // 1 hour of minutes, 1 week of hours, ~3 months of days
+	private static final long[] BUCKET_MILLIS = {60000L, 3600000L, 86400000L};
+
+	private static final int FILE_MAGIC = 0x44515331; // "DQS1"
+	private static final String FILE_NAME = "querystats.dat";
+
+	private static QueryStatistics INSTANCE = new QueryStatistics();
+
+	private StripedCounter[] counters = new StripedCounter[CELLS]; // since start
+	private long[] rolled = new long[CELLS]; // counter values already added to the buckets
+	private long[] totals = new long[CELLS]; // all time - persisted
+	private long curMinute;
+	private volatile long nextRollup; // start of the next minute (millis)
+	private long lastSavedHour;
+	private boolean loaded = false;
+
+	// per resolution: bucket number (time / bucket millis) and counts, used as ring
+	private long[][] bucketNumbers = new long[3][];
+	private int[][][] buckets = new int[3][][];
+
+	public static QueryStatistics getInstance() {
+		return INSTANCE;
+	}
+
+	private QueryStatistics() {
+		for (int i = 0; i < CELLS; i++)
+			counters[i] = new StripedCounter();
+		for (int r = 0; r < 3; r++) {
+			bucketNumbers[r] = new long[BUCKET_COUNT[r]];
+			buckets[r] = new int[BUCKET_COUNT[r]][CELLS];
+		}
+		curMinute = currentMinute();
+		lastSavedHour = curMinute / 60;
+		nextRollup = System.currentTimeMillis() + 60000 - System.currentTimeMillis() % 60000;
+	}
+
+	public static int cell(int verdict, int qType) {
+		int t = 0;
+		while (t < TYPES.length && TYPES[t] != qType)
+			t++;
+		return verdict * TYPE_CNT + t;
+	}
+
+	public static int getVerdict(int cell) {
+		return cell / TYPE_CNT;
+	}
+
+	public static String getTypeName(int cell) {
+		return TYPE_NAMES[cell % TYPE_CNT];
+	}
+
+	public void record(int verdict, int qType) {
+		if (System.currentTimeMillis() >= nextRollup)
+			rollup(currentMinute());
+		counters[cell(verdict, qType)].increment();
+	}
+
+	// local time - day buckets start at local midnight
+	private static long currentMinute() {
+		long now = System.currentTimeMillis();
+		return (now + TimeZone.getDefault().getOffset(now)) / 60000;
+	}
+
+	// adds the counts since the last rollup to the buckets of the current minute and switches to the given minute
+	private synchronized void rollup(long minute) {
+		long cur = curMinute;
+		for (int i = 0; i < CELLS; i++) {
+			long sum = counters[i].sum();
+			int delta = (int) (sum - rolled[i]);
+			rolled[i] = sum;
+			if (delta != 0) {
+				totals[i] += delta;
+				for (int r = 0; r < 3; r++)
+					getBucket(r, cur * 60000 / BUCKET_MILLIS[r], true)[i] += delta;
+			}
+		}
+		if (minute > cur) {
+			curMinute = minute;
+			long now = System.currentTimeMillis();
+			nextRollup = now + 60000 - now % 60000; // time zone offsets are full minutes
+			if (minute / 60 != lastSavedHour) {
+				lastSavedHour = minute / 60;
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						save();
+					}
+				}, "QueryStatisticsSave").start();
+			}
+		}
+	}
+
+	private int[] getBucket(int resolution, long number, boolean create) {
+		int idx = (int) (number % BUCKET_COUNT[resolution]);
+		if (bucketNumbers[resolution][idx] != number) {
+			if (!create)
+				return null;
+			bucketNumbers[resolution][idx] = number;
+			int[] counts = buckets[resolution][idx];
+			for (int i = 0; i < CELLS; i++)
+				counts[i] = 0;
+		}
+		return buckets[resolution][idx];
+	}
+
+	/**
+	 * Returns the buckets of the given resolution (MINUTES, HOURS, DAYS) within the time range, oldest first.
+	 * Each row: bucket start time (millis, UTC), followed by the counts per cell - see cell(verdict, qType).
+	 * Buckets without queries are included with zero counts.
+	 */
+	public synchronized long[][] getBuckets(int resolution, long from, long to) {
+		rollup(currentMinute()); // advance to now - buckets after an idle period are included
+		long now = System.currentTimeMillis();
+		long offset = TimeZone.getDefault().getOffset(now);
+		long last = curMinute * 60000 / BUCKET_MILLIS[resolution];
+		long first = Math.max((from + offset) / BUCKET_MILLIS[resolution], last - BUCKET_COUNT[resolution] + 1);
+		last = Math.min(last, (to + offset) / BUCKET_MILLIS[resolution]);
+
+		ArrayList<long[]> result = new ArrayList<long[]>();
+		for (long number = Math.max(first, 0); number <= last; number++) {
+			long[] row = new long[CELLS + 1];
+			row[0] = number * BUCKET_MILLIS[resolution] - offset;
+			int[] counts = getBucket(resolution, number, false);
+			if (counts != null)
+				for (int i = 0; i < CELLS; i++)
+					row[i + 1] = counts[i];
+			result.add(row);
+		}
+		return result.toArray(new long[result.size()][]);
+	}
+
+	// all time counts per cell
+	public synchronized long[] getTotals() {
+		rollup(curMinute);
+		return totals.clone();
+	}
+
+	private static File getFile() {
+		return new File(ExecutionEnvironment.getEnvironment().getWorkDir() + File.separator + FILE_NAME);
+	}
+
+	/**
+	 * Writes totals and buckets to the statistics file.
+	 * Format: magic, cell count, totals (long per cell), then for minutes, hours and days all buckets of the ring:
+	 * bucket number (long) and counts (int per cell).
+	 */
+	public void save() {
+		long[] totals;
+		long[][] numbers = new long[3][];
+		int[][][] counts = new int[3][][];
+		synchronized (this) {
+			rollup(curMinute);
+			totals = this.totals.clone();
+			for (int r = 0; r < 3; r++) {
+				numbers[r] = bucketNumbers[r].clone();
+				counts[r] = new int[BUCKET_COUNT[r]][];
+				for (int i = 0; i < BUCKET_COUNT[r]; i++)
+					counts[r][i] = buckets[r][i].clone();
+			}
+		}
+
+		File file = getFile();
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(CELLS);
+				for (int i = 0; i < CELLS; i++)
+					out.writeLong(totals[i]);
+				for (int r = 0; r < 3; r++) {
+					for (int b = 0; b < BUCKET_COUNT[r]; b++) {
+						out.writeLong(numbers[r][b]);
+						for (int i = 0; i < CELLS; i++)
+							out.writeInt(counts[r][b][i]);
+					}
+				}
+				out.flush();
+			} finally {
+				out.close();
+			}
+			synchronized (QueryStatistics.class) {
+				if ((file.exists() && !file.delete()) || !tmp.renameTo(file))
+					throw new IOException("Cannot replace " + file);
+			}
+		} catch (IOException e) {
+			Logger.getLogger().logLine("Cannot write query statistics: " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	// restores totals and buckets from the statistics file once - counts recorded before are kept
+	public void load() {
+		synchronized (this) {
+			if (loaded)
+				return;
+			loaded = true;
+		}
+		File file = getFile();
+		if (!file.exists())
+			return;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_MAGIC || in.readInt() != CELLS)
+					throw new IOException("Invalid statistics file!");
+				synchronized (this) {
+					for (int i = 0; i < CELLS; i++)
+						totals[i] += in.readLong();
+					for (int r = 0; r < 3; r++) {
+						for (int b = 0; b < BUCKET_COUNT[r]; b++) {
+							long number = in.readLong();
+							// newer buckets recorded since start win
+							int[] counts = null;
+							if (number != 0 && bucketNumbers[r][(int) (number % BUCKET_COUNT[r])] <= number)
+								counts = getBucket(r, number, true);
+							for (int i = 0; i < CELLS; i++) {
+								int cnt = in.readInt();
+								if (counts != null)
+									counts[i] += cnt;
+							}
+						}
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			Logger.getLogger().logLine("Cannot read query statistics: file truncated!");
+		} catch (IOException e) {
+			Logger.getLogger().logLine("Cannot read query statistics: " + e.getMessage());
+		}
+	}
+}
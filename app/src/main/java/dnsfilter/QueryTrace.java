@@ -0,0 +1,253 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Vector;
+
+/**
+ * Timeline of a single sampled query with nanosecond offsets relative to its receipt.
+ * Every n-th query gets a trace attached to its QueryContext - the timing marks of the context are recorded
+ * as events, further events (cache lookup, upstream server, attempts, TCP fallback, ...) are added by the stages.
+ * Stages without access to the context (DNSCommunicator, DNSServer) reach the trace via current(),
+ * which is only set while the upstream lookup of a traced query runs on the calling thread.
+ * Finished traces are kept in a ring of recent traces; traces above the slow threshold are additionally kept
+ * in a separate ring, so they are not evicted by the much more frequent fast ones.
+ * Unsampled queries above the slow threshold are retained as well (tail based) - their trace is built from the
+ * timing marks of the context when it is released, so it lacks the events of the stages.
+ * Unsampled fast queries only pay for a counter increment, a time check and null checks.
+ */
+public class QueryTrace {
+
+	// events - the first ones correspond to the QueryContext timing marks
+	public static final int RECEIVED = QueryContext.T_RECEIVED;
+	public static final int PARSED = QueryContext.T_PARSED;
+	public static final int LOCAL_RESOLVED = QueryContext.T_LOCAL_RESOLVED;
+	public static final int UPSTREAM_START = QueryContext.T_UPSTREAM_START;
+	public static final int UPSTREAM_DONE = QueryContext.T_UPSTREAM_DONE;
+	public static final int PATCHED = QueryContext.T_PATCHED;
+	public static final int RESPONDED = QueryContext.T_RESPONDED;
+	public static final int ENQUEUED = 7;
+	public static final int DEQUEUED = 8;
+	public static final int CACHE_HIT = 9;
+	public static final int CACHE_MISS = 10;
+	public static final int CACHE_STALE = 11;
+	public static final int SERVER = 12;
+	public static final int ATTEMPT = 13;
+	public static final int TIMEOUT = 14;
+	public static final int RESPONSE = 15;
+	public static final int TCP_FALLBACK = 16;
+	public static final int RECONNECT = 17;
+	public static final int ERROR = 18;
+
+	private static final String[] EVENT_NAMES = {
+			"received", "parsed", "local resolved", "upstream start", "upstream done", "patched", "responded",
+			"enqueued", "dequeued", "cache hit", "cache miss", "serve stale", "server", "attempt", "timeout",
+			"response", "tcp fallback", "reconnect", "error"
+	};
+
+	private static final int MAX_EVENTS = 32;
+
+	private static int sampleRate = 0; // 1 out of sampleRate queries is traced, 0 disables tracing
+	private static long slowThreshold = 1000000000L; // ns
+	private static int sampleCnt = 0; // not synchronized - the exact sampling rate does not matter
+
+	private static QueryTrace[] recent = new QueryTrace[0];
+	private static int recentPos = 0;
+	private static QueryTrace[] slow = new QueryTrace[0];
+	private static int slowPos = 0;
+
+	private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<QueryTrace>();
+
+	private long start;
+	private long startMillis;
+	private long duration;
+	private String host;
+	private short type;
+	private String client;
+	private int[] events = new int[MAX_EVENTS];
+	private long[] times = new long[MAX_EVENTS];
+	private String[] details = new String[MAX_EVENTS];
+	private int eventCnt = 0;
+	private int dropped = 0;
+	private boolean marksOnly = false; // built from the timing marks of an unsampled query
+
+	/**
+	 * rate: trace 1 out of rate queries, 0 disables tracing and 1 traces all queries.
+	 * slowMillis: traces taking at least slowMillis are retained in the slow ring.
+	 * bufferSize: number of traces kept per ring.
+	 */
+	public static synchronized void configure(int rate, int slowMillis, int bufferSize) {
+		sampleRate = Math.max(rate, 0);
+		slowThreshold = slowMillis * 1000000L;
+		bufferSize = sampleRate == 0 ? 0 : Math.max(bufferSize, 1);
+		if (recent.length != bufferSize) {
+			recent = new QueryTrace[bufferSize];
+			recentPos = 0;
+			slow = new QueryTrace[bufferSize];
+			slowPos = 0;
+		}
+	}
+
+	// returns a new trace in case the query shall be traced, otherwise null
+	static QueryTrace sample(long start) {
+		int rate = sampleRate;
+		if (rate == 0 || ++sampleCnt % rate != 0)
+			return null;
+		QueryTrace trace = new QueryTrace();
+		trace.start = start;
+		trace.startMillis = System.currentTimeMillis();
+		return trace;
+	}
+
+	// the trace of the query whose upstream lookup is running on the current thread, or null
+	public static QueryTrace current() {
+		if (sampleRate == 0)
+			return null;
+		return CURRENT.get();
+	}
+
+	void attach() {
+		CURRENT.set(this);
+	}
+
+	void detach() {
+		CURRENT.set(null);
+	}
+
+	public void event(int event) {
+		event(event, null);
+	}
+
+	public synchronized void event(int event, String detail) {
+		if (eventCnt == MAX_EVENTS) {
+			dropped++;
+			return;
+		}
+		events[eventCnt] = event;
+		times[eventCnt] = System.nanoTime() - start;
+		details[eventCnt] = detail;
+		eventCnt++;
+	}
+
+	// called when the query context is released - retains the trace
+	void finish(QueryContext ctx) {
+		synchronized (this) {
+			duration = System.nanoTime() - start;
+			host = ctx.getHost();
+			type = ctx.getType();
+			client = ctx.getClientID();
+		}
+		synchronized (QueryTrace.class) {
+			if (recent.length == 0)
+				return; // disabled in between
+			recent[recentPos] = this;
+			recentPos = (recentPos + 1) % recent.length;
+			if (duration >= slowThreshold) {
+				slow[slowPos] = this;
+				slowPos = (slowPos + 1) % slow.length;
+			}
+		}
+	}
+
+	// called when the context of an unsampled query is released - retains a trace built from the marks if it was slow
+	static void retainSlow(QueryContext ctx, long[] marks) {
+		long duration = System.nanoTime() - marks[QueryContext.T_RECEIVED];
+		if (duration < slowThreshold || slow.length == 0)
+			return;
+
+		QueryTrace trace = new QueryTrace();
+		trace.start = marks[QueryContext.T_RECEIVED];
+		trace.startMillis = System.currentTimeMillis() - duration / 1000000;
+		trace.duration = duration;
+		trace.host = ctx.getHost();
+		trace.type = ctx.getType();
+		trace.client = ctx.getClientID();
+		trace.marksOnly = true;
+		// the marks are in pipeline order
+		for (int i = 0; i < marks.length; i++) {
+			if (marks[i] != 0) {
+				trace.events[trace.eventCnt] = i;
+				trace.times[trace.eventCnt] = marks[i] - trace.start;
+				trace.eventCnt++;
+			}
+		}
+		synchronized (QueryTrace.class) {
+			if (slow.length == 0)
+				return; // disabled in between
+			slow[slowPos] = trace;
+			slowPos = (slowPos + 1) % slow.length;
+		}
+	}
+
+	/**
+	 * Returns the retained traces, oldest first - only the slow ones in case slowOnly is true.
+	 * Each trace starts with a header line followed by one indented line per event.
+	 */
+	public static String[] dump(boolean slowOnly) {
+		Vector<QueryTrace> traces = new Vector<QueryTrace>();
+		synchronized (QueryTrace.class) {
+			addRing(traces, slow, slowPos);
+			if (!slowOnly)
+				addRing(traces, recent, recentPos);
+		}
+		// slow traces might be in both rings
+		Vector<QueryTrace> sorted = new Vector<QueryTrace>();
+		for (int i = 0; i < traces.size(); i++) {
+			QueryTrace trace = traces.elementAt(i);
+			int pos = sorted.size();
+			while (pos > 0 && sorted.elementAt(pos - 1).start > trace.start)
+				pos--;
+			if (pos == 0 || sorted.elementAt(pos - 1) != trace)
+				sorted.insertElementAt(trace, pos);
+		}
+		SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS");
+		Vector<String> lines = new Vector<String>();
+		for (int i = 0; i < sorted.size(); i++)
+			sorted.elementAt(i).format(lines, dateFormat);
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	private static void addRing(Vector<QueryTrace> traces, QueryTrace[] ring, int pos) {
+		for (int i = 0; i < ring.length; i++) {
+			QueryTrace trace = ring[(pos + i) % ring.length];
+			if (trace != null)
+				traces.add(trace);
+		}
+	}
+
+	private synchronized void format(Vector<String> lines, SimpleDateFormat dateFormat) {
+		lines.add(dateFormat.format(new Date(startMillis)) + ", " + client + ", " + host + ", " + type + ", " + formatNanos(duration)
+				+ (duration >= slowThreshold ? ", SLOW" : "") + (marksOnly ? ", not sampled" : "") + (dropped > 0 ? ", " + dropped + " events dropped" : ""));
+		for (int i = 0; i < eventCnt; i++)
+			lines.add("\t+" + formatNanos(times[i]) + " " + EVENT_NAMES[events[i]] + (details[i] != null ? ": " + details[i] : ""));
+	}
+
+	// ns as ms with microsecond precision
+	private static String formatNanos(long ns) {
+		long us = ns / 1000;
+		String frac = Long.toString(1000 + us % 1000).substring(1);
+		return us / 1000 + "." + frac + "ms";
+	}
+}
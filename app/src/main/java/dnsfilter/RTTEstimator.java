@@ -0,0 +1,93 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+/**
+ * Round trip time estimation for an upstream DNS server according to RFC 6298.
+ * The retransmission timeout is derived from the smoothed RTT and its variance and clamped to the configured bounds.
+ * Callers must only add samples for requests which were not retransmitted (Karn's rule).
+ */
+public class RTTEstimator {
+
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+	private static final int G = 10; // clock granularity in ms
+
+	private static int minRTO = 100;
+	private static int maxRTO = 3000;
+	private static int initialRTO = 1000;
+
+	private double srtt = -1;
+	private double rttvar = 0;
+	private int rto = initialRTO;
+	private long samples = 0;
+	private long retransmits = 0;
+
+	static void configure(int min, int max, int initial) {
+		minRTO = Math.max(min, 1);
+		maxRTO = Math.max(max, minRTO);
+		initialRTO = clamp(initial);
+	}
+
+	private static int clamp(double rto) {
+		return (int) Math.min(Math.max(rto, minRTO), maxRTO);
+	}
+
+	public synchronized int getRTO() {
+		if (samples == 0)
+			return initialRTO;
+		return rto;
+	}
+
+	// returns the timeout for the given retransmission (exponential backoff)
+	public int getRTO(int retransmission) {
+		long result = getRTO();
+		for (int i = 0; i < retransmission && result < maxRTO; i++)
+			result = result * 2;
+		return (int) Math.min(result, maxRTO);
+	}
+
+	public synchronized void addSample(long rtt) {
+		if (samples == 0) {
+			srtt = rtt;
+			rttvar = rtt / 2.0;
+		} else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+			srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+		}
+		samples++;
+		rto = clamp(srtt + Math.max(G, K * rttvar));
+	}
+
+	public synchronized void retransmitted() {
+		retransmits++;
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (samples == 0)
+			return "rto=" + initialRTO + "ms (no samples), retransmits=" + retransmits;
+		return "srtt=" + Math.round(srtt) + "ms, rttvar=" + Math.round(rttvar) + "ms, rto=" + rto + "ms, samples=" + samples + ", retransmits=" + retransmits;
+	}
+}
@@ -4,7 +4,6 @@ package dnsfilter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.StringTokenizer;
 
 
 public class SimpleDNSMessage {
@@ -17,6 +16,7 @@ public class SimpleDNSMessage {
 	String qHost;
 	short qType;
 	short qClass;
+	int questionEnd;
 
 	
 	public SimpleDNSMessage(byte[] data, int offs, int length) throws IOException {
@@ -37,9 +37,23 @@ public class SimpleDNSMessage {
 	        qHost =  DNSResponsePatcher.readDomainName(buf, buf.arrayOffset());
 	        qType = buf.getShort();
 	        qClass = buf.getShort();
+	        questionEnd = buf.position();
 		}		
 	}
 
+	// takes over the already parsed request from the query context - no further parsing needed
+	public SimpleDNSMessage(QueryContext ctx) {
+		this.data = ctx.data;
+		this.offs = ctx.offs;
+		this.length = ctx.length;
+		this.rqFlgs = ctx.rqFlgs;
+		this.resFlgs = ctx.resFlgs;
+		this.qHost = ctx.qHost;
+		this.qType = ctx.qType;
+		this.qClass = ctx.qClass;
+		this.questionEnd = ctx.questionEnd;
+	}
+
     public boolean isStandardQuery() {
 		return ( length >= 12 && (rqFlgs >> 3) == 0);
     }
@@ -47,84 +61,101 @@ public class SimpleDNSMessage {
     public Object[] getQueryData() {
     	return new Object[] {qHost, qType, qClass};    	
     }
-    
+
+    // immutable, precomputed answer resource record for a given IP and TTL
+    private static class AnswerRR {
+    	byte[] ip;
+    	int ttl;
+    	byte[] rr;
+
+    	AnswerRR(byte[] ip, int ttl, short type) {
+    		this.ip = ip;
+    		this.ttl = ttl;
+    		rr = new byte[12 + ip.length];
+    		rr[0] = (byte) 0xC0; //pointer to req host in question at offset 12
+    		rr[1] = 12;
+    		rr[2] = (byte) (type >> 8);
+    		rr[3] = (byte) type;
+    		rr[4] = 0;
+    		rr[5] = 1; // class IN, patched in case request uses different class
+    		rr[6] = (byte) (ttl >> 24);
+    		rr[7] = (byte) (ttl >> 16);
+    		rr[8] = (byte) (ttl >> 8);
+    		rr[9] = (byte) ttl;
+    		rr[10] = 0;
+    		rr[11] = (byte) ip.length;
+    		System.arraycopy(ip, 0, rr, 12, ip.length);
+    	}
+    }
+
+    private static volatile AnswerRR answerRR_A = null;
+    private static volatile AnswerRR answerRR_AAAA = null;
+
+    private static byte[] getAnswerRR(byte[] ip, int ttl, short type) {
+    	AnswerRR cached = (type == 28) ? answerRR_AAAA : answerRR_A;
+    	if (cached != null && cached.ip == ip && cached.ttl == ttl)
+    		return cached.rr;
+
+    	AnswerRR answer = new AnswerRR(ip, ttl, type);
+
+    	// only keep the blocked IPs precomputed - custom mappings vary per host
+    	if (ip == DNSResponsePatcher.ipv4_blocked && type == 1)
+    		answerRR_A = answer;
+    	else if (ip == DNSResponsePatcher.ipv6_blocked && type == 28)
+    		answerRR_AAAA = answer;
+
+    	return answer.rr;
+    }
+
+    // copies header and question of the request to the response, unless both share the same buffer and offset
+    private int copyHeaderAndQuestion(byte[] response, int offset) {
+    	int qLen = questionEnd - offs;
+    	if (response != data || offset != offs)
+    		System.arraycopy(data, offs, response, offset, qLen);
+    	return qLen;
+    }
+
+    private static void setCounts(byte[] response, int offset, int answerCount) {
+    	response[offset+4] = 0;
+    	response[offset+5] = 1; //Q-count
+    	response[offset+6] = 0;
+    	response[offset+7] = (byte) answerCount; // A-count
+    	response[offset+8] = 0;
+    	response[offset+9] = 0; // Auth-count
+    	response[offset+10] = 0;
+    	response[offset+11] = 0; //Add-count
+    }
+
     public int produceResponse(byte[] response, int offset,  byte[] ip, int ttl) {
-    	
-        System.arraycopy(data, offs, response, offset, length);
+
+    	// the question is already in the request bytes - just patch the header in place and append the answer
+    	int qLen = copyHeaderAndQuestion(response, offset);
+
     	//response[offset+2] = (byte) (((1<<7) + (response[offset+2] & 0b01111111)) | 0b00000100); // response flag and Authoritive answer
         response[offset+2] = (byte) ((1<<7) + (response[offset+2] & 0b01111111));
         response[offset+3] = (byte) (1<<7); //recursion available
+        setCounts(response, offset, 1);
 
-    	ByteBuffer buf = ByteBuffer.wrap(response, offset, response.length-offset);
-    	buf.position(offset+4);
-    	buf.putShort((short)1); //Q-count
-    	buf.putShort((short)1); // A-count
-    	buf.putShort((short)0); // Auth-count
-    	buf.putShort((short)0); //Add-count   	
-    	
-    	
-    	StringTokenizer chainElements = new StringTokenizer(qHost,".");
-    	int count = chainElements.countTokens();
-    	
-    	//QUESTION
-    	
-    	//set request host
-        for (int i = 0; i < count; i++) {        	
-        	String element = chainElements.nextToken();
-            buf.put((byte)(element.length() & 0xFF));
-            buf.put(element.getBytes());
-        }
-        buf.put((byte)0);
-        
-        //Query type and class
-        buf.putShort(qType); // Q-Type:1
-        buf.putShort(qClass); // Q-Class:1
-        
-        
         //ANSWER
-        
-        short ptr = (short)((short)0xC0 << 8) +12;
-        buf.putShort(ptr);  //pointer to req host
-        buf.putShort(qType); // Q-Type
-        buf.putShort(qClass); // Q-Class
-        buf.putInt(ttl); //TTL
-        buf.putShort((short)ip.length); // IP Len
-        buf.put(ip);
-        
-        return buf.position()- offset;    	
+        byte[] rr = getAnswerRR(ip, ttl, qType);
+        int pos = offset + qLen;
+        System.arraycopy(rr, 0, response, pos, rr.length);
+        if (qClass != 1) {
+        	response[pos+4] = (byte) (qClass >> 8);
+        	response[pos+5] = (byte) qClass;
+        }
+        return qLen + rr.length;
     }
 
 	public int get_NonTyp_1_28_FilterResponse(byte[] response, int offset) {
 
-		System.arraycopy(data, offs, response, offset, length);
+		int qLen = copyHeaderAndQuestion(response, offset);
+
 		//response[offset+2] = (byte) (((1<<7) + (response[offset+2] & 0b01111111)) | 0b00000100); // response flag and Authoritive answer
 		response[offset+2] = (byte) ((1<<7) + (response[offset+2] & 0b01111111));
 		response[offset+3] = (byte) 0b10000101; // Recursion available + 5 (refused for policy reasons)
+		setCounts(response, offset, 0);
 
-		ByteBuffer buf = ByteBuffer.wrap(response, offset, response.length-offset);
-		buf.position(offset+4);
-		buf.putShort((short)1); //Q-count
-		buf.putShort((short)0); // A-count
-		buf.putShort((short)0); // Auth-count
-		buf.putShort((short)0); //Add-count
-
-		StringTokenizer chainElements = new StringTokenizer(qHost,".");
-		int count = chainElements.countTokens();
-
-		//QUESTION
-
-		//set request host
-		for (int i = 0; i < count; i++) {
-			String element = chainElements.nextToken();
-			buf.put((byte)(element.length() & 0xFF));
-			buf.put(element.getBytes());
-		}
-		buf.put((byte)0);
-
-		//Query type and class
-		buf.putShort(qType); // Q-Type:1
-		buf.putShort(qClass); // Q-Class:1
-
-		return buf.position()- offset;
+		return qLen;
 	}
 }
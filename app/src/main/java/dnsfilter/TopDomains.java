@@ -0,0 +1,117 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import util.SpaceSaving;
+import util.Utils;
+
+/**
+ * Top allowed and filtered domains per hour with bounded memory.
+ * Each filter decision is counted in a Space-Saving sketch keyed by the 64 bit host hash, the sketches are
+ * snapshot at each full hour and the snapshots of the last 24 hours are kept. Tops over several hours are
+ * computed by merging the snapshots.
+ */
+public class TopDomains {
+
+	public static final int CAPACITY = 128; // ~7 KB per sketch
+	private static final int WINDOWS = 24;
+	private static final long WINDOW_MILLIS = 3600000;
+
+	private static TopDomains INSTANCE = new TopDomains();
+
+	private SpaceSaving[] current = {new SpaceSaving(CAPACITY), new SpaceSaving(CAPACITY)}; // allowed, filtered
+	private SpaceSaving.Snapshot[][] windows = new SpaceSaving.Snapshot[2][WINDOWS]; // ring of completed windows
+	private long[] windowStarts = new long[WINDOWS];
+	private long currentStart;
+	private volatile long nextWindow;
+
+	public static TopDomains getInstance() {
+		return INSTANCE;
+	}
+
+	private TopDomains() {
+		long now = System.currentTimeMillis();
+		currentStart = now - now % WINDOW_MILLIS;
+		nextWindow = currentStart + WINDOW_MILLIS;
+	}
+
+	public void record(String host, boolean filtered) {
+		if (System.currentTimeMillis() >= nextWindow)
+			roll();
+		current[filtered ? 1 : 0].offer(Utils.getLongStringHash(host.toLowerCase()), host);
+	}
+
+	private synchronized void roll() {
+		long now = System.currentTimeMillis();
+		if (now < nextWindow)
+			return; // rolled by another thread
+		int idx = (int) (currentStart / WINDOW_MILLIS % WINDOWS);
+		windowStarts[idx] = currentStart;
+		for (int i = 0; i < 2; i++)
+			windows[i][idx] = current[i].snapshotAndReset();
+		currentStart = now - now % WINDOW_MILLIS;
+		nextWindow = currentStart + WINDOW_MILLIS;
+	}
+
+	/**
+	 * Returns the top domains of the current hour and the completed hours before (up to 24 hours in total),
+	 * merged to one snapshot with CAPACITY entries.
+	 */
+	public synchronized SpaceSaving.Snapshot getTop(boolean filtered, int hours) {
+		if (System.currentTimeMillis() >= nextWindow)
+			roll();
+		int v = filtered ? 1 : 0;
+		SpaceSaving.Snapshot result = current[v].snapshot();
+		long from = currentStart - (Math.min(hours, WINDOWS) - 1) * WINDOW_MILLIS;
+		for (int i = 0; i < WINDOWS; i++) {
+			if (windows[v][i] != null && windowStarts[i] >= from && windowStarts[i] < currentStart)
+				result = SpaceSaving.Snapshot.merge(result, windows[v][i], CAPACITY);
+		}
+		return result;
+	}
+
+	// start of the last completed hour
+	public synchronized long getLastWindowStart() {
+		if (System.currentTimeMillis() >= nextWindow)
+			roll();
+		return currentStart - WINDOW_MILLIS;
+	}
+
+	// top domains of the last completed hour - empty if nothing was recorded
+	public synchronized SpaceSaving.Snapshot getLastWindow(boolean filtered) {
+		long start = getLastWindowStart();
+		int idx = (int) (start / WINDOW_MILLIS % WINDOWS);
+		SpaceSaving.Snapshot snapshot = windows[filtered ? 1 : 0][idx];
+		if (snapshot == null || windowStarts[idx] != start)
+			return SpaceSaving.Snapshot.empty();
+		return snapshot;
+	}
+
+	// top n entries formatted as "domain, count"
+	public static String[] format(SpaceSaving.Snapshot snapshot, int n) {
+		String[] result = new String[Math.min(n, snapshot.size())];
+		for (int i = 0; i < result.length; i++)
+			result[i] = snapshot.names[i] + ", " + snapshot.counts[i];
+		return result;
+	}
+}
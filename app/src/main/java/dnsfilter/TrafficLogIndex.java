@@ -0,0 +1,510 @@
+/*
+ DomCustosAgent 1.5
+ Copyright (C) 2017 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/DomCustosAgent
+ Contact:i.z@gmx.net
+ */
+
+package dnsfilter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Query engine for the rotating traffic log files (text and binary format).
+ * Each log file (segment) is indexed once: its time range, per entry arrays (time, offset, host, client, query flag)
+ * and a sorted domain hash index (hash -> entry). Records appended since the last query are indexed incrementally
+ * and rotated files are indexed from scratch.
+ * Queries only read the matching records from the files, aggregations only work on the in memory arrays.
+ * Files are read into heap buffers and not mapped, as the logger truncates them on rotation.
+ */
+public class TrafficLogIndex {
+
+	public static final int GROUP_BY_DOMAIN = 0;
+	public static final int GROUP_BY_CLIENT = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String TEXT_EXTENSION = ".log";
+	private static final int FINGERPRINT_LENGTH = 128;
+
+	private static HashMap<String, TrafficLogIndex> INSTANCES = new HashMap<String, TrafficLogIndex>();
+
+	private File logFolder;
+	private String name;
+	private HashMap<File, Segment> segments = new HashMap<File, Segment>();
+
+	private static class Segment {
+		File file;
+		boolean binary;
+		long fingerprint;
+		int fingerprintLength = 0; // number of bytes used for the fingerprint
+		long fileLength = 0;
+		long fileModified = 0;
+		int indexedLength = 0;
+		BinaryTrafficLog.Reader reader; // binary format - keeps dictionary and time between incremental updates
+		TextParser parser;
+
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		int count = 0;
+		long[] times = new long[1024];
+		int[] offsets = new int[1024];
+		int[] hostIds = new int[1024];
+		int[] clientIds = new int[1024];
+		boolean[] queries = new boolean[1024];
+
+		ArrayList<String> hosts = new ArrayList<String>();
+		HashMap<String, Integer> hostIdMap = new HashMap<String, Integer>();
+		ArrayList<String> clients = new ArrayList<String>();
+		HashMap<String, Integer> clientIdMap = new HashMap<String, Integer>();
+
+		long[] hashIndex = new long[1024]; // (domain hash << 32) | entry
+		boolean hashIndexSorted = true;
+
+		Segment(File file, boolean binary) {
+			this.file = file;
+			this.binary = binary;
+		}
+
+		void add(long time, int offset, String host, String client, boolean query) {
+			if (count == times.length) {
+				int size = count * 2;
+				times = Arrays.copyOf(times, size);
+				offsets = Arrays.copyOf(offsets, size);
+				hostIds = Arrays.copyOf(hostIds, size);
+				clientIds = Arrays.copyOf(clientIds, size);
+				queries = Arrays.copyOf(queries, size);
+				hashIndex = Arrays.copyOf(hashIndex, size);
+			}
+			host = host.toLowerCase();
+			times[count] = time;
+			offsets[count] = offset;
+			hostIds[count] = id(host, hosts, hostIdMap);
+			clientIds[count] = id(getClientAddress(client), clients, clientIdMap);
+			queries[count] = query;
+			hashIndex[count] = ((long) host.hashCode() << 32) | count;
+			hashIndexSorted = false;
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			count++;
+		}
+
+		private static int id(String s, ArrayList<String> names, HashMap<String, Integer> ids) {
+			Integer id = ids.get(s);
+			if (id == null) {
+				id = names.size();
+				names.add(s);
+				ids.put(s, id);
+			}
+			return id;
+		}
+
+		// entries for the given host in ascending order
+		int[] lookup(String host) {
+			if (!hashIndexSorted) {
+				Arrays.sort(hashIndex, 0, count);
+				hashIndexSorted = true;
+			}
+			long hash = host.hashCode();
+			int pos = Arrays.binarySearch(hashIndex, 0, count, hash << 32);
+			if (pos < 0)
+				pos = -pos - 1;
+			int[] result = new int[16];
+			int cnt = 0;
+			for (; pos < count && (hashIndex[pos] >> 32) == hash; pos++) {
+				int entry = (int) hashIndex[pos];
+				if (hosts.get(hostIds[entry]).equals(host)) { // hash collisions
+					if (cnt == result.length)
+						result = Arrays.copyOf(result, cnt * 2);
+					result[cnt++] = entry;
+				}
+			}
+			return Arrays.copyOf(result, cnt);
+		}
+
+		String readLine(FileChannel channel, int entry, SimpleDateFormat dateFormat) throws IOException {
+			// the entry ends before the next one
+			int start = offsets[entry];
+			int end = entry + 1 < count ? offsets[entry + 1] : indexedLength;
+			ByteBuffer buf = BinaryTrafficLog.Reader.read(channel, start, end - start);
+			if (binary) {
+				BinaryTrafficLog.Record r = reader.readEntryAt(buf, times[entry]);
+				return dateFormat.format(new Date(r.time)) + " " + r.toText();
+			}
+			int len = 0;
+			while (len < buf.limit() && buf.get(len) != '\r' && buf.get(len) != '\n')
+				len++;
+			return new String(buf.array(), 0, len, UTF_8);
+		}
+	}
+
+	// parser for the text format: "MM/dd/yyyy HH:mm:ss client, class, A|Q-type, host, answer..."
+	private static class TextParser {
+
+		private Calendar cal = Calendar.getInstance();
+		private String lastHour = null;
+		private long lastHourMillis;
+
+		// returns false if the line is no log entry (header, other log message)
+		boolean parse(Segment seg, String line, int offset) {
+			if (line.length() < 21 || line.charAt(2) != '/' || line.charAt(13) != ':')
+				return false;
+			try {
+				String hour = line.substring(0, 13);
+				if (!hour.equals(lastHour)) {
+					cal.clear();
+					cal.set(Integer.parseInt(line.substring(6, 10)), Integer.parseInt(line.substring(0, 2)) - 1, Integer.parseInt(line.substring(3, 5)), Integer.parseInt(line.substring(11, 13)), 0, 0);
+					lastHourMillis = cal.getTimeInMillis();
+					lastHour = hour;
+				}
+				long time = lastHourMillis + Integer.parseInt(line.substring(14, 16)) * 60000L + Integer.parseInt(line.substring(17, 19)) * 1000L;
+				int clientEnd = line.indexOf(", ", 20);
+				int clssEnd = clientEnd == -1 ? -1 : line.indexOf(", ", clientEnd + 2);
+				int typeEnd = clssEnd == -1 ? -1 : line.indexOf(", ", clssEnd + 2);
+				int hostEnd = typeEnd == -1 ? -1 : line.indexOf(", ", typeEnd + 2);
+				if (hostEnd == -1)
+					return false;
+				char kind = line.charAt(clssEnd + 2);
+				if (kind != 'Q' && kind != 'A')
+					return false;
+				seg.add(time, offset, line.substring(typeEnd + 2, hostEnd), line.substring(20, clientEnd), kind == 'Q');
+				return true;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+	}
+
+	public static synchronized TrafficLogIndex getInstance(String logFolderPath, String name) {
+		String key = logFolderPath + "/" + name;
+		TrafficLogIndex index = INSTANCES.get(key);
+		if (index == null) {
+			index = new TrafficLogIndex(logFolderPath, name);
+			INSTANCES.put(key, index);
+		}
+		return index;
+	}
+
+	private TrafficLogIndex(String logFolderPath, String name) {
+		this.logFolder = new File(logFolderPath + "/" + name);
+		this.name = name;
+	}
+
+	/**
+	 * Returns the log entries matching the given filters in chronological order (text format).
+	 * domain: exact host name, "*.domain" for the domain including its subdomains, or null for any domain.
+	 * client: client address (without port) or null for any client. from / to: time range in millis (inclusive).
+	 * If more than limit entries match, the latest ones are returned.
+	 */
+	public synchronized String[] find(String domain, String client, long from, long to, int limit) throws IOException {
+		refresh();
+		SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+		ArrayList<String> result = new ArrayList<String>();
+		Segment[] segs = getSegments(from, to);
+
+		// latest first until the limit is reached
+		for (int s = segs.length - 1; s >= 0 && result.size() < limit; s--) {
+			Segment seg = segs[s];
+			int[] entries = getEntries(seg, domain);
+			int clientId = getClientId(seg, client);
+			if (clientId == -1)
+				continue;
+			int cnt = entries == null ? seg.count : entries.length;
+			int found = result.size();
+			FileInputStream in = open(seg);
+			if (in == null)
+				continue; // rotated since the refresh
+			try {
+				for (int i = cnt - 1; i >= 0 && result.size() < limit; i--) {
+					int entry = entries == null ? i : entries[i];
+					if (seg.times[entry] >= from && seg.times[entry] <= to && (client == null || seg.clientIds[entry] == clientId))
+						result.add(seg.readLine(in.getChannel(), entry, dateFormat));
+				}
+				if (!isUnchanged(seg, in.getChannel()))
+					discard(result, found); // rotated while reading
+			} catch (IOException e) {
+				if (isUnchanged(seg, in.getChannel()))
+					throw e;
+				discard(result, found);
+			} finally {
+				in.close();
+			}
+		}
+		Collections.reverse(result);
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Returns the top n domains or clients (groupBy) by number of queries matching the given filters - see find.
+	 * Each result is formatted as "domain|client, count".
+	 */
+	public synchronized String[] top(int groupBy, String domain, String client, long from, long to, int n) throws IOException {
+		if (groupBy != GROUP_BY_DOMAIN && groupBy != GROUP_BY_CLIENT)
+			throw new IllegalArgumentException("Invalid groupBy: " + groupBy);
+		refresh();
+		HashMap<String, long[]> counts = new HashMap<String, long[]>();
+		Segment[] segs = getSegments(from, to);
+
+		for (int s = 0; s < segs.length; s++) {
+			Segment seg = segs[s];
+			int[] entries = getEntries(seg, domain);
+			int clientId = getClientId(seg, client);
+			if (clientId == -1)
+				continue;
+			int[] ids = groupBy == GROUP_BY_DOMAIN ? seg.hostIds : seg.clientIds;
+			int[] segCounts = new int[groupBy == GROUP_BY_DOMAIN ? seg.hosts.size() : seg.clients.size()];
+			int cnt = entries == null ? seg.count : entries.length;
+			for (int i = 0; i < cnt; i++) {
+				int entry = entries == null ? i : entries[i];
+				if (seg.queries[entry] && seg.times[entry] >= from && seg.times[entry] <= to && (client == null || seg.clientIds[entry] == clientId))
+					segCounts[ids[entry]]++;
+			}
+			ArrayList<String> names = groupBy == GROUP_BY_DOMAIN ? seg.hosts : seg.clients;
+			for (int i = 0; i < segCounts.length; i++) {
+				if (segCounts[i] != 0) {
+					long[] count = counts.get(names.get(i));
+					if (count == null)
+						counts.put(names.get(i), new long[] {segCounts[i]});
+					else
+						count[0] += segCounts[i];
+				}
+			}
+		}
+
+		ArrayList<Map.Entry<String, long[]>> sorted = new ArrayList<Map.Entry<String, long[]>>(counts.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+			@Override
+			public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+				long diff = e2.getValue()[0] - e1.getValue()[0];
+				return diff < 0 ? -1 : (diff > 0 ? 1 : e1.getKey().compareTo(e2.getKey()));
+			}
+		});
+		String[] result = new String[Math.min(n, sorted.size())];
+		for (int i = 0; i < result.length; i++)
+			result[i] = sorted.get(i).getKey() + ", " + sorted.get(i).getValue()[0];
+		return result;
+	}
+
+	// opens the file of the segment - null if it was rotated since it was indexed
+	private static FileInputStream open(Segment seg) throws IOException {
+		FileInputStream in;
+		try {
+			in = new FileInputStream(seg.file);
+		} catch (IOException e) {
+			return null;
+		}
+		if (isUnchanged(seg, in.getChannel()))
+			return in;
+		in.close();
+		return null;
+	}
+
+	private static boolean isUnchanged(Segment seg, FileChannel channel) throws IOException {
+		return channel.size() >= seg.indexedLength && fingerprint(channel, seg.fingerprintLength) == seg.fingerprint;
+	}
+
+	private static void discard(ArrayList<String> result, int size) {
+		while (result.size() > size)
+			result.remove(result.size() - 1);
+	}
+
+	// segments overlapping the time range, sorted by time
+	private Segment[] getSegments(long from, long to) {
+		ArrayList<Segment> result = new ArrayList<Segment>();
+		Iterator<Segment> it = segments.values().iterator();
+		while (it.hasNext()) {
+			Segment seg = it.next();
+			if (seg.count > 0 && seg.maxTime >= from && seg.minTime <= to)
+				result.add(seg);
+		}
+		Collections.sort(result, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment s1, Segment s2) {
+				return s1.minTime < s2.minTime ? -1 : (s1.minTime > s2.minTime ? 1 : 0);
+			}
+		});
+		return result.toArray(new Segment[result.size()]);
+	}
+
+	// entries matching the domain filter in ascending order - null for all entries
+	private static int[] getEntries(Segment seg, String domain) {
+		if (domain == null)
+			return null;
+		domain = domain.toLowerCase();
+		if (!domain.startsWith("*."))
+			return seg.lookup(domain);
+
+		// domain with subdomains - check the host table of the segment, then the entries
+		String suffix = domain.substring(1);
+		String base = domain.substring(2);
+		boolean[] matching = new boolean[seg.hosts.size()];
+		boolean any = false;
+		for (int i = 0; i < matching.length; i++) {
+			String host = seg.hosts.get(i);
+			matching[i] = host.endsWith(suffix) || host.equals(base);
+			any = any || matching[i];
+		}
+		if (!any)
+			return new int[0];
+		int[] result = new int[seg.count];
+		int cnt = 0;
+		for (int i = 0; i < seg.count; i++)
+			if (matching[seg.hostIds[i]])
+				result[cnt++] = i;
+		return Arrays.copyOf(result, cnt);
+	}
+
+	// -2 for no client filter, -1 if the client is not in the segment
+	private static int getClientId(Segment seg, String client) {
+		if (client == null)
+			return -2;
+		if (client.startsWith("/"))
+			client = client.substring(1);
+		Integer id = seg.clientIdMap.get(client); // IPv6 address without port can not be told apart from one with port
+		if (id == null)
+			id = seg.clientIdMap.get(getClientAddress(client));
+		return id == null ? -1 : id;
+	}
+
+	// client address without port (and without the leading '/' of socket addresses)
+	private static String getClientAddress(String client) {
+		if (client.startsWith("/"))
+			client = client.substring(1);
+		int idx = client.lastIndexOf(':');
+		if (idx != -1 && idx < client.length() - 1) {
+			for (int i = idx + 1; i < client.length(); i++)
+				if (!Character.isDigit(client.charAt(i)))
+					return client;
+			if (client.indexOf(':') != idx || client.indexOf('.') != -1) // IPv4 with port or IPv6 with appended port
+				return client.substring(0, idx);
+		}
+		return client;
+	}
+
+	// brings the index up to date with the log files
+	private void refresh() throws IOException {
+		File[] files = logFolder.listFiles();
+		if (files == null)
+			files = new File[0];
+		HashMap<File, Segment> current = new HashMap<File, Segment>();
+		for (int i = 0; i < files.length; i++) {
+			String fname = files[i].getName();
+			if (!fname.startsWith(name + "_"))
+				continue;
+			boolean binary = fname.endsWith(BinaryTrafficLog.FILE_EXTENSION);
+			if (!binary && !fname.endsWith(TEXT_EXTENSION))
+				continue;
+			Segment seg = segments.get(files[i]);
+			if (seg == null)
+				seg = new Segment(files[i], binary);
+			try {
+				seg = update(seg);
+			} catch (IOException e) {
+				throw new IOException("Cannot index " + files[i] + "! " + e.getMessage(), e);
+			}
+			current.put(files[i], seg);
+		}
+		segments = current;
+	}
+
+	private Segment update(Segment seg) throws IOException {
+		long length = seg.file.length();
+		long modified = seg.file.lastModified();
+		if (length == seg.fileLength && modified == seg.fileModified)
+			return seg; // unchanged
+
+		FileInputStream in = new FileInputStream(seg.file);
+		try {
+			FileChannel channel = in.getChannel();
+			length = channel.size();
+			if (seg.indexedLength != 0 && !isUnchanged(seg, channel))
+				seg = new Segment(seg.file, seg.binary); // rotated - index from scratch
+
+			seg.fingerprintLength = (int) Math.min(length, FINGERPRINT_LENGTH);
+			seg.fingerprint = fingerprint(channel, seg.fingerprintLength);
+			seg.fileLength = length;
+			seg.fileModified = modified;
+			// only the bytes appended since the last update
+			ByteBuffer data = BinaryTrafficLog.Reader.read(channel, seg.indexedLength, (int) (length - seg.indexedLength));
+			if (seg.binary)
+				indexBinary(seg, data);
+			else
+				indexText(seg, data);
+			return seg;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long fingerprint(FileChannel channel, int length) throws IOException {
+		ByteBuffer data = BinaryTrafficLog.Reader.read(channel, 0, length);
+		long hash = 17;
+		for (int i = 0; i < data.limit(); i++)
+			hash = hash * 31 + data.get(i);
+		return hash;
+	}
+
+	private static void indexBinary(Segment seg, ByteBuffer data) throws IOException {
+		if (seg.reader == null) {
+			if (data.limit() < 12)
+				return; // header not yet written
+			seg.reader = new BinaryTrafficLog.Reader(data);
+		} else
+			seg.reader.append(data);
+
+		BinaryTrafficLog.Record r;
+		while ((r = seg.reader.next()) != null) {
+			if (r.isEntry())
+				seg.add(r.time, seg.reader.getRecordPosition(), r.host, r.client, !r.isAnswer());
+		}
+		seg.indexedLength = seg.reader.getPosition();
+	}
+
+	// data starts at the indexed length of the segment
+	private static void indexText(Segment seg, ByteBuffer data) {
+		if (seg.parser == null)
+			seg.parser = new TextParser();
+		byte[] bytes = data.array();
+		int limit = data.limit();
+		int start = 0;
+		for (int pos = 0; pos < limit; pos++) {
+			if (bytes[pos] != '\n')
+				continue;
+			int len = pos - start;
+			if (len > 0 && bytes[pos - 1] == '\r')
+				len--;
+			seg.parser.parse(seg, new String(bytes, start, len, UTF_8), seg.indexedLength + start);
+			start = pos + 1;
+		}
+		seg.indexedLength += start; // incomplete last line is indexed with the next update
+	}
+}
@@ -65,11 +65,14 @@ import dnsfilter.DNSCommunicator;
 import dnsfilter.DNSFilterManager;
 import dnsfilter.DNSFilterProxy;
 import dnsfilter.DNSResolver;
+import dnsfilter.DNSResponseCache;
 import dnsfilter.DNSServer;
 import ip.IPPacket;
 import ip.UDPPacket;
 import util.ExecutionEnvironment;
+import util.LatencyHistogram;
 import util.Logger;
+import util.Metrics;
 import util.Utils;
 
 
@@ -104,6 +107,10 @@ public class DNSFilterService extends VpnService  {
 
 	private boolean blocking = false;
 	private VPNRunner vpnRunner=null;
+
+	// time from a packet read from the tun interface until it is handed over to a resolver
+	private static final LatencyHistogram TUN_READ = Metrics.histogram("tun.read");
+	private static final Metrics.Counter TUN_PACKETS = Metrics.counter("tun.packets");
 	boolean manageDNSCryptProxy = false;
 	boolean dnsCryptProxyStartTriggered = false;
 	PendingIntent pendingIntent;
@@ -313,6 +320,8 @@ public class DNSFilterService extends VpnService  {
 					}
 
 					if (length > 0) {
+						long start = System.nanoTime();
+						TUN_PACKETS.increment();
 						try {
 							IPPacket parsedIP = new IPPacket(data, 0, length);
 							if (parsedIP.getVersion() == 6) {
@@ -346,6 +355,7 @@ public class DNSFilterService extends VpnService  {
 								if (!skip)
 									new Thread(new DNSResolver(parsedPacket, out)).start();
 							}
+							TUN_READ.recordSince(start);
 						} catch (IOException e) {
 							Logger.getLogger().logLine("IOEXCEPTION: " + e.toString());
 						} catch (Exception e) {
@@ -481,9 +491,21 @@ public class DNSFilterService extends VpnService  {
 
 	static String[] lastDNSServers = new String[0];
 
+	private static void updateMeteredNetworkState() {
+		DNSFilterService instance = INSTANCE;
+		if (instance == null)
+			return;
+
+		ConnectivityManager connectivityManager = (ConnectivityManager) instance.getSystemService(CONNECTIVITY_SERVICE);
+		// speculative DNS lookups might be disabled on metered networks
+		DNSResponseCache.getInstance().setMeteredNetwork(connectivityManager.isActiveNetworkMetered());
+	}
+
 	public static void possibleNetworkChange(boolean force) throws IOException {
 		if (ExecutionEnvironment.getEnvironment().hasNetwork()) {
 
+			updateMeteredNetworkState();
+
 			if (rootMode)
 				dnsReqForwarder.updateForward();
 
@@ -25,7 +25,9 @@ import android.location.LocationManager;
 import dnsfilter.BlockedHosts;
 import dnsfilter.ConfigurationAccess;
 import dnsfilter.ConfigUtil;
+import dnsfilter.TopDomains;
 import util.Logger;
+import util.SpaceSaving;
 
 public class DomCustosAPI {
     private static final String TAG = "DomCustosAPI";
@@ -35,6 +37,7 @@ public class DomCustosAPI {
     private static String agentID = null;
     private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
     private static boolean initialized = false;
+    private static long lastTopDomainsWindow = 0;
 
     // Classe para regras
     public static class Rules {
@@ -153,6 +156,15 @@ public class DomCustosAPI {
                 }
             }, 0, 90, TimeUnit.SECONDS);
 
+            // Enviar top domínios da última hora completa (verificado a cada 5 minutos)
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    sendTopDomains();
+                } catch (Exception e) {
+                    Log.e(TAG, "Erro ao enviar top domínios", e);
+                }
+            }, 5, 5, TimeUnit.MINUTES);
+
             Log.d(TAG, "DomCustosAPI inicializado com agentID: " + agentID);
         } catch (Exception e) {
             Log.e(TAG, "Erro ao inicializar DomCustosAPI", e);
@@ -547,6 +559,63 @@ public class DomCustosAPI {
         }
     }
 
+    // Enviar top domínios bloqueados e permitidos da última hora completa - uma vez por hora
+    private static void sendTopDomains() throws Exception {
+        long window = TopDomains.getInstance().getLastWindowStart();
+        if (window == lastTopDomainsWindow)
+            return;
+
+        SpaceSaving.Snapshot blocked = TopDomains.getInstance().getLastWindow(true);
+        SpaceSaving.Snapshot allowed = TopDomains.getInstance().getLastWindow(false);
+        if (blocked.total == 0 && allowed.total == 0) {
+            lastTopDomainsWindow = window;
+            return;
+        }
+
+        JSONObject data = new JSONObject();
+        data.put("agent_id", agentID);
+        data.put("window_start", window);
+        data.put("window_minutes", 60);
+        data.put("blocked", toJSON(blocked));
+        data.put("allowed", toJSON(allowed));
+        data.put("blocked_total", blocked.total);
+        data.put("allowed_total", allowed.total);
+
+        String url = API_BASE_URL + "/agent/top-domains/" + agentID;
+        HttpsURLConnection conn = (HttpsURLConnection) new URL(url).openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setDoOutput(true);
+
+            OutputStream os = conn.getOutputStream();
+            os.write(data.toString().getBytes("UTF-8"));
+            os.close();
+
+            int responseCode = conn.getResponseCode();
+            if (responseCode != 200 && responseCode != 201)
+                Log.w(TAG, "Top domínios não enviados, status: " + responseCode);
+            else
+                lastTopDomainsWindow = window;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static JSONArray toJSON(SpaceSaving.Snapshot snapshot) throws Exception {
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < Math.min(snapshot.size(), 20); i++) {
+            JSONObject entry = new JSONObject();
+            entry.put("domain", snapshot.names[i]);
+            entry.put("count", snapshot.counts[i]);
+            entry.put("error", snapshot.errors[i]);
+            result.put(entry);
+        }
+        return result;
+    }
+
     // Obter agentID
     public static String getAgentID() {
         return agentID;
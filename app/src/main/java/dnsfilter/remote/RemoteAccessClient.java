@@ -527,6 +527,153 @@ public class RemoteAccessClient extends ConfigurationAccess implements TimeoutLi
         triggerAction("releaseWakeLock()", null);
     }
 
+    @Override
+    public long[][] getQueryStatistics(int resolution, long from, long to) throws IOException {
+        try {
+            DataOutputStream out = new DataOutputStream(getOutputStream());
+            DataInputStream in = new DataInputStream(getInputStream());
+            out.write(("getQueryStatistics()\n").getBytes());
+            out.writeInt(resolution);
+            out.writeLong(from);
+            out.writeLong(to);
+            out.flush();
+
+            String response = Utils.readLineFromStream(in);
+            if (!response.equals("OK")) {
+                throw new ConfigurationAccessException(response, null);
+            }
+            long[][] result = new long[in.readInt()][in.readInt()];
+            for (int i = 0; i < result.length; i++)
+                for (int j = 0; j < result[i].length; j++)
+                    result[i][j] = in.readLong();
+            return result;
+        } catch (ConfigurationAccessException e) {
+            connectedLogger.logLine("Remote action failed! "+e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            connectedLogger.logLine("Remote action getQueryStatistics() failed! "+e.getMessage());
+            closeConnectionReconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public String[] getTopDomains(boolean filtered, int hours, int n) throws IOException {
+        try {
+            DataOutputStream out = new DataOutputStream(getOutputStream());
+            out.write(("getTopDomains()\n").getBytes());
+            out.writeBoolean(filtered);
+            out.writeInt(hours);
+            out.writeInt(n);
+            out.flush();
+            return readLines();
+        } catch (ConfigurationAccessException e) {
+            connectedLogger.logLine("Remote action failed! "+e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            connectedLogger.logLine("Remote action getTopDomains() failed! "+e.getMessage());
+            closeConnectionReconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public String[] queryTrafficLog(String domain, String client, long from, long to, int limit) throws IOException {
+        try {
+            DataOutputStream out = new DataOutputStream(getOutputStream());
+            out.write(("queryTrafficLog()\n").getBytes());
+            writeOptionalLine(out, domain);
+            writeOptionalLine(out, client);
+            out.writeLong(from);
+            out.writeLong(to);
+            out.writeInt(limit);
+            out.flush();
+            return readLines();
+        } catch (ConfigurationAccessException e) {
+            connectedLogger.logLine("Remote action failed! "+e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            connectedLogger.logLine("Remote action queryTrafficLog() failed! "+e.getMessage());
+            closeConnectionReconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public String[] topTrafficLog(int groupBy, String domain, String client, long from, long to, int n) throws IOException {
+        try {
+            DataOutputStream out = new DataOutputStream(getOutputStream());
+            out.write(("topTrafficLog()\n").getBytes());
+            out.writeInt(groupBy);
+            writeOptionalLine(out, domain);
+            writeOptionalLine(out, client);
+            out.writeLong(from);
+            out.writeLong(to);
+            out.writeInt(n);
+            out.flush();
+            return readLines();
+        } catch (ConfigurationAccessException e) {
+            connectedLogger.logLine("Remote action failed! "+e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            connectedLogger.logLine("Remote action topTrafficLog() failed! "+e.getMessage());
+            closeConnectionReconnect();
+            throw e;
+        }
+    }
+
+    private void writeOptionalLine(DataOutputStream out, String line) throws IOException {
+        out.write(((line == null ? "" : line.replace("\n", "")) + "\n").getBytes("UTF-8"));
+    }
+
+    @Override
+    public String[] getMetrics() throws IOException {
+        try {
+            DataOutputStream out = new DataOutputStream(getOutputStream());
+            out.write(("getMetrics()\n").getBytes());
+            out.flush();
+            return readLines();
+        } catch (ConfigurationAccessException e) {
+            connectedLogger.logLine("Remote action failed! "+e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            connectedLogger.logLine("Remote action getMetrics() failed! "+e.getMessage());
+            closeConnectionReconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public String[] getQueryTraces(boolean slowOnly) throws IOException {
+        try {
+            DataOutputStream out = new DataOutputStream(getOutputStream());
+            out.write(("getQueryTraces()\n").getBytes());
+            out.writeBoolean(slowOnly);
+            out.flush();
+            return readLines();
+        } catch (ConfigurationAccessException e) {
+            connectedLogger.logLine("Remote action failed! "+e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            connectedLogger.logLine("Remote action getQueryTraces() failed! "+e.getMessage());
+            closeConnectionReconnect();
+            throw e;
+        }
+    }
+
+    private String[] readLines() throws IOException {
+        DataInputStream in = new DataInputStream(getInputStream());
+        String response = Utils.readLineFromStream(in);
+        if (!response.equals("OK")) {
+            throw new ConfigurationAccessException(response, null);
+        }
+        byte[] result = new byte[in.readInt()];
+        in.readFully(result);
+        if (result.length == 0)
+            return new String[0];
+        return new String(result, "UTF-8").split("\n");
+    }
+
     private void processHeartBeat() {
         connectedLogger.message("Heart Beat!");
         timeOutCounter=0;
@@ -321,6 +321,43 @@ public class RemoteAccessServer implements Runnable {
                     ConfigurationAccess.getLocal().releaseWakeLock();
                     out.write("OK\n".getBytes());
                     out.flush();
+                } else if (action.equals("getQueryStatistics()")) {
+                    int resolution = in.readInt();
+                    long from = in.readLong();
+                    long to = in.readLong();
+                    long[][] result = ConfigurationAccess.getLocal().getQueryStatistics(resolution, from, to);
+                    out.write("OK\n".getBytes());
+                    out.writeInt(result.length);
+                    out.writeInt(result.length == 0 ? 0 : result[0].length);
+                    for (int i = 0; i < result.length; i++)
+                        for (int j = 0; j < result[i].length; j++)
+                            out.writeLong(result[i][j]);
+                    out.flush();
+                } else if (action.equals("getTopDomains()")) {
+                    boolean filtered = in.readBoolean();
+                    int hours = in.readInt();
+                    int n = in.readInt();
+                    writeLines(ConfigurationAccess.getLocal().getTopDomains(filtered, hours, n));
+                } else if (action.equals("queryTrafficLog()")) {
+                    String domain = readOptionalLine(in);
+                    String client = readOptionalLine(in);
+                    long from = in.readLong();
+                    long to = in.readLong();
+                    int limit = in.readInt();
+                    writeLines(ConfigurationAccess.getLocal().queryTrafficLog(domain, client, from, to, limit));
+                } else if (action.equals("topTrafficLog()")) {
+                    int groupBy = in.readInt();
+                    String domain = readOptionalLine(in);
+                    String client = readOptionalLine(in);
+                    long from = in.readLong();
+                    long to = in.readLong();
+                    int n = in.readInt();
+                    writeLines(ConfigurationAccess.getLocal().topTrafficLog(groupBy, domain, client, from, to, n));
+                } else if (action.equals("getMetrics()")) {
+                    writeLines(ConfigurationAccess.getLocal().getMetrics());
+                } else if (action.equals("getQueryTraces()")) {
+                    boolean slowOnly = in.readBoolean();
+                    writeLines(ConfigurationAccess.getLocal().getQueryTraces(slowOnly));
                 } else
                     throw new ConfigurationAccess.ConfigurationAccessException("Unknown action: " + action);
 
@@ -330,6 +367,23 @@ public class RemoteAccessServer implements Runnable {
             }
         }
 
+        // empty line for null
+        private String readOptionalLine(DataInputStream in) throws IOException {
+            String line = Utils.readLineFromStream(in);
+            return line.length() == 0 ? null : line;
+        }
+
+        private void writeLines(String[] lines) throws IOException {
+            StringBuffer buf = new StringBuffer();
+            for (int i = 0; i < lines.length; i++)
+                buf.append(lines[i]).append("\n");
+            byte[] result = buf.toString().getBytes("UTF-8");
+            out.write("OK\n".getBytes());
+            out.writeInt(result.length);
+            out.write(result);
+            out.flush();
+        }
+
         private void attachStream() throws IOException{
 
             try {
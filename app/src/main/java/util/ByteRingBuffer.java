@@ -0,0 +1,210 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-allocated byte ring for multiple producers and a single consumer.
+ * Producers claim space for a record via CAS on the tail and encode directly into the ring without locks.
+ * A record becomes visible to the consumer when its length is published, records are consumed in claim order.
+ * The ring is organized in units of 8 bytes, each record starts at a unit boundary.
+ */
+public class ByteRingBuffer {
+
+	private static final int UNIT = 8;
+
+	private final byte[] data;
+	private final AtomicIntegerArray lengths; // published record length per start unit, 0 = not published
+	private final int capacityUnits;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(); // next unit to claim
+	private volatile long head = 0; // next unit to consume
+
+	public ByteRingBuffer(int capacity) {
+		int size = UNIT;
+		while (size < capacity)
+			size = size * 2;
+		data = new byte[size];
+		mask = size - 1;
+		capacityUnits = size / UNIT;
+		lengths = new AtomicIntegerArray(capacityUnits);
+	}
+
+	public int capacity() {
+		return data.length;
+	}
+
+	// max length of a single record
+	public int maxRecordLength() {
+		return data.length / 2;
+	}
+
+	// number of claimed bytes not consumed yet
+	public int pending() {
+		return (int) ((tail.get() - head) * UNIT);
+	}
+
+	// returns the utf-8 encoded length of the strings, null values are ignored
+	public static int utf8Length(String s) {
+		if (s == null)
+			return 0;
+		int len = 0;
+		int cnt = s.length();
+		for (int i = 0; i < cnt; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				len++;
+			else if (c < 0x800)
+				len += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < cnt && Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else
+				len += 3;
+		}
+		return len;
+	}
+
+	/**
+	 * Writes the concatenation of the given strings utf-8 encoded as one record.
+	 * Records longer than maxRecordLength() are truncated - s3 is kept, so a suffix like a line separator is not lost.
+	 * Returns false without waiting in case there is not enough space.
+	 */
+	public boolean offer(String s1, String s2, String s3) {
+		int suffixLen = utf8Length(s3);
+		int len = utf8Length(s1) + utf8Length(s2) + suffixLen;
+		if (len == 0)
+			return true;
+		len = Math.min(len, maxRecordLength());
+		suffixLen = Math.min(suffixLen, len);
+		int units = (len + UNIT - 1) / UNIT;
+
+		long pos;
+		do {
+			pos = tail.get();
+			if (pos + units - head > capacityUnits)
+				return false;
+		} while (!tail.compareAndSet(pos, pos + units));
+
+		int start = (int) (pos * UNIT) & mask;
+		int written = encode(s1, start, 0, len - suffixLen);
+		written = encode(s2, start, written, len - suffixLen);
+		// truncated within a multi byte character - pad the space in front of the suffix
+		while (written < len - suffixLen)
+			data[(start + written++) & mask] = ' ';
+		written = encode(s3, start, written, len);
+		while (written < len)
+			data[(start + written++) & mask] = ' ';
+
+		lengths.set((int) (pos % capacityUnits), len); // publish - orders the data writes before
+		return true;
+	}
+
+	public boolean offer(byte[] b, int offs, int len) {
+		if (len == 0)
+			return true;
+		len = Math.min(len, maxRecordLength());
+		int units = (len + UNIT - 1) / UNIT;
+
+		long pos;
+		do {
+			pos = tail.get();
+			if (pos + units - head > capacityUnits)
+				return false;
+		} while (!tail.compareAndSet(pos, pos + units));
+
+		int start = (int) (pos * UNIT) & mask;
+		int first = Math.min(len, data.length - start);
+		System.arraycopy(b, offs, data, start, first);
+		if (first < len)
+			System.arraycopy(b, offs + first, data, 0, len - first);
+
+		lengths.set((int) (pos % capacityUnits), len);
+		return true;
+	}
+
+	private int encode(String s, int start, int written, int max) {
+		if (s == null)
+			return written;
+		int cnt = s.length();
+		for (int i = 0; i < cnt && written < max; i++) {
+			int c = s.charAt(i);
+			if (c < 0x80) {
+				data[(start + written++) & mask] = (byte) c;
+			} else if (c < 0x800) {
+				if (written + 2 > max)
+					break;
+				data[(start + written++) & mask] = (byte) (0xC0 | (c >> 6));
+				data[(start + written++) & mask] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate((char) c) && i + 1 < cnt && Character.isLowSurrogate(s.charAt(i + 1))) {
+				if (written + 4 > max)
+					break;
+				int cp = Character.toCodePoint((char) c, s.charAt(++i));
+				data[(start + written++) & mask] = (byte) (0xF0 | (cp >> 18));
+				data[(start + written++) & mask] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				data[(start + written++) & mask] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				data[(start + written++) & mask] = (byte) (0x80 | (cp & 0x3F));
+			} else {
+				if (written + 3 > max)
+					break;
+				data[(start + written++) & mask] = (byte) (0xE0 | (c >> 12));
+				data[(start + written++) & mask] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				data[(start + written++) & mask] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Consumer side - copies published records in claim order into out, as long as they fit completely.
+	 * Stops at the first record which is claimed but not yet published.
+	 * Returns the number of records copied. Must only be called by a single thread.
+	 */
+	public int drainTo(ByteBuffer out) {
+		return drainTo(out, Integer.MAX_VALUE);
+	}
+
+	public int drainTo(ByteBuffer out, int maxRecords) {
+		int cnt = 0;
+		long h = head;
+		while (cnt < maxRecords && h != tail.get()) {
+			int idx = (int) (h % capacityUnits);
+			int len = lengths.get(idx);
+			if (len == 0 || len > out.remaining())
+				break;
+			int start = (int) (h * UNIT) & mask;
+			int first = Math.min(len, data.length - start);
+			out.put(data, start, first);
+			if (first < len)
+				out.put(data, 0, len - first);
+			lengths.set(idx, 0);
+			h = h + (len + UNIT - 1) / UNIT;
+			head = h; // releases the space for producers
+			cnt++;
+		}
+		return cnt;
+	}
+}
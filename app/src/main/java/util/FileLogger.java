@@ -25,28 +25,85 @@ package util;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.io.PrintStream;
-
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger writing into rotating log files (slots).
+ * Log records are encoded by the calling threads directly into a pre-allocated ByteRingBuffer without locks.
+ * A single flusher thread writes the buffered records to the current slot file in one write per batch,
+ * when the configured size threshold is reached or after the flush interval.
+ * In case the buffer is full, the record is handled according to the overflow policy.
+ * With a RecordEncoder, binary records passed via logRecord() are converted by the flusher thread into the file format,
+ * so that the encoder can keep per file (segment) state without synchronization.
+ */
 public class FileLogger implements LoggerInterface, Runnable {
 
+	public interface RecordEncoder {
+
+		// file name extension for the log slots, e.g. ".log"
+		public String getFileExtension();
+
+		// called for each new log file - returns the file header
+		public byte[] startSegment();
+
+		// max number of bytes written by encode() for a record of the given length
+		public int maxEncodedLength(int recordLength);
+
+		// converts a record passed to logRecord() into the file format
+		public void encode(ByteBuffer record, ByteBuffer out);
+
+		// writes the information about dropped records (overflow policy count)
+		public void encodeDropped(long count, ByteBuffer out);
+	}
+
+	// overflow policies
+	public static final int OVERFLOW_BLOCK = 0; // writer waits until space is available
+	public static final int OVERFLOW_DROP = 1; // record is dropped
+	public static final int OVERFLOW_COUNT = 2; // record is dropped, the number of dropped records is logged
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
 	private String logFolderPath;
 	private String name;
 	private long slotSize;
 	private int slotCount;
 	private String header;
+	private RecordEncoder encoder = null;
+	private String extension = ".log";
 	private long curSlotSize = 0;
 	private int curSlot = 0;
-	private OutputStream fout = null;
-	private PipedOutputStream pout;
-	private PrintStream psout;
-	private PipedInputStream pin;
-	private boolean closed = false;
+	private FileOutputStream fout = null;
+	private FileChannel fchannel = null;
+	private ByteRingBuffer ring;
+	private int overflowPolicy;
+	private int flushSize;
+	private long flushIntervalNanos = 1000000000L;
+	private Thread flusher;
+	private volatile boolean flusherWaiting = false;
+	private volatile boolean closed = false;
 	private boolean timeStampEnabled = false;
+	private StripedCounter droppedCnt = new StripedCounter();
+	private AtomicLong droppedUnreported = new AtomicLong();
 
 	public FileLogger(String logFolderPath, String name, long slotSize, int slotCount, String header) throws IOException {
+		this(logFolderPath, name, slotSize, slotCount, header, 65536, OVERFLOW_BLOCK);
+	}
+
+	public FileLogger(String logFolderPath, String name, long slotSize, int slotCount, String header, int bufferSize, int overflowPolicy) throws IOException {
+		this(logFolderPath, name, slotSize, slotCount, header, null, bufferSize, overflowPolicy);
+	}
+
+	// binary log - only logRecord() must be used
+	public FileLogger(String logFolderPath, String name, long slotSize, int slotCount, RecordEncoder encoder, int bufferSize, int overflowPolicy) throws IOException {
+		this(logFolderPath, name, slotSize, slotCount, null, encoder, bufferSize, overflowPolicy);
+	}
+
+	private FileLogger(String logFolderPath, String name, long slotSize, int slotCount, String header, RecordEncoder encoder, int bufferSize, int overflowPolicy) throws IOException {
 		
 		if (slotSize < 1 || slotCount < 1)
 			throw new IllegalArgumentException("slotSize and slotCount must not be less than 1");
@@ -55,9 +112,27 @@ public class FileLogger implements LoggerInterface, Runnable {
 		this.slotSize = slotSize;
 		this.slotCount = slotCount;
 		this.header = header;
+		this.encoder = encoder;
+		if (encoder != null)
+			extension = encoder.getFileExtension();
+		this.overflowPolicy = overflowPolicy;
+		ring = new ByteRingBuffer(Math.max(bufferSize, 4096));
+		flushSize = ring.capacity() / 4;
 		logOpen();
 	}
 
+	public static int parseOverflowPolicy(String policy) {
+		policy = policy.trim().toLowerCase();
+		if (policy.equals("block"))
+			return OVERFLOW_BLOCK;
+		else if (policy.equals("drop"))
+			return OVERFLOW_DROP;
+		else if (policy.equals("count"))
+			return OVERFLOW_COUNT;
+		else
+			throw new IllegalArgumentException("Invalid overflow policy: " + policy);
+	}
+
 	private void logOpen() throws IOException {
 		
 		File dir = new File(logFolderPath);
@@ -67,7 +142,7 @@ public class FileLogger implements LoggerInterface, Runnable {
 		long ts = 0;
 		File f = null;
 		for (int i = 0; i < slotCount; i++) {
-			f = new File(logFolderPath + "/" + name + "_" + i + ".log");
+			f = new File(logFolderPath + "/" + name + "_" + i + extension);
 			if (f.exists() && f.lastModified() > ts) {
 				ts = f.lastModified();
 				curSlotSize = f.length();
@@ -75,33 +150,32 @@ public class FileLogger implements LoggerInterface, Runnable {
 			}
 		}
 
-		fout = new FileOutputStream(new File(logFolderPath + "/" + name + "_" + curSlot + ".log"), true);
+		fout = new FileOutputStream(new File(logFolderPath + "/" + name + "_" + curSlot + extension), true);
+		fchannel = fout.getChannel();
 
-		// Write log file header for new files
-		if (curSlotSize == 0 && header != null) {
-			fout.write((header + "\r\n").getBytes());
-			fout.flush();
+		if (encoder != null) {
+			// encoder state of an existing file is unknown - always start a new file
+			if (curSlotSize != 0)
+				nextSlot();
+			else
+				writeFully(ByteBuffer.wrap(encoder.startSegment()));
 		}
+		// Write log file header for new files
+		else if (curSlotSize == 0 && header != null)
+			writeFully(ByteBuffer.wrap((header + "\r\n").getBytes()));
 
-		pin = new PipedInputStream(10240);
-		pout = new PipedOutputStream(pin);
-		psout = new PrintStream(pout, true);
-
-		Thread t = new Thread(this);
-		t.setDaemon(true);
-		t.start();
+		flusher = new Thread(this);
+		flusher.setDaemon(true);
+		flusher.start();
 	}
 
 	public void closeLogger() {
-		synchronized (pin) {
-			try {
-				closed = true;
-				pout.close();
-				fout.close();
-				pin.notifyAll();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		closed = true;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join(2000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
 	}
 
@@ -109,40 +183,30 @@ public class FileLogger implements LoggerInterface, Runnable {
 		timeStampEnabled = enable;
 	}
 
+	// flush on size or after the given interval
+	public void setFlushInterval(long millis) {
+		flushIntervalNanos = Math.max(millis, 1) * 1000000L;
+	}
+
+	public long getDroppedCount() {
+		return droppedCnt.sum();
+	}
+
 	@Override
 	public void logLine(String txt) {
-		synchronized (psout) {
-			synchronized (pin) {
-				if (timeStampEnabled)
-					psout.print(DateRetriever.getDateString() + " ");
-				psout.println(txt);
-				pin.notifyAll();
-			}
-		}
+		write(txt, LINE_SEPARATOR);
 	}
 
 	@Override
 	public void logException(Exception e) {
-		synchronized (psout) {
-			synchronized (pin) {
-				if (timeStampEnabled)
-					psout.print(DateRetriever.getDateString() + " ");
-				e.printStackTrace(psout);
-				pin.notifyAll();
-			}
-		}
+		StringWriter str = new StringWriter();
+		e.printStackTrace(new PrintWriter(str));
+		write(str.toString(), null);
 	}
 
 	@Override
 	public void log(String txt) {
-		synchronized (psout) {
-			synchronized (pin) {
-				if (timeStampEnabled)
-					psout.print(DateRetriever.getDateString() + " ");
-				psout.print(txt);
-				pin.notifyAll();
-			}
-		}
+		write(txt, null);
 	}
 
 	@Override
@@ -150,64 +214,178 @@ public class FileLogger implements LoggerInterface, Runnable {
 		log(txt);
 	}
 
-	private OutputStream getOutputStream() throws IOException {
-		if (curSlotSize < slotSize)
-			return fout;
-		else {
+	private void write(String txt, String suffix) {
+		if (closed)
+			return;
+		String timestamp = null;
+		if (timeStampEnabled)
+			timestamp = DateRetriever.getDateString() + " ";
 
-			fout.flush();
-			fout.close();
-			curSlot = (curSlot + 1) % slotCount;
-			File f = new File(logFolderPath + "/" + name + "_" + curSlot + ".log");
-			fout = new FileOutputStream(f);
-			curSlotSize = 0;
-
-			// Write log file header for new files
-			if (header != null) {
-				fout.write((header + "\r\n").getBytes());
-				fout.flush();
-			}
-			return fout;
+		while (!ring.offer(timestamp, txt, suffix)) {
+			if (!retryOnOverflow())
+				return;
 		}
+		if (flusherWaiting && ring.pending() >= flushSize)
+			wakeFlusher();
+	}
+
+	// writes a binary record, which is converted by the RecordEncoder
+	public void logRecord(byte[] b, int offs, int len) {
+		if (closed)
+			return;
+		while (!ring.offer(b, offs, len)) {
+			if (!retryOnOverflow())
+				return;
+		}
+		if (flusherWaiting && ring.pending() >= flushSize)
+			wakeFlusher();
+	}
+
+	// max length of a record passed to logRecord()
+	public int maxRecordLength() {
+		return ring.maxRecordLength();
+	}
+
+	private boolean retryOnOverflow() {
+		wakeFlusher();
+		if (overflowPolicy == OVERFLOW_BLOCK && !closed) {
+			LockSupport.parkNanos(100000);
+			return true;
+		}
+		droppedCnt.increment();
+		if (overflowPolicy == OVERFLOW_COUNT)
+			droppedUnreported.incrementAndGet();
+		return false;
+	}
+
+	private void wakeFlusher() {
+		LockSupport.unpark(flusher);
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			curSlotSize = curSlotSize + fchannel.write(buf);
+	}
+
+	private void nextSlot() throws IOException {
+		fchannel.close();
+		fout.close();
+		curSlot = (curSlot + 1) % slotCount;
+		File f = new File(logFolderPath + "/" + name + "_" + curSlot + extension);
+		fout = new FileOutputStream(f);
+		fchannel = fout.getChannel();
+		curSlotSize = 0;
+
+		// Write log file header for new files
+		if (encoder != null)
+			writeFully(ByteBuffer.wrap(encoder.startSegment()));
+		else if (header != null)
+			writeFully(ByteBuffer.wrap((header + "\r\n").getBytes()));
 	}
 
 	@Override
 	public void run() {
 
-		byte[] buf = new byte[2048];
-		int r = 0;
-		int avail = 0;
+		if (encoder != null) {
+			runEncoded();
+			return;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(ring.capacity());
 
-		while (!closed) {
+		while (true) {
+			boolean done = closed;
 			try {
-				synchronized (pin) {
-
-					while (((avail = pin.available()) <= 0) && !closed) {
-						try {
-							pin.wait();
-						} catch (InterruptedException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					}
-					if (!closed)
-						r = pin.read(buf);
+				buf.clear();
+				ring.drainTo(buf);
+				long dropped = droppedUnreported.getAndSet(0);
+				if (dropped > 0) {
+					byte[] msg = ("<" + dropped + " log records dropped>" + LINE_SEPARATOR).getBytes();
+					if (msg.length <= buf.remaining())
+						buf.put(msg);
+					else
+						droppedUnreported.addAndGet(dropped);
 				}
+				buf.flip();
+				if (buf.hasRemaining()) {
+					if (curSlotSize >= slotSize)
+						nextSlot();
+					writeFully(buf);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			if (done)
+				break;
 
-				if (!closed) {
-					OutputStream out = getOutputStream();
-					out.write(buf, 0, r);
-					curSlotSize = curSlotSize + r;
+			waitForData();
+		}
+		closeFile();
+	}
 
-					if (avail == r) // no more data in pin
-						out.flush();
+	private void runEncoded() {
+
+		ByteBuffer record = ByteBuffer.allocate(ring.maxRecordLength());
+		ByteBuffer buf = ByteBuffer.allocate(Math.max(ring.capacity(), encoder.maxEncodedLength(ring.maxRecordLength())));
+
+		while (true) {
+			boolean done = closed;
+			try {
+				buf.clear();
+				while (true) {
+					record.clear();
+					if (ring.drainTo(record, 1) == 0)
+						break;
+					record.flip();
+					// the encoder state belongs to the current file - switch the file before encoding
+					if (buf.remaining() < encoder.maxEncodedLength(record.remaining()) || curSlotSize + buf.position() >= slotSize)
+						writeEncoded(buf);
+					encoder.encode(record, buf);
+				}
+				long dropped = droppedUnreported.getAndSet(0);
+				if (dropped > 0) {
+					if (buf.remaining() < encoder.maxEncodedLength(0))
+						writeEncoded(buf);
+					encoder.encodeDropped(dropped, buf);
 				}
+				writeEncoded(buf);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 
+			if (done)
+				break;
+
+			waitForData();
 		}
+		closeFile();
+	}
 
+	private void writeEncoded(ByteBuffer buf) throws IOException {
+		buf.flip();
+		writeFully(buf);
+		buf.clear();
+		if (curSlotSize >= slotSize)
+			nextSlot();
+	}
+
+	private void waitForData() {
+		if (ring.pending() < flushSize) {
+			flusherWaiting = true;
+			if (ring.pending() < flushSize && !closed)
+				LockSupport.parkNanos(this, flushIntervalNanos);
+			flusherWaiting = false;
+		}
+	}
+
+	private void closeFile() {
+		try {
+			fchannel.close();
+			fout.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 }
@@ -0,0 +1,238 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom Java Flight Recorder events for the standalone JVM proxy.
+ * jdk.jfr is neither available on Android nor on older JVMs - the event types are therefore created at runtime
+ * via jdk.jfr.EventFactory and all access is reflective. Nothing is registered unless init() is called, which is
+ * only done by DNSFilterProxy.main.
+ * The enabled state of each type is tracked via a FlightRecorderListener, so begin() is a single volatile read
+ * as long as no recording is running.
+ */
+public class FlightRecorderEvents {
+
+	public static final EventType DNS_QUERY = new EventType("DnsQuery", "DNS Query", new String[][] {
+			{"qnameHash", "long", "Query Name Hash", null},
+			{"qtype", "int", "Query Type", null},
+			{"outcome", "java.lang.String", "Outcome", null},
+			{"upstreamTime", "long", "Upstream Time", "NANOSECONDS"}});
+
+	public static final EventType FILTER_LOOKUP = new EventType("FilterLookup", "Filter Lookup", new String[][] {
+			{"qnameHash", "long", "Query Name Hash", null},
+			{"filtered", "boolean", "Filtered", null},
+			{"cached", "boolean", "Cached", null}});
+
+	public static final EventType UPSTREAM_RESOLVE = new EventType("UpstreamResolve", "Upstream Resolve", new String[][] {
+			{"server", "java.lang.String", "Server", null},
+			{"outcome", "java.lang.String", "Outcome", null},
+			{"responseSize", "int", "Response Size", null}});
+
+	public static final EventType INDEX_REBUILD = new EventType("IndexRebuild", "Filter Index Rebuild", new String[][] {
+			{"entries", "int", "Unique Entries", null},
+			{"completed", "boolean", "Completed", null}});
+
+	public static final EventType CONNECTION_ACQUIRE = new EventType("ConnectionAcquire", "Connection Acquire", new String[][] {
+			{"destination", "java.lang.String", "Destination", null},
+			{"pooled", "boolean", "Pooled", null},
+			{"outcome", "java.lang.String", "Outcome", null}});
+
+	private static final EventType[] TYPES = {DNS_QUERY, FILTER_LOOKUP, UPSTREAM_RESOLVE, INDEX_REBUILD, CONNECTION_ACQUIRE};
+
+	private static final String CATEGORY = "DNS Filter";
+
+	private static boolean initialized = false;
+
+	// jdk.jfr.Event, jdk.jfr.EventFactory and jdk.jfr.EventType methods
+	private static Method newEvent;
+	private static Method begin;
+	private static Method end;
+	private static Method set;
+	private static Method commit;
+	private static Method isEnabled;
+
+	public static class EventType {
+
+		private final String name;
+		private final String label;
+		private final String[][] fields; // name, type, label, timespan unit
+		private volatile boolean enabled = false;
+		private Object factory;
+		private Object jfrType;
+
+		private EventType(String name, String label, String[][] fields) {
+			this.name = name;
+			this.label = label;
+			this.fields = fields;
+		}
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		// returns a begun event in case the type is enabled within a running recording, otherwise null
+		public Event begin() {
+			if (!enabled)
+				return null;
+			try {
+				Object event = newEvent.invoke(factory);
+				FlightRecorderEvents.begin.invoke(event);
+				return new Event(event);
+			} catch (Exception e) {
+				return null;
+			}
+		}
+	}
+
+	public static class Event {
+
+		private final Object event;
+
+		private Event(Object event) {
+			this.event = event;
+		}
+
+		// sets the field with the given index, see the field definitions of the event type
+		public Event set(int idx, Object value) {
+			try {
+				FlightRecorderEvents.set.invoke(event, idx, value);
+			} catch (Exception e) {
+				// ignore - event is incomplete
+			}
+			return this;
+		}
+
+		public void commit() {
+			try {
+				end.invoke(event);
+				FlightRecorderEvents.commit.invoke(event);
+			} catch (Exception e) {
+				// ignore - event is lost
+			}
+		}
+	}
+
+	/**
+	 * Registers the event types with the flight recorder in case it is available.
+	 * Returns false in case jdk.jfr is not supported by the running JVM.
+	 */
+	public static synchronized boolean init() {
+		if (initialized)
+			return true;
+		try {
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			newEvent = factoryClass.getMethod("newEvent");
+			begin = eventClass.getMethod("begin");
+			end = eventClass.getMethod("end");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+			Method create = factoryClass.getMethod("create", List.class, List.class);
+			Method getEventType = factoryClass.getMethod("getEventType");
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+
+			for (int i = 0; i < TYPES.length; i++) {
+				EventType type = TYPES[i];
+				List<Object> annotations = new ArrayList<Object>();
+				annotations.add(annotation("jdk.jfr.Name", "dnsfilter." + type.name));
+				annotations.add(annotation("jdk.jfr.Label", type.label));
+				annotations.add(annotation("jdk.jfr.Category", new String[] {CATEGORY}));
+				List<Object> fields = new ArrayList<Object>();
+				for (int j = 0; j < type.fields.length; j++)
+					fields.add(valueDescriptor(type.fields[j]));
+				type.factory = create.invoke(null, annotations, fields);
+				type.jfrType = getEventType.invoke(type.factory);
+			}
+			addRecorderListener();
+			initialized = true;
+			updateEnabled();
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false; // no JFR support
+		} catch (Exception e) {
+			Logger.getLogger().logLine("Cannot register flight recorder events! " + e);
+			return false;
+		}
+	}
+
+	private static Object annotation(String annotationClass, Object value) throws Exception {
+		return Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class).newInstance(Class.forName(annotationClass), value);
+	}
+
+	private static Object valueDescriptor(String[] field) throws Exception {
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add(annotation("jdk.jfr.Label", field[2]));
+		if (field[3] != null)
+			annotations.add(annotation("jdk.jfr.Timespan", field[3]));
+		return Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class).newInstance(typeClass(field[1]), field[0], annotations);
+	}
+
+	private static Class<?> typeClass(String type) throws ClassNotFoundException {
+		if (type.equals("long"))
+			return long.class;
+		else if (type.equals("int"))
+			return int.class;
+		else if (type.equals("boolean"))
+			return boolean.class;
+		else
+			return Class.forName(type);
+	}
+
+	// updates the enabled state of all types whenever a recording is started or stopped
+	private static void addRecorderListener() throws Exception {
+		Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+		Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[] {listenerClass}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("equals"))
+					return proxy == args[0];
+				else if (name.equals("hashCode"))
+					return System.identityHashCode(proxy);
+				else if (name.equals("toString"))
+					return "FlightRecorderEvents listener";
+				updateEnabled();
+				return null;
+			}
+		});
+		Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listenerClass).invoke(null, listener);
+	}
+
+	private static void updateEnabled() {
+		if (!initialized)
+			return;
+		for (int i = 0; i < TYPES.length; i++) {
+			try {
+				TYPES[i].enabled = (Boolean) isEnabled.invoke(TYPES[i].jfrType);
+			} catch (Exception e) {
+				TYPES[i].enabled = false;
+			}
+		}
+	}
+}
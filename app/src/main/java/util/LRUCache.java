@@ -35,6 +35,12 @@ public class LRUCache extends LinkedHashMap {
 		super(maxCount+1);
 		this.MAX_ENTRIES=maxCount;	
 	}
+
+	// accessOrder true - get() and put() of an existing key make it the most recent entry, so the least recently used one is evicted
+	public LRUCache(int maxCount, boolean accessOrder) {
+		super(maxCount+1, 0.75f, accessOrder);
+		this.MAX_ENTRIES=maxCount;
+	}
 	
 	
 	@Override
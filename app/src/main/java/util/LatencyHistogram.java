@@ -0,0 +1,134 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram (HdrHistogram style) with lock free recording.
+ * Values (nanoseconds) are counted in buckets: each power of two range is split into 16 linear sub buckets,
+ * so the relative error of reported percentiles is below 6.25%. Values above ~137s are counted in the last bucket.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_BITS = 37; // 2^37 ns ~ 137s
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Point in time copy of a histogram.
+	 */
+	public static class Snapshot {
+		public final long count;
+		public final long sum;
+		public final long max;
+		private final long[] counts;
+
+		private Snapshot(long count, long sum, long max, long[] counts) {
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+			this.counts = counts;
+		}
+
+		public long getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		// value at the given quantile (0..1) - upper bound of its bucket, at most the max
+		public long getPercentile(double quantile) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				total += counts[i];
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(quantile * total);
+			long cnt = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				cnt += counts[i];
+				if (cnt >= Math.max(rank, 1))
+					return Math.min(upperBound(i), max);
+			}
+			return max;
+		}
+
+		// in microseconds
+		@Override
+		public String toString() {
+			return "count=" + count + ", mean=" + getMean() / 1000 + "us, p50=" + getPercentile(0.5) / 1000 + "us, p90=" + getPercentile(0.9) / 1000
+					+ "us, p99=" + getPercentile(0.99) / 1000 + "us, p999=" + getPercentile(0.999) / 1000 + "us, max=" + max / 1000 + "us";
+		}
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_COUNT)
+			return (int) Math.max(value, 0);
+		if (value > MAX_VALUE)
+			value = MAX_VALUE;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // >= 0
+		return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+	}
+
+	static long upperBound(int bucket) {
+		int group = bucket >> SUB_BITS;
+		int sub = bucket & (SUB_COUNT - 1);
+		if (group == 0)
+			return sub;
+		int shift = group - 1;
+		return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.getAndIncrement(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	// records the time passed since the given System.nanoTime() value
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public Snapshot snapshot() {
+		long[] c = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			c[i] = counts.get(i);
+		return new Snapshot(count.sum(), sum.sum(), max.get(), c);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
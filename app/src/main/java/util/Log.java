@@ -0,0 +1,352 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util;
+
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Level and category gated logging for hot paths.
+ * The level is checked before anything is formatted, arguments are collected without boxing of primitives
+ * and the message is formatted ("{}" placeholders) and handed to the sink by a background writer thread.
+ * Any LoggerInterface can act as sink, by default Logger.getLogger() - repeat suppression, grouping etc.
+ * of the existing loggers therefore also happen on the writer thread.
+ * Usage: CATEGORY.info("FILTERED:{}").arg(host).log();
+ * Arguments are evaluated in any case - expensive ones should be guarded by isEnabled().
+ */
+public class Log implements Runnable {
+
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	public static final int OFF = 4;
+
+	private static final String[] LEVEL_NAMES = {"debug", "info", "warn", "error", "off"};
+
+	private static final int MAX_ARGS = 8;
+	private static final int QUEUE_SIZE = 4096; // power of 2
+	private static final Object NUM = new Object(); // marks a primitive argument
+
+	private static final Hashtable<String, Category> CATEGORIES = new Hashtable<String, Category>();
+	private static Properties config = new Properties();
+
+	// bounded multi producer queue - a slot is free for the producer at position p in case its sequence is p
+	// and readable for the writer at position p in case its sequence is p + 1
+	private static final Entry[] SLOTS = new Entry[QUEUE_SIZE];
+	private static final AtomicLongArray SEQUENCES = new AtomicLongArray(QUEUE_SIZE);
+	private static final AtomicLong TAIL = new AtomicLong();
+	private static volatile long head = 0;
+	private static volatile long written = 0; // entries handed to the sink - head is released before
+	private static volatile boolean writerWaiting = false;
+	private static final Object WAKEUP = new Object();
+	private static final Metrics.Counter DROPPED = Metrics.counter("log.dropped");
+
+	private static final ThreadLocal<Entry> SCRATCH = new ThreadLocal<Entry>() {
+		@Override
+		protected Entry initialValue() {
+			return new Entry();
+		}
+	};
+
+	private static final Entry NOOP = new Entry() {
+		@Override
+		public Entry arg(Object value) {
+			return this;
+		}
+
+		@Override
+		public Entry arg(long value) {
+			return this;
+		}
+
+		@Override
+		public void log() {
+		}
+	};
+
+	static {
+		for (int i = 0; i < QUEUE_SIZE; i++) {
+			SLOTS[i] = new Entry();
+			SEQUENCES.set(i, i);
+		}
+		Thread t = new Thread(new Log(), "LogWriter");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public static class Category {
+
+		private final String name;
+		private volatile int level;
+		private volatile LoggerInterface sink = null; // null: Logger.getLogger()
+
+		private Category(String name, int level) {
+			this.name = name;
+			this.level = level;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setLevel(int level) {
+			this.level = level;
+		}
+
+		public void setSink(LoggerInterface sink) {
+			this.sink = sink;
+		}
+
+		// debug output is also enabled in case the execution environment runs in debug mode
+		public boolean isEnabled(int level) {
+			return level >= this.level || (level == DEBUG && ExecutionEnvironment.getEnvironment().debug());
+		}
+
+		public Entry at(int level, String format) {
+			if (!isEnabled(level))
+				return NOOP;
+			Entry entry = SCRATCH.get();
+			if (entry.inUse)
+				entry = new Entry(); // logging while the arguments of another entry are evaluated
+			entry.start(this, format);
+			return entry;
+		}
+
+		public Entry debug(String format) {
+			return at(DEBUG, format);
+		}
+
+		public Entry info(String format) {
+			return at(INFO, format);
+		}
+
+		public Entry warn(String format) {
+			return at(WARN, format);
+		}
+
+		public Entry error(String format) {
+			return at(ERROR, format);
+		}
+	}
+
+	public static class Entry {
+
+		private String format;
+		private LoggerInterface sink;
+		private Object[] args = new Object[MAX_ARGS];
+		private long[] nums = new long[MAX_ARGS];
+		private int argCnt;
+		private boolean inUse = false;
+
+		private void start(Category category, String format) {
+			this.format = format;
+			this.sink = category.sink;
+			argCnt = 0;
+			inUse = true;
+		}
+
+		public Entry arg(Object value) {
+			if (argCnt < MAX_ARGS)
+				args[argCnt++] = value;
+			return this;
+		}
+
+		public Entry arg(long value) {
+			if (argCnt < MAX_ARGS) {
+				args[argCnt] = NUM;
+				nums[argCnt++] = value;
+			}
+			return this;
+		}
+
+		public void log() {
+			enqueue(this);
+			for (int i = 0; i < argCnt; i++)
+				args[i] = null;
+			inUse = false;
+		}
+
+		private void copyTo(Entry target) {
+			target.format = format;
+			target.sink = sink;
+			target.argCnt = argCnt;
+			System.arraycopy(args, 0, target.args, 0, argCnt);
+			System.arraycopy(nums, 0, target.nums, 0, argCnt);
+		}
+
+		private void format(StringBuilder buf) {
+			buf.setLength(0);
+			int pos = 0;
+			int arg = 0;
+			while (true) {
+				int idx = format.indexOf("{}", pos);
+				if (idx == -1 || arg == argCnt) {
+					buf.append(format, pos, format.length());
+					return;
+				}
+				buf.append(format, pos, idx);
+				if (args[arg] == NUM)
+					buf.append(nums[arg]);
+				else
+					buf.append(args[arg]);
+				arg++;
+				pos = idx + 2;
+			}
+		}
+
+		private void clear() {
+			for (int i = 0; i < argCnt; i++)
+				args[i] = null;
+			sink = null;
+			format = null;
+		}
+	}
+
+	public static Category category(String name) {
+		synchronized (CATEGORIES) {
+			Category category = CATEGORIES.get(name);
+			if (category == null) {
+				category = new Category(name, getConfiguredLevel(name));
+				CATEGORIES.put(name, category);
+			}
+			return category;
+		}
+	}
+
+	/**
+	 * Applies the levels from the configuration: logLevel for all categories, logLevel.<category> for a single one.
+	 */
+	public static void configure(Properties config) {
+		synchronized (CATEGORIES) {
+			Log.config = config;
+			Category[] categories = CATEGORIES.values().toArray(new Category[0]);
+			for (int i = 0; i < categories.length; i++)
+				categories[i].setLevel(getConfiguredLevel(categories[i].name));
+		}
+	}
+
+	private static int getConfiguredLevel(String name) {
+		String level = config.getProperty("logLevel." + name, config.getProperty("logLevel", "info")).trim();
+		for (int i = 0; i < LEVEL_NAMES.length; i++)
+			if (LEVEL_NAMES[i].equalsIgnoreCase(level))
+				return i;
+		return INFO;
+	}
+
+	private static void enqueue(Entry entry) {
+		long pos;
+		int idx;
+		while (true) {
+			pos = TAIL.get();
+			idx = (int) (pos & (QUEUE_SIZE - 1));
+			long seq = SEQUENCES.get(idx);
+			if (seq == pos) {
+				if (TAIL.compareAndSet(pos, pos + 1))
+					break;
+			} else if (seq < pos) {
+				DROPPED.increment(); // queue full
+				return;
+			}
+			// slot taken by another producer in between - retry
+		}
+		entry.copyTo(SLOTS[idx]);
+		SEQUENCES.set(idx, pos + 1);
+		if (writerWaiting) {
+			synchronized (WAKEUP) {
+				WAKEUP.notify();
+			}
+		}
+	}
+
+	/**
+	 * Waits until all entries logged so far are written, at most timeout millis.
+	 * To be called before a sink is closed.
+	 */
+	public static void flush(long timeout) {
+		long target = TAIL.get();
+		long end = System.currentTimeMillis() + timeout;
+		while (written < target && System.currentTimeMillis() < end) {
+			synchronized (WAKEUP) {
+				WAKEUP.notify();
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private Log() {
+	}
+
+	@Override
+	public void run() {
+		StringBuilder buf = new StringBuilder();
+		long reportedDrops = 0;
+		long lastReport = 0;
+		while (true) {
+			try {
+				int idx = (int) (head & (QUEUE_SIZE - 1));
+				if (SEQUENCES.get(idx) != head + 1) {
+					long drops = DROPPED.get();
+					if (drops != reportedDrops && System.currentTimeMillis() - lastReport >= 1000) {
+						Logger.getLogger().logLine("Log queue full - " + (drops - reportedDrops) + " lines dropped!");
+						reportedDrops = drops;
+						lastReport = System.currentTimeMillis();
+					}
+					synchronized (WAKEUP) {
+						writerWaiting = true;
+						if (SEQUENCES.get(idx) != head + 1)
+							WAKEUP.wait(100); // timed - a producer might have missed the waiting flag
+						writerWaiting = false;
+					}
+					continue;
+				}
+				Entry entry = SLOTS[idx];
+				LoggerInterface sink = entry.sink;
+				try {
+					try {
+						entry.format(buf);
+					} finally {
+						// release the slot also in case an argument fails to format
+						entry.clear();
+						SEQUENCES.set(idx, head + QUEUE_SIZE);
+						head++;
+					}
+					if (sink == null)
+						sink = Logger.getLogger();
+					sink.logLine(buf.toString());
+				} finally {
+					written++; // only updated by the writer thread - flush() waits for it
+				}
+			} catch (Exception e) {
+				// a failing sink must not stop the writer
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry for counters, gauges and latency histograms.
+ * Metrics are registered once by name (usually into a static or instance field) and then updated
+ * without any registry lookup. The text snapshot lists all metrics sorted by name and can be
+ * written periodically to a dump file.
+ */
+public class Metrics implements Runnable {
+
+	public static class Counter {
+		private final StripedCounter cnt = new StripedCounter();
+
+		public void increment() {
+			cnt.increment();
+		}
+
+		public void add(long x) {
+			cnt.add(x);
+		}
+
+		public long get() {
+			return cnt.sum();
+		}
+
+		@Override
+		public String toString() {
+			return Long.toString(get());
+		}
+	}
+
+	public interface Gauge {
+		long getValue();
+	}
+
+	private static final ConcurrentHashMap<String, Object> METRICS = new ConcurrentHashMap<String, Object>();
+
+	private static Metrics DUMPER = null;
+
+	private final File dumpFile;
+	private final long dumpInterval;
+	private volatile boolean stopped = false;
+
+	public static Counter counter(String name) {
+		return (Counter) register(name, new Counter());
+	}
+
+	public static LatencyHistogram histogram(String name) {
+		return (LatencyHistogram) register(name, new LatencyHistogram());
+	}
+
+	// registers the gauge - an existing gauge with the same name is replaced
+	public static void gauge(String name, Gauge gauge) {
+		Object existing = METRICS.put(name, gauge);
+		if (existing != null && !(existing instanceof Gauge)) {
+			METRICS.put(name, existing);
+			throw new IllegalArgumentException("Metric " + name + " is no gauge!");
+		}
+	}
+
+	public static void remove(String name) {
+		METRICS.remove(name);
+	}
+
+	// returns the already registered metric with the name or registers the new one
+	private static Object register(String name, Object metric) {
+		Object existing = METRICS.putIfAbsent(name, metric);
+		if (existing == null)
+			return metric;
+		if (existing.getClass() != metric.getClass())
+			throw new IllegalArgumentException("Metric " + name + " already registered as " + existing.getClass().getSimpleName() + "!");
+		return existing;
+	}
+
+	// all metrics as text, one line per metric: "name: value"
+	public static String snapshot() {
+		String[] names = METRICS.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < names.length; i++) {
+			Object metric = METRICS.get(names[i]);
+			if (metric == null)
+				continue;
+			String value;
+			if (metric instanceof Gauge) {
+				try {
+					value = Long.toString(((Gauge) metric).getValue());
+				} catch (RuntimeException e) {
+					value = "<" + e + ">";
+				}
+			} else
+				value = metric.toString();
+			buf.append(names[i] + ": " + value + "\n");
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Writes the snapshot every interval millis to the given file, replacing its content.
+	 * A running dump is stopped first.
+	 */
+	public static synchronized void startDump(File file, long interval) {
+		stopDump();
+		DUMPER = new Metrics(file, interval);
+		Thread t = new Thread(DUMPER, "MetricsDump");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public static synchronized void stopDump() {
+		if (DUMPER != null) {
+			synchronized (DUMPER) {
+				DUMPER.stopped = true;
+				DUMPER.notifyAll();
+			}
+			DUMPER = null;
+		}
+	}
+
+	private Metrics(File dumpFile, long dumpInterval) {
+		this.dumpFile = dumpFile;
+		this.dumpInterval = dumpInterval;
+	}
+
+	private void dump() throws IOException {
+		File tmp = new File(dumpFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(("# " + DateRetriever.getDateString() + "\n" + snapshot()).getBytes());
+		} finally {
+			out.close();
+		}
+		if ((dumpFile.exists() && !dumpFile.delete()) || !tmp.renameTo(dumpFile))
+			throw new IOException("Cannot replace " + dumpFile);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				long end = System.currentTimeMillis() + dumpInterval;
+				long wait = dumpInterval;
+				while (!stopped && wait > 0) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+					wait = end - System.currentTimeMillis();
+				}
+				if (stopped)
+					return;
+			}
+			try {
+				dump();
+			} catch (IOException e) {
+				Logger.getLogger().logLine("Cannot write metrics: " + e.getMessage());
+			}
+		}
+	}
+}
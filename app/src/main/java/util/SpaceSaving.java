@@ -0,0 +1,276 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util;
+
+/**
+ * Space-Saving heavy hitter sketch (Metwally et al.) for 64 bit keys with bounded memory.
+ * Tracks at most capacity keys with their counts and maximum overestimation (error). A new key replaces the
+ * key with the minimum count, taking over its count as error. Keys are found via an open addressing table,
+ * the minimum via a heap, so each offer is O(1) for tracked keys and O(log capacity) otherwise.
+ * Names are only kept for the tracked keys. Snapshots of sketches (e.g. per time window) can be merged.
+ */
+public class SpaceSaving {
+
+	private final int capacity;
+	private int size = 0;
+	private long total = 0;
+
+	// per slot
+	private final long[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	private final String[] names;
+	private final int[] heapPos;
+
+	private final int[] heap; // slots - min heap by count
+	private final int[] table; // slot + 1, 0 for empty - linear probing
+	private final int mask;
+
+	/**
+	 * Immutable result of a sketch - entries sorted by count, descending.
+	 */
+	public static class Snapshot {
+		public final long[] keys;
+		public final long[] counts;
+		public final long[] errors;
+		public final String[] names;
+		public final long total; // number of offers
+		public final long min; // count of the smallest entry of a full sketch, 0 otherwise
+
+		private Snapshot(long[] keys, long[] counts, long[] errors, String[] names, long total, long min) {
+			this.keys = keys;
+			this.counts = counts;
+			this.errors = errors;
+			this.names = names;
+			this.total = total;
+			this.min = min;
+		}
+
+		public int size() {
+			return keys.length;
+		}
+
+		public static Snapshot empty() {
+			return new Snapshot(new long[0], new long[0], new long[0], new String[0], 0, 0);
+		}
+
+		/**
+		 * Merges two snapshots to a snapshot with at most capacity entries (Agarwal et al., Mergeable Summaries).
+		 * A key missing in one of the snapshots might have been counted up to its min count there.
+		 */
+		public static Snapshot merge(Snapshot s1, Snapshot s2, int capacity) {
+			SpaceSaving merged = new SpaceSaving(Math.max(1, s1.size() + s2.size())); // both might be empty
+			for (int i = 0; i < s1.size(); i++)
+				merged.add(s1.keys[i], s1.names[i], s1.counts[i] + s2.min, s1.errors[i] + s2.min);
+			for (int i = 0; i < s2.size(); i++) {
+				int slot = merged.find(s2.keys[i]);
+				if (slot == -1)
+					merged.add(s2.keys[i], s2.names[i], s2.counts[i] + s1.min, s2.errors[i] + s1.min);
+				else {
+					// counted in both - correct the min added above
+					merged.counts[slot] += s2.counts[i] - s2.min;
+					merged.errors[slot] += s2.errors[i] - s2.min;
+				}
+			}
+			merged.total = s1.total + s2.total;
+			Snapshot result = merged.snapshot(capacity);
+			long min = s1.min + s2.min;
+			if (result.size() == capacity && merged.size > capacity)
+				min = Math.max(min, result.counts[capacity - 1]);
+			return new Snapshot(result.keys, result.counts, result.errors, result.names, result.total, min);
+		}
+	}
+
+	public SpaceSaving(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		this.capacity = capacity;
+		keys = new long[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		names = new String[capacity];
+		heapPos = new int[capacity];
+		heap = new int[capacity];
+		int tableSize = 4;
+		while (tableSize < capacity * 2)
+			tableSize = tableSize * 2;
+		table = new int[tableSize];
+		mask = tableSize - 1;
+	}
+
+	public synchronized void offer(long key, String name) {
+		total++;
+		int slot = find(key);
+		if (slot != -1) {
+			counts[slot]++;
+			siftDown(heapPos[slot]);
+		} else if (size < capacity)
+			add(key, name, 1, 0);
+		else {
+			// replace the minimum
+			slot = heap[0];
+			remove(keys[slot]);
+			errors[slot] = counts[slot];
+			counts[slot]++;
+			keys[slot] = key;
+			names[slot] = name;
+			insert(key, slot);
+			siftDown(0);
+		}
+	}
+
+	public synchronized Snapshot snapshot() {
+		return snapshot(capacity);
+	}
+
+	public synchronized Snapshot snapshotAndReset() {
+		Snapshot result = snapshot(capacity);
+		size = 0;
+		total = 0;
+		for (int i = 0; i < table.length; i++)
+			table[i] = 0;
+		for (int i = 0; i < capacity; i++)
+			names[i] = null;
+		return result;
+	}
+
+	// top n entries sorted by count
+	private Snapshot snapshot(int n) {
+		int[] slots = new int[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = i;
+		// insertion sort - small sizes
+		for (int i = 1; i < size; i++) {
+			int s = slots[i];
+			int j = i - 1;
+			while (j >= 0 && counts[slots[j]] < counts[s]) {
+				slots[j + 1] = slots[j];
+				j--;
+			}
+			slots[j + 1] = s;
+		}
+		n = Math.min(n, size);
+		long[] k = new long[n];
+		long[] c = new long[n];
+		long[] e = new long[n];
+		String[] nm = new String[n];
+		for (int i = 0; i < n; i++) {
+			k[i] = keys[slots[i]];
+			c[i] = counts[slots[i]];
+			e[i] = errors[slots[i]];
+			nm[i] = names[slots[i]];
+		}
+		long min = size == capacity ? counts[heap[0]] : 0;
+		return new Snapshot(k, c, e, nm, total, min);
+	}
+
+	private void add(long key, String name, long count, long error) {
+		int slot = size++;
+		keys[slot] = key;
+		counts[slot] = count;
+		errors[slot] = error;
+		names[slot] = name;
+		insert(key, slot);
+		heap[slot] = slot;
+		heapPos[slot] = slot;
+		siftUp(slot);
+	}
+
+	/* open addressing table */
+
+	private int index(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	private int find(long key) {
+		int i = index(key);
+		while (table[i] != 0) {
+			if (keys[table[i] - 1] == key)
+				return table[i] - 1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void insert(long key, int slot) {
+		int i = index(key);
+		while (table[i] != 0)
+			i = (i + 1) & mask;
+		table[i] = slot + 1;
+	}
+
+	// backward shift deletion - keeps probe sequences intact without tombstones
+	private void remove(long key) {
+		int i = index(key);
+		while (keys[table[i] - 1] != key)
+			i = (i + 1) & mask;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (table[j] == 0)
+				break;
+			int home = index(keys[table[j] - 1]);
+			// move entry j to the gap i if its home is not within (i, j]
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = 0;
+	}
+
+	/* min heap by count */
+
+	private void siftUp(int pos) {
+		int slot = heap[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) >> 1;
+			if (counts[heap[parent]] <= counts[slot])
+				break;
+			heap[pos] = heap[parent];
+			heapPos[heap[pos]] = pos;
+			pos = parent;
+		}
+		heap[pos] = slot;
+		heapPos[slot] = pos;
+	}
+
+	private void siftDown(int pos) {
+		int slot = heap[pos];
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]])
+				child++;
+			if (counts[heap[child]] >= counts[slot])
+				break;
+			heap[pos] = heap[child];
+			heapPos[heap[pos]] = pos;
+			pos = child;
+		}
+		heap[pos] = slot;
+		heapPos[slot] = pos;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for frequent concurrent updates and rare reads.
+ * Updates are spread over padded cells selected by the thread id, so threads on different cores do not
+ * contend on one memory location. Replacement for java.util.concurrent.atomic.LongAdder which is not available on older Android versions.
+ */
+public class StripedCounter {
+
+	private static final int PAD = 8; // longs per cell - one cache line, avoids false sharing
+
+	private static final int CELLS = cellCount();
+
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * PAD);
+
+	private static int cellCount() {
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors() * 2 && n < 64)
+			n = n * 2;
+		return n;
+	}
+
+	public void add(long x) {
+		cells.getAndAdd(((int) Thread.currentThread().getId() & (CELLS - 1)) * PAD, x);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	// not an atomic snapshot in case of concurrent updates
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++)
+			sum += cells.get(i * PAD);
+		return sum;
+	}
+
+	public long sumThenReset() {
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++)
+			sum += cells.getAndSet(i * PAD, 0);
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
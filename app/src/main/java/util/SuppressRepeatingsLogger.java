@@ -2,21 +2,35 @@ package util;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
+/**
+ * Suppresses lines which were already logged within the suppress time.
+ * Lines are tracked by a 64 bit hash in a fixed size table of 4-way buckets. Expired entries are not removed
+ * but simply treated as the oldest ones and overwritten, so there is no cleanup scan. In case a bucket is full
+ * of recent lines the least recently logged one is dropped - the line is then logged again once, but never wrongly suppressed.
+ * Buckets are guarded by striped locks, so concurrent loggers rarely contend.
+ */
 public class SuppressRepeatingsLogger implements LoggerInterface {
+
+	private static final int BUCKETS = 1024; // power of 2
+	private static final int WAYS = 4;
+	private static final int STRIPES = 64; // power of 2
+
 	LoggerInterface nestedLogger;
-	private HashMap<String, Long> lastLogs = new HashMap<String, Long>();
-	private long timeRepeat = 0;
-	private long lastCleanup = 0;
+	private final long[] hashes = new long[BUCKETS * WAYS];
+	private final long[] lastLogged = new long[BUCKETS * WAYS]; // 0 = empty
+	private final Object[] locks = new Object[STRIPES];
+	private volatile long timeRepeat = 0;
 	DateFormat dateFormatter = null; //new SimpleDateFormat("H:mm:ss");
 	String lastTS="";
 
 
 	public SuppressRepeatingsLogger(LoggerInterface nestedLogger) {
 		this.nestedLogger = nestedLogger;
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
 	}
 
 	private void addTimeStamp() {
@@ -51,30 +65,27 @@ public class SuppressRepeatingsLogger implements LoggerInterface {
 
 	private boolean repeatingLog(String logStr){
 
-		long lastLogged = 0;
+		long hash = Utils.getLongStringHash(logStr);
+		int bucket = (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & (BUCKETS - 1); // spread the string hash over the buckets
+		int first = bucket * WAYS;
 
-		synchronized (lastLogs) {
+		synchronized (locks[bucket & (STRIPES - 1)]) {
 			long current = System.currentTimeMillis();
 
-			//check when last Logged
-			Long entry = lastLogs.get(logStr);
-			if (entry != null)
-				lastLogged = entry.longValue();
-
-			//update lastLogged
-			lastLogs.put(logStr, current);
-
-			//trigger cleanup of old logs in case not done in last time frame
-			if (current - lastCleanup > timeRepeat) {
-				Map.Entry<String, Long>[] entries = lastLogs.entrySet().toArray(new Map.Entry[lastLogs.size()]);
-				for (int i = 0; i < entries.length; i++){
-					if (current - entries[i].getValue().longValue() > timeRepeat)
-						lastLogs.remove(entries[i].getKey());
+			//check when last logged and update it, otherwise replace the least recently logged entry
+			int victim = first;
+			for (int i = first; i < first + WAYS; i++) {
+				if (hashes[i] == hash && lastLogged[i] != 0) {
+					long last = lastLogged[i];
+					lastLogged[i] = current;
+					return (current - last <= timeRepeat);
 				}
-				lastCleanup = current;
+				if (lastLogged[i] < lastLogged[victim])
+					victim = i;
 			}
-
-			return (current-lastLogged <= timeRepeat);
+			hashes[victim] = hash;
+			lastLogged[victim] = current;
+			return false;
 		}
 	}
 
@@ -105,7 +116,12 @@ public class SuppressRepeatingsLogger implements LoggerInterface {
 
 	@Override
 	public void closeLogger() {
-		lastLogs.clear();
+		for (int i = 0; i < STRIPES; i++) {
+			synchronized (locks[i]) {
+				for (int bucket = i; bucket < BUCKETS; bucket += STRIPES)
+					Arrays.fill(lastLogged, bucket * WAYS, (bucket + 1) * WAYS, 0);
+			}
+		}
 		nestedLogger.closeLogger();
 	}
 
@@ -22,21 +22,60 @@
 
 package util;
 
-import java.util.HashSet;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Calls TimeoutListener.timeoutNotification() after the time returned by getTimoutTime() is reached.
+ * Timeouts are kept in a hashed hierarchical timing wheel, so register and unregister are O(1)
+ * independent of the number of registered listeners. Registrations are handed over lock free to
+ * the wheel thread, which is only running while listeners are registered.
+ * The listener's timeout is checked again on expiry - a timeout extended after registration is rescheduled.
+ */
 public class TimoutNotificator implements Runnable {
 	
+	private static final int WHEEL_BITS = 6;
+	private static final int SLOTS = 1 << WHEEL_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4; // 2^24 ticks - longer timeouts are rescheduled when reached
+	private static final long MAX_SPAN = 1L << (WHEEL_BITS * LEVELS);
+
+	private static class Entry {
+		TimeoutListener listener;
+		long tick;
+		volatile boolean cancelled = false;
+		Entry next;
+
+		Entry(TimeoutListener listener) {
+			this.listener = listener;
+		}
+	}
 	
 	public static TimoutNotificator instance = new TimoutNotificator();
 	
-	public HashSet listeners = new HashSet(); 
-	public boolean threadAvailable = false; 
-	private boolean stopped = false;
+	private ConcurrentHashMap<TimeoutListener, Entry> listeners = new ConcurrentHashMap<TimeoutListener, Entry>();
+	private ConcurrentLinkedQueue<Entry> inbox = new ConcurrentLinkedQueue<Entry>();
+	private AtomicBoolean threadAvailable = new AtomicBoolean(false);
+	private volatile boolean stopped = false;
 	private volatile long  curTime = 0;
+	private long tickMillis;
+
+	// wheel state - only accessed by the wheel thread
+	private Entry[][] wheel = new Entry[LEVELS][SLOTS];
+	private long startTime;
+	private long currentTick;
 	
 	
-	
+	public TimoutNotificator() {
+		this(1000);
+	}
+
+	public TimoutNotificator(long tickMillis) {
+		this.tickMillis = Math.max(tickMillis, 1);
+	}
+
 	public static TimoutNotificator getInstance() {
 		return instance;
 	}
@@ -44,57 +83,148 @@ public class TimoutNotificator implements Runnable {
 	public static TimoutNotificator getNewInstance() {
 		return new TimoutNotificator();
 	}
+
+	public static TimoutNotificator getNewInstance(long tickMillis) {
+		return new TimoutNotificator(tickMillis);
+	}
 	
-    public synchronized void register(TimeoutListener listener) {
-        
-        listeners.add(listener);
-         
-        if (!threadAvailable) {
-        	curTime = System.currentTimeMillis();
-            threadAvailable = true;
-            Thread t = new Thread(this);
-            t.setDaemon(true);
-            t.start();
-        }
-    }
+	// (re)schedules the listener for its current getTimoutTime()
+	public void register(TimeoutListener listener) {
+		Entry entry = new Entry(listener);
+		Entry old = listeners.put(listener, entry);
+		if (old != null)
+			old.cancelled = true;
+		inbox.add(entry);
+
+		if (!threadAvailable.get() && threadAvailable.compareAndSet(false, true)) {
+			curTime = System.currentTimeMillis();
+			Thread t = new Thread(this);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public void unregister(TimeoutListener l)  {
+		Entry entry = listeners.remove(l);
+		if (entry != null)
+			entry.cancelled = true;
+	}
 	
 	
 	@Override
 	public void run() {		
-		Vector toListeners = new Vector();
-		boolean exitThread = false;
-		while (!exitThread) {			
-			synchronized (this) {				
-				toListeners.removeAllElements();
-				curTime = System.currentTimeMillis();
-				try {
-					wait(1000);			
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				curTime = curTime+1000;
-				if (!stopped) { 
-					
-					TimeoutListener[] allListeners = (TimeoutListener[]) listeners.toArray(new TimeoutListener[0]);
-					for (int i = 0; i < allListeners.length; i++) {
-						long tOut = allListeners[i].getTimoutTime();
-						if (curTime > tOut) {
-							listeners.remove(allListeners[i]);
-							toListeners.add(allListeners[i]);
-						}
+		ArrayList<TimeoutListener> toListeners = new ArrayList<TimeoutListener>();
+		startTime = System.currentTimeMillis();
+		currentTick = 0;
+
+		while (true) {
+			synchronized (this) {
+				if (!stopped) {
+					try {
+						wait(tickMillis);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
 					}
 				}
-				exitThread = listeners.isEmpty() || stopped;
-				if (exitThread)
-					threadAvailable = false;
 			}
-			TimeoutListener[] allToListeners = (TimeoutListener[]) toListeners.toArray(new TimeoutListener[0]);
-			for (int i = 0; i < allToListeners.length; i++) {
-				allToListeners[i].timeoutNotification();
+			curTime = System.currentTimeMillis();
+			if (!stopped) {
+				drainInbox();
+				long targetTick = (curTime - startTime) / tickMillis;
+				while (currentTick < targetTick) {
+					currentTick++;
+					cascade();
+					expire(toListeners);
+				}
+			}
+			for (int i = 0; i < toListeners.size(); i++) {
+				toListeners.get(i).timeoutNotification();
+			}
+			toListeners.clear();
+
+			if (listeners.isEmpty() || stopped) {
+				// all remaining wheel entries are cancelled
+				clearWheel();
+				threadAvailable.set(false);
+				if (stopped || listeners.isEmpty() || !threadAvailable.compareAndSet(false, true))
+					return;
+				// registered in between - continue with a fresh wheel
+				startTime = System.currentTimeMillis();
+				currentTick = 0;
 			}
 		}		
-		
+	}
+
+	private void drainInbox() {
+		Entry entry;
+		while ((entry = inbox.poll()) != null) {
+			if (!entry.cancelled)
+				schedule(entry, entry.listener.getTimoutTime());
+		}
+	}
+
+	private void schedule(Entry entry, long timeout) {
+		long tick;
+		if (timeout >= startTime + (currentTick + MAX_SPAN) * tickMillis)
+			tick = currentTick + MAX_SPAN - 1; // checked again when reached
+		else
+			tick = Math.max((timeout - startTime + tickMillis - 1) / tickMillis, currentTick + 1);
+		entry.tick = tick;
+		place(entry);
+	}
+
+	private void place(Entry entry) {
+		long delta = entry.tick - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1)))
+			level++;
+		int slot = (int) (entry.tick >>> (WHEEL_BITS * level)) & SLOT_MASK;
+		entry.next = wheel[level][slot];
+		wheel[level][slot] = entry;
+	}
+
+	// moves the entries of the higher level slots reached by the current tick down
+	private void cascade() {
+		for (int level = 1; level < LEVELS; level++) {
+			if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0)
+				return;
+			int slot = (int) (currentTick >>> (WHEEL_BITS * level)) & SLOT_MASK;
+			Entry entry = wheel[level][slot];
+			wheel[level][slot] = null;
+			while (entry != null) {
+				Entry next = entry.next;
+				if (!entry.cancelled) {
+					if (entry.tick < currentTick)
+						entry.tick = currentTick;
+					place(entry);
+				}
+				entry = next;
+			}
+		}
+	}
+
+	private void expire(ArrayList<TimeoutListener> toListeners) {
+		int slot = (int) currentTick & SLOT_MASK;
+		Entry entry = wheel[0][slot];
+		wheel[0][slot] = null;
+		while (entry != null) {
+			Entry next = entry.next;
+			if (!entry.cancelled) {
+				long tOut = entry.listener.getTimoutTime();
+				if (curTime > tOut) {
+					if (listeners.remove(entry.listener, entry))
+						toListeners.add(entry.listener);
+				} else
+					schedule(entry, tOut);
+			}
+			entry = next;
+		}
+	}
+
+	private void clearWheel() {
+		for (int level = 0; level < LEVELS; level++)
+			for (int slot = 0; slot < SLOTS; slot++)
+				wheel[level][slot] = null;
 	}
 	
 	public synchronized void shutdown() {
@@ -103,19 +233,14 @@ public class TimoutNotificator implements Runnable {
 	}
 	
 	public long getCurrentTime() {
-		if (threadAvailable)
+		if (threadAvailable.get())
 			return curTime;
 		else
 			return System.currentTimeMillis();		
 	}
 
-	public synchronized void unregister(TimeoutListener l)  {
-		listeners.remove(l);	
-		
+	public int getRegisteredCount() {
+		return listeners.size();
 	}
 
-
-
 }
-
-
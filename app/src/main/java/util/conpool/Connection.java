@@ -36,16 +36,22 @@ import java.net.Proxy;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.SSLSocketFactory;
 
 import util.ExecutionEnvironment;
+import util.FlightRecorderEvents;
+import util.StripedCounter;
 import util.TimeoutListener;
 import util.TimeoutTime;
 import util.TimoutNotificator;
@@ -53,15 +59,38 @@ import util.TimoutNotificator;
 
 public class Connection implements TimeoutListener {
 
+	// connection states - transitions are done via CAS, so a pooled connection is taken or expired by exactly one thread
+	private static final int ACQUIRED = 0;
+	private static final int POOLED = 1;
+	private static final int CLOSED = 2;
+
+	// idle connections per destination - lock free LIFO stack, so the most recently used (warm) socket is taken first
+	private static class Destination {
+		AtomicReference<Node> head = new AtomicReference<Node>();
+		AtomicInteger idle = new AtomicInteger();
+		AtomicInteger total = new AtomicInteger();
+	}
+
+	private static class Node {
+		Connection con;
+		Node next;
+
+		Node(Connection con) {
+			this.con = con;
+		}
+	}
+
 	private Socket socket = null;
+	private SocketChannel channel = null; // plain channel below a possible SSL layer - used for the liveness check
 	private InputStream socketIn;
 	private OutputStream socketOut;
 	private PooledConnectionInputStream in;
 	private PooledConnectionOutputStream out;
 	String poolKey;
 	TimeoutTime timeout;
-	boolean acquired = true;
-	boolean valid = true;
+	private AtomicInteger state = new AtomicInteger(ACQUIRED);
+	private int generation;
+	private Destination destination;
 	boolean ssl = false;
 	private InetSocketAddress sadr;
 	private int conTimeout;
@@ -69,8 +98,17 @@ public class Connection implements TimeoutListener {
 	private Proxy proxy;
 
 	private static byte[] NO_IP = new byte[]{0,0,0,0};
-	private static HashMap connPooled = new HashMap();
-	private static HashSet connAcquired = new HashSet();
+	private static ConcurrentHashMap<String, Destination> connPooled = new ConcurrentHashMap<String, Destination>();
+	private static Set<Connection> connAcquired = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+	private static AtomicInteger curGeneration = new AtomicInteger(); // incremented by invalidate()
+	private static int MAX_IDLE_PER_DESTINATION = 8;
+	private static int MAX_TOTAL_PER_DESTINATION = 0; // 0 = unlimited
+
+	private static StripedCounter createdCnt = new StripedCounter();
+	private static StripedCounter reusedCnt = new StripedCounter();
+	private static StripedCounter expiredCnt = new StripedCounter();
+	private static StripedCounter rejectedCnt = new StripedCounter();
+	private static StripedCounter invalidatedCnt = new StripedCounter();
 	private static Hashtable CUSTOM_HOSTS = getCustomHosts();
 	private static String CUSTOM_HOSTS_FILE_NAME = null;
 	private static int  POOLTIMEOUT_SECONDS = 300;	
@@ -101,14 +139,30 @@ public class Connection implements TimeoutListener {
 	
 	public static Connection connect(InetSocketAddress sadr, int conTimeout, boolean ssl, SSLSocketFactory sslSocketFactory, Proxy proxy) throws IOException {
 
-		Connection con = poolRemove(poolKey(sadr.getAddress().getHostAddress(), sadr.getPort(), ssl, proxy));
-		if (con == null) {	
-			con = new Connection(sadr,conTimeout, ssl, sslSocketFactory, proxy);
+		String key = poolKey(sadr.getAddress().getHostAddress(), sadr.getPort(), ssl, proxy);
+		FlightRecorderEvents.Event jfrEvent = FlightRecorderEvents.CONNECTION_ACQUIRE.begin();
+		Connection con = poolRemove(key);
+		boolean pooled = con != null;
+		if (con == null) {
+			int generation = curGeneration.get();
+			Destination dest;
+			try {
+				dest = reserve(key);
+				try {
+					con = new Connection(sadr,conTimeout, ssl, sslSocketFactory, proxy);
+				} catch (IOException eio) {
+					dest.total.decrementAndGet();
+					throw eio;
+				}
+			} catch (IOException eio) {
+				acquireEvent(jfrEvent, key, pooled, eio.toString());
+				throw eio;
+			}
+			con.created(dest, generation);
 		}		
 		con.initStreams();
-		synchronized(connAcquired) {
-			connAcquired.add(con);
-		}
+		connAcquired.add(con);
+		acquireEvent(jfrEvent, key, pooled, "ok");
 		return con;
 	}
 	
@@ -122,14 +176,30 @@ public class Connection implements TimeoutListener {
 	
 	public static Connection connect(String host, int port, int conTimeout, boolean ssl, SSLSocketFactory sslSocketFactory, Proxy proxy) throws IOException {
 
-		Connection con = poolRemove(poolKey(host, port, ssl, proxy));
-		if (con == null) {			
-			con = new Connection(host, port, conTimeout, ssl, sslSocketFactory, proxy);		
+		String key = poolKey(host, port, ssl, proxy);
+		FlightRecorderEvents.Event jfrEvent = FlightRecorderEvents.CONNECTION_ACQUIRE.begin();
+		Connection con = poolRemove(key);
+		boolean pooled = con != null;
+		if (con == null) {
+			int generation = curGeneration.get();
+			Destination dest;
+			try {
+				dest = reserve(key);
+				try {
+					con = new Connection(host, port, conTimeout, ssl, sslSocketFactory, proxy);
+				} catch (IOException eio) {
+					dest.total.decrementAndGet();
+					throw eio;
+				}
+			} catch (IOException eio) {
+				acquireEvent(jfrEvent, key, pooled, eio.toString());
+				throw eio;
+			}
+			con.created(dest, generation);
 		}		
 		con.initStreams();
-		synchronized(connAcquired) {
-			connAcquired.add(con);
-		};
+		connAcquired.add(con);
+		acquireEvent(jfrEvent, key, pooled, "ok");
 		return con;
 	}
 	
@@ -142,6 +212,40 @@ public class Connection implements TimeoutListener {
 	}
 	
 	
+	private static void acquireEvent(FlightRecorderEvents.Event jfrEvent, String key, boolean pooled, String outcome) {
+		if (jfrEvent != null)
+			jfrEvent.set(0, key).set(1, pooled).set(2, outcome).commit();
+	}
+
+	private static Destination getDestination(String key) {
+		Destination dest = connPooled.get(key);
+		if (dest == null) {
+			dest = new Destination();
+			Destination existing = connPooled.putIfAbsent(key, dest);
+			if (existing != null)
+				dest = existing;
+		}
+		return dest;
+	}
+
+	// reserves a slot for a new connection to the destination
+	private static Destination reserve(String key) throws IOException {
+		Destination dest = getDestination(key);
+		int total = dest.total.incrementAndGet();
+		if (MAX_TOTAL_PER_DESTINATION > 0 && total > MAX_TOTAL_PER_DESTINATION) {
+			dest.total.decrementAndGet();
+			rejectedCnt.increment();
+			throw new IOException("Max connection count reached for " + key + ": " + MAX_TOTAL_PER_DESTINATION);
+		}
+		return dest;
+	}
+
+	private void created(Destination dest, int generation) {
+		this.destination = dest;
+		this.generation = generation;
+		createdCnt.increment();
+	}
+
 	private static String poolKey (String host, int port, boolean ssl, Proxy proxy) {
 		if (ssl)
 			return host+":"+port+":"+"ssl:"+proxy.hashCode();
@@ -245,6 +349,7 @@ public class Connection implements TimeoutListener {
 				throw new IOException ("Only "+HttpProxy.class.getName() +" supported for creating connection over tunnel!");
 			socket = ((HttpProxy) proxy).openTunnel(sadr, conTimeout, true);
 		}
+		channel = socket.getChannel();
 		//Logger.getLogger().logLine("NEW CONNECTION TO:"+socket);
 		if (ssl) {
 			socket.setSoTimeout(conTimeout); // avoid endless hang in SSL Handshake
@@ -289,94 +394,135 @@ public class Connection implements TimeoutListener {
 		POOLTIMEOUT_SECONDS=secs;
 	}
 
+	// maxIdle: max pooled connections per destination, maxTotal: max pooled and acquired connections per destination (0 = unlimited)
+	public static void setPoolLimits(int maxIdle, int maxTotal) {
+		MAX_IDLE_PER_DESTINATION = maxIdle;
+		MAX_TOTAL_PER_DESTINATION = maxTotal;
+	}
+
+	public static String getPoolStats() {
+		int idle = 0;
+		int total = 0;
+		Iterator<Destination> it = connPooled.values().iterator();
+		while (it.hasNext()) {
+			Destination dest = it.next();
+			idle += dest.idle.get();
+			total += dest.total.get();
+		}
+		return "open=" + total + ", idle=" + idle + ", created=" + createdCnt.sum() + ", reused=" + reusedCnt.sum()
+				+ ", expired=" + expiredCnt.sum() + ", rejected=" + rejectedCnt.sum() + ", invalidated=" + invalidatedCnt.sum();
+	}
+
 	private void initStreams() {
 		in = new PooledConnectionInputStream(socketIn);
 		out = new PooledConnectionOutputStream(socketOut);
 	}
 
 	public static void invalidate() {
-		Vector toBeReleased = new Vector();
-
-		synchronized (connPooled) {
-			synchronized (connAcquired) {
-
-				Vector[] destinations = (Vector[]) connPooled.values().toArray(new Vector[0]);
-				for (int i = 0; i < destinations.length; i++) {
-					Connection[] cons = (Connection[]) destinations[i].toArray(new Connection[destinations[i].size()]);
-					for (int ii = 0; ii < cons.length; ii++) {
-						toBeReleased.add(cons[ii]);
-						cons[ii].valid = false;
-						destinations[i].remove(cons[ii]);
-					}
-					connPooled.remove(destinations[i]);
-				}
-				Connection[] cons = (Connection[]) connAcquired.toArray(new Connection[connAcquired.size()]);
-				for (int i = 0; i < cons.length; i++) {
-					toBeReleased.add(cons[i]);
-					cons[i].valid = false;
-					connAcquired.remove(cons[i]);
+
+		// connections of older generations are never handed out or pooled again - pool operations are not blocked
+		curGeneration.incrementAndGet();
+
+		Iterator<String> keys = connPooled.keySet().iterator();
+		while (keys.hasNext()) {
+			Destination dest = connPooled.remove(keys.next());
+			if (dest == null)
+				continue;
+			Node node = dest.head.getAndSet(null);
+			while (node != null) {
+				Connection con = node.con;
+				if (con.state.compareAndSet(POOLED, ACQUIRED)) {
+					dest.idle.decrementAndGet();
+					toNotify.unregister(con);
+					con.closeConnection();
+					invalidatedCnt.increment();
 				}
+				node = node.next;
 			}
 		}
-		Connection[] cons = (Connection[]) toBeReleased.toArray(new Connection[toBeReleased.size()]);
-		for (int i = 0; i < cons.length; i++)
-			cons[i].closeConnection();
+
+		Iterator<Connection> acquired = connAcquired.iterator();
+		while (acquired.hasNext()) {
+			Connection con = acquired.next();
+			acquired.remove();
+			con.closeConnection();
+			invalidatedCnt.increment();
+		}
 	}
 
 	
 	public static void poolReuse(Connection con) {
-		synchronized (connPooled) {
-			if (!con.valid)
-				return;
-			if (!con.acquired)
+		if (con.generation != curGeneration.get()) {
+			con.closeConnection();
+			return;
+		}
+		Destination dest = con.destination;
+		if (dest.idle.incrementAndGet() > MAX_IDLE_PER_DESTINATION) {
+			dest.idle.decrementAndGet();
+			con.closeConnection();
+			return;
+		}
+		if (!con.state.compareAndSet(ACQUIRED, POOLED)) {
+			dest.idle.decrementAndGet();
+			if (con.state.get() == POOLED)
 				throw new IllegalStateException("Inconsistent connection state - Cannot release non acquired connection");
-			con.acquired=false;
-			Vector hostCons = (Vector) connPooled.get(con.poolKey);
-			if (hostCons == null) {
-				hostCons = new Vector();
-				connPooled.put(con.poolKey, hostCons);
-			}
-			toNotify.register(con);
-			con.timeout.setTimeout(POOLTIMEOUT_SECONDS*1000);
-			
-			hostCons.add(con);
+			return; // closed in between
+		}
+		// timeout must be set before registering - it determines the wheel slot
+		con.timeout.setTimeout(POOLTIMEOUT_SECONDS*1000);
+		toNotify.register(con);
+
+		Node node = new Node(con);
+		do {
+			node.next = dest.head.get();
+		} while (!dest.head.compareAndSet(node.next, node));
+
+		// invalidate() might have drained and dropped the destination before the push - the connection
+		// would be orphaned on a stack nobody looks at anymore, so take it back unless someone else did
+		if ((con.generation != curGeneration.get() || connPooled.get(con.poolKey) != dest)
+				&& con.state.compareAndSet(POOLED, ACQUIRED)) {
+			dest.idle.decrementAndGet();
+			toNotify.unregister(con);
+			con.closeConnection();
+			invalidatedCnt.increment();
 		}
-
 	}
 
 	public static Connection poolRemove(String key) {
 		
-		synchronized (connPooled) {
-			Vector hostCons = (Vector) connPooled.get(key);
-			if (hostCons == null) {
+		Destination dest = connPooled.get(key);
+		if (dest == null)
+			return null;
+
+		int generation = curGeneration.get();
+		while (true) {
+			Node node = dest.head.get();
+			if (node == null)
 				return null;
+			if (!dest.head.compareAndSet(node, node.next))
+				continue;
+
+			Connection con = node.con;
+			if (!con.state.compareAndSet(POOLED, ACQUIRED))
+				continue; // expired - already closed by timeout
+
+			dest.idle.decrementAndGet();
+			toNotify.unregister(con);
+			if (con.generation == generation && con.isAlive()) {
+				reusedCnt.increment();
+				return con;
 			}
-			boolean found = false;
-			Connection con = null;
-			while (!found && !hostCons.isEmpty()) {
-				con = (Connection) hostCons.remove(hostCons.size() - 1);
-				if (con.acquired)
-					throw new IllegalStateException("Inconsistent connection state - Cannot take already acquired connection from pool!");
-				con.acquired=true;
-				toNotify.unregister(con);
-				found = con.valid && con.isAlive();
-				if (!found) {
-					con.closeConnection();
-					con = null;
-				}
-			}
-			if (hostCons.isEmpty())
-				connPooled.remove(key);
-			
-			return con;
-
+			con.closeConnection();
 		}
 	}
 	
 	
 	private boolean isAlive() {
 		// Must only be called when sure that there is no data to read - otherwise Illegal State!
-		
+
+		if (channel != null)
+			return isChannelAlive();
+
 		try {
 			socket.setSoTimeout(1);
 			int r = socketIn.read();
@@ -399,6 +545,30 @@ public class Connection implements TimeoutListener {
 		}	
 	}
 
+	private static ByteBuffer PROBE_BUF = ByteBuffer.allocate(1); // content is never used
+
+	// non blocking peek on the plain channel - no timeout needs to elapse
+	private boolean isChannelAlive() {
+		try {
+			synchronized (channel.blockingLock()) {
+				channel.configureBlocking(false);
+				try {
+					int r;
+					synchronized (PROBE_BUF) {
+						PROBE_BUF.clear();
+						r = channel.read(PROBE_BUF);
+					}
+					// -1: closed by peer, >0: unexpected data (e.g. TLS close_notify) which is now consumed - connection not usable
+					return r == 0;
+				} finally {
+					channel.configureBlocking(true);
+				}
+			}
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
 
 
 	public OutputStream getOutputStream() {
@@ -411,12 +581,10 @@ public class Connection implements TimeoutListener {
 
 	public void release(boolean reuse) {
 		
-		if (!valid) //a killed connection already released
+		if (state.get() != ACQUIRED) //a killed connection already released
 			return;
 		
-		synchronized (connAcquired) {
-			connAcquired.remove(this);
-		}
+		connAcquired.remove(this);
 
 		if (reuse) {
 			in.invalidate();
@@ -434,8 +602,9 @@ public class Connection implements TimeoutListener {
 	}
 
 	private void closeConnection() {
+		if (state.getAndSet(CLOSED) != CLOSED && destination != null)
+			destination.total.decrementAndGet();
 		try {
-			valid = false;
 			if (!ssl) { //SSLSocket doesn't support this
 				socket.shutdownOutput();
 				socket.shutdownInput();
@@ -454,20 +623,13 @@ public class Connection implements TimeoutListener {
 	@Override
 	public void timeoutNotification() {
 		
-		boolean found = false;
-		
-		synchronized (connPooled) {
-			
-			Vector hostCons = (Vector) connPooled.get(poolKey);
-			if (hostCons == null) {
-				return;
-			}	
-			found = hostCons.remove(this);	
-			if (hostCons.isEmpty())
-				connPooled.remove(poolKey);
-		}
-		if (found) //if false, than connection was just taken by another thread
+		// if the CAS fails, the connection was just taken by another thread
+		// the stack node is left in place and skipped by poolRemove
+		if (state.compareAndSet(POOLED, ACQUIRED)) {
+			destination.idle.decrementAndGet();
 			closeConnection();
+			expiredCnt.increment();
+		}
 	}
 
 	@Override
@@ -480,7 +642,7 @@ public class Connection implements TimeoutListener {
 	
 	// return count of received and sent bytes
 	public long[] getTraffic() {
-		if (!acquired)
+		if (state.get() == POOLED)
 			throw new IllegalStateException("Inconsistent connection state - Connection is not acquired!");
 		return new long[] {in.getTraffic(),out.getTraffic()};
 	}
@@ -0,0 +1,217 @@
+/*
+ PersonalHttpProxy 1.5
+ Copyright (C) 2013-2019 Ingo Zenz
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+ Find the latest version at http://www.zenz-solutions.de/personalhttpproxy
+ Contact:i.z@gmx.net
+ */
+
+package util.conpool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import util.ExecutionEnvironment;
+
+/**
+ * SSLSocketFactory with an own SSLContext and client session cache per destination (host:port).
+ * Factories are kept process wide via getFactory(), so they survive the recreation of the DNSServer instances on
+ * network or DNS config changes and reconnects (e.g. after pool timeout or network change) can resume the cached
+ * session with an abbreviated handshake.
+ * The handshake is done when the socket is created, so it is covered by the connect timeout set on the underlying socket,
+ * type (full / resumed) and duration are recorded.
+ */
+public class ResumingSSLSocketFactory extends SSLSocketFactory {
+
+    private static final HashMap<String, ResumingSSLSocketFactory> FACTORIES = new HashMap<String, ResumingSSLSocketFactory>();
+
+    private SSLSocketFactory delegate;
+    private SSLSessionContext sessions;
+    private boolean enableTLS; // TLSv1.1 and 1.2 are not enabled by default on Android < 21
+
+    private long fullCnt = 0;
+    private long fullMillis = 0;
+    private long resumedCnt = 0;
+    private long resumedMillis = 0;
+    private boolean lastResumed = false;
+    private long lastMillis = -1;
+
+    /**
+     * Returns the factory for the given destination, creating it on first use.
+     * The session cache settings of an existing factory are updated to the given values.
+     */
+    public static ResumingSSLSocketFactory getFactory(String host, int port, int sessionCacheSize, int sessionTimeoutSecs) throws IOException {
+        String key = host + ":" + port;
+        synchronized (FACTORIES) {
+            ResumingSSLSocketFactory factory = FACTORIES.get(key);
+            if (factory == null) {
+                factory = new ResumingSSLSocketFactory();
+                FACTORIES.put(key, factory);
+            }
+            factory.configure(sessionCacheSize, sessionTimeoutSecs);
+            return factory;
+        }
+    }
+
+    private ResumingSSLSocketFactory() throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            sessions = context.getClientSessionContext();
+            delegate = context.getSocketFactory();
+        } catch (Exception e) {
+            throw new IOException("Cannot create SSLContext", e);
+        }
+        enableTLS = ExecutionEnvironment.getEnvironment().getEnvironmentID() == 1
+                && Integer.parseInt(ExecutionEnvironment.getEnvironment().getEnvironmentVersion()) < 21;
+    }
+
+    private void configure(int sessionCacheSize, int sessionTimeoutSecs) {
+        if (sessions != null) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeoutSecs);
+        }
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return prepare(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        // host and port are the key for the session cache
+        return handshake(prepare(delegate.createSocket(s, host, port, autoClose)));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return handshake(prepare(delegate.createSocket(host, port)));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return handshake(prepare(delegate.createSocket(host, port, localHost, localPort)));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return handshake(prepare(delegate.createSocket(host, port)));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return handshake(prepare(delegate.createSocket(address, port, localAddress, localPort)));
+    }
+
+    private Socket prepare(Socket socket) {
+        if (enableTLS && (socket instanceof SSLSocket))
+            ((SSLSocket) socket).setEnabledProtocols(new String[] { "TLSv1.1", "TLSv1.2" });
+        return socket;
+    }
+
+    private Socket handshake(Socket socket) throws IOException {
+        if (!(socket instanceof SSLSocket))
+            return socket;
+
+        SSLSocket sslSocket = (SSLSocket) socket;
+        ArrayList<byte[]> cachedIds = getCachedSessionIds();
+        long start = System.currentTimeMillis();
+        try {
+            sslSocket.startHandshake();
+        } catch (IOException eio) {
+            sslSocket.close();
+            throw eio;
+        }
+        long millis = System.currentTimeMillis() - start;
+        handshakeDone(isCached(sslSocket.getSession(), cachedIds), millis);
+        return socket;
+    }
+
+    private ArrayList<byte[]> getCachedSessionIds() {
+        ArrayList<byte[]> ids = new ArrayList<byte[]>();
+        if (sessions != null) {
+            Enumeration<byte[]> en = sessions.getIds();
+            while (en.hasMoreElements())
+                ids.add(en.nextElement());
+        }
+        return ids;
+    }
+
+    // A resumed handshake continues a session which was in the cache before the handshake.
+    // Under TLS 1.3 the resumed session is a new SSLSession object carrying the ID of the cached ticket session,
+    // while the creation time is not reliable, so the ID is compared.
+    private static boolean isCached(SSLSession session, ArrayList<byte[]> cachedIds) {
+        byte[] id = session.getId();
+        if (id == null || id.length == 0)
+            return false;
+        for (int i = 0; i < cachedIds.size(); i++)
+            if (Arrays.equals(id, cachedIds.get(i)))
+                return true;
+        return false;
+    }
+
+    private synchronized void handshakeDone(boolean resumed, long millis) {
+        if (resumed) {
+            resumedCnt++;
+            resumedMillis += millis;
+        } else {
+            fullCnt++;
+            fullMillis += millis;
+        }
+        lastResumed = resumed;
+        lastMillis = millis;
+    }
+
+    public synchronized long getFullHandshakeCount() {
+        return fullCnt;
+    }
+
+    public synchronized long getResumedHandshakeCount() {
+        return resumedCnt;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (lastMillis == -1)
+            return "no TLS handshake";
+        return "TLS handshakes full=" + fullCnt + (fullCnt > 0 ? " (avg " + fullMillis / fullCnt + "ms)" : "")
+                + ", resumed=" + resumedCnt + (resumedCnt > 0 ? " (avg " + resumedMillis / resumedCnt + "ms)" : "")
+                + ", last=" + (lastResumed ? "resumed" : "full") + " " + lastMillis + "ms";
+    }
+}
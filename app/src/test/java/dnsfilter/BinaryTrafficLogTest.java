@@ -0,0 +1,149 @@
+package dnsfilter;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import util.FileLogger;
+
+public class BinaryTrafficLogTest {
+
+    private static final String NAME = "trafficlog";
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // writes count records and returns the expected text per record
+    private static ArrayList<String> write(BinaryTrafficLog log, int count) throws IOException {
+        ArrayList<String> expected = new ArrayList<String>();
+        QueryContext ctx = QueryContext.obtain();
+        try {
+            for (int i = 0; i < count; i++) {
+                ctx.setClient(new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) (1 + i % 3)}), 1000 + i % 5));
+                String client = ctx.getClientID();
+                String host = "host" + (i % 40) + ".example.com";
+                switch (i % 4) {
+                    case 0:
+                        log.log(ctx, (short) 1, (short) 1, host, null, null, 0);
+                        expected.add(client + ", 1, Q-1, " + host + ", <empty>");
+                        break;
+                    case 1:
+                        log.log(ctx, (short) 1, (short) 1, host, new byte[]{10, 1, 2, (byte) i}, null, 60 + i % 10);
+                        expected.add(client + ", 1, A-1, " + host + ", 10.1.2." + (i & 0xFF) + ", /Length:" + (60 + i % 10));
+                        break;
+                    case 2:
+                        log.log(ctx, (short) 1, (short) 5, host, null, "cname" + (i % 7) + ".example.net", 80);
+                        expected.add(client + ", 1, A-5, " + host + ", cname" + (i % 7) + ".example.net, /Length:80");
+                        break;
+                    default:
+                        log.logLine("text line " + i + " äöü");
+                        expected.add("text line " + i + " äöü" + LINE_SEPARATOR);
+                }
+            }
+        } finally {
+            ctx.release();
+        }
+        return expected;
+    }
+
+    private static ArrayList<BinaryTrafficLog.Record> readAll(BinaryTrafficLog.Reader reader) throws IOException {
+        ArrayList<BinaryTrafficLog.Record> records = new ArrayList<BinaryTrafficLog.Record>();
+        BinaryTrafficLog.Record r;
+        while ((r = reader.next()) != null)
+            records.add(r);
+        return records;
+    }
+
+    @Test
+    public void roundTripAcrossSegments() throws IOException {
+        String path = folder.getRoot().getAbsolutePath();
+        BinaryTrafficLog log = new BinaryTrafficLog(path, NAME, 4096, 50, 1 << 16, FileLogger.OVERFLOW_BLOCK);
+        long start = System.currentTimeMillis();
+        ArrayList<String> expected = write(log, 2000);
+        log.closeLogger();
+        long end = System.currentTimeMillis();
+
+        File[] files = BinaryTrafficLog.getLogFiles(path, NAME);
+        Assert.assertTrue(files.length > 1);
+        Assert.assertTrue(files.length < 50); // no slot overwritten
+
+        ArrayList<String> actual = new ArrayList<String>();
+        long lastTime = start;
+        for (int i = 0; i < files.length; i++) {
+            // fresh reader per file - each segment starts with an empty dictionary
+            ArrayList<BinaryTrafficLog.Record> records = readAll(new BinaryTrafficLog.Reader(files[i]));
+            Assert.assertFalse(records.isEmpty());
+            for (BinaryTrafficLog.Record r : records) {
+                Assert.assertTrue(r.time >= lastTime && r.time <= end);
+                lastTime = r.time;
+                actual.add(r.toText());
+            }
+        }
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(0, log.getDroppedCount());
+    }
+
+    @Test
+    public void readerContinuesWithAppendedBytes() throws IOException {
+        String path = folder.getRoot().getAbsolutePath();
+        BinaryTrafficLog log = new BinaryTrafficLog(path, NAME, 1 << 20, 2, 1 << 16, FileLogger.OVERFLOW_BLOCK);
+        write(log, 300);
+        log.closeLogger();
+        File[] files = BinaryTrafficLog.getLogFiles(path, NAME);
+        Assert.assertEquals(1, files.length);
+
+        ByteBuffer all = BinaryTrafficLog.Reader.read(files[0]);
+        ArrayList<BinaryTrafficLog.Record> full = readAll(new BinaryTrafficLog.Reader(all.duplicate()));
+        Assert.assertEquals(300, full.size());
+
+        // file cut within a record - the incomplete record is read after appending the rest
+        byte[] bytes = Arrays.copyOf(all.array(), all.limit());
+        int split = bytes.length / 2 + 3;
+        BinaryTrafficLog.Reader reader = new BinaryTrafficLog.Reader(ByteBuffer.wrap(Arrays.copyOf(bytes, split)));
+        ArrayList<BinaryTrafficLog.Record> records = readAll(reader);
+        Assert.assertTrue(records.size() < full.size());
+        int pos = reader.getPosition();
+        Assert.assertTrue(pos <= split);
+        reader.append(ByteBuffer.wrap(Arrays.copyOfRange(bytes, pos, bytes.length)));
+        ArrayList<Integer> positions = new ArrayList<Integer>();
+        BinaryTrafficLog.Record r;
+        while ((r = reader.next()) != null) {
+            records.add(r);
+            positions.add(reader.getRecordPosition());
+        }
+        Assert.assertEquals(bytes.length, reader.getPosition());
+        Assert.assertEquals(full.size(), records.size());
+        for (int i = 0; i < full.size(); i++) {
+            Assert.assertEquals(full.get(i).toText(), records.get(i).toText());
+            Assert.assertEquals(full.get(i).time, records.get(i).time);
+        }
+
+        // entries can be read again at their file position with the dictionary of the reader
+        int checked = 0;
+        for (int i = 0; i < positions.size(); i++) {
+            BinaryTrafficLog.Record expected = records.get(records.size() - positions.size() + i);
+            if (!expected.isEntry())
+                continue;
+            int p = positions.get(i);
+            BinaryTrafficLog.Record again = reader.readEntryAt(ByteBuffer.wrap(bytes, p, bytes.length - p).slice(), expected.time);
+            Assert.assertEquals(expected.toText(), again.toText());
+            checked++;
+        }
+        Assert.assertTrue(checked > 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidFile() throws IOException {
+        new BinaryTrafficLog.Reader(ByteBuffer.wrap("not a traffic log".getBytes("UTF-8")));
+    }
+}
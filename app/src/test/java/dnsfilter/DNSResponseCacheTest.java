@@ -0,0 +1,222 @@
+package dnsfilter;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Properties;
+
+public class DNSResponseCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int ttl(byte[] data) {
+        return getTTL(data, 0);
+    }
+
+    private static int getTTL(byte[] data, int offs) {
+        return DNSResponseCache.getCacheTTL(data, offs, data.length - offs);
+    }
+
+    private static QueryContext request(byte[] data) {
+        QueryContext ctx = QueryContext.obtain();
+        ctx.init(data, 0, data.length);
+        return ctx;
+    }
+
+    private static DNSResponseCache createCache(int size) throws IOException {
+        Properties config = new Properties();
+        config.setProperty("dnsCacheSize", "" + size);
+        config.setProperty("dnsCachePrefetch", "false");
+        config.setProperty("dnsCacheSnapshot", "false");
+        DNSResponseCache cache = new DNSResponseCache();
+        cache.init(config);
+        return cache;
+    }
+
+    private static DatagramPacket packet(byte[] data) {
+        return new DatagramPacket(data, 0, data.length);
+    }
+
+    private static ArrayList<String> readSnapshotKeys(File file) throws IOException {
+        ArrayList<String> keys = new ArrayList<String>();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+                in.readLong();
+                in.readLong();
+                in.skipBytes(in.readShort() & 0xFFFF);
+            }
+        } finally {
+            in.close();
+        }
+        return keys;
+    }
+
+    @Test
+    public void positiveTTLIsMinOfRecords() throws IOException {
+        byte[] response = new TestMessage(1, 0x8180, 1, 2, 0, 1).question("example.com", 1).a(300, 1).a(120, 2).opt(1232, false).get();
+        Assert.assertEquals(120, ttl(response));
+
+        // same at an offset within the buffer
+        byte[] shifted = new byte[response.length + 7];
+        System.arraycopy(response, 0, shifted, 7, response.length);
+        Assert.assertEquals(120, getTTL(shifted, 7));
+    }
+
+    @Test
+    public void negativeTTLFromSOA() throws IOException {
+        // min of SOA TTL and SOA minimum field (RFC 2308)
+        byte[] nxDomain = new TestMessage(1, 0x8183, 1, 0, 1, 0).question("nx.example.com", 1).soa(3600, 60).get();
+        Assert.assertEquals(60, ttl(nxDomain));
+        byte[] noData = new TestMessage(1, 0x8180, 1, 0, 1, 0).question("example.com", 28).soa(30, 600).get();
+        Assert.assertEquals(30, ttl(noData));
+    }
+
+    @Test
+    public void notCacheable() throws IOException {
+        // negative answer without SOA
+        Assert.assertEquals(-1, ttl(new TestMessage(1, 0x8183, 1, 0, 0, 0).question("nx.example.com", 1).get()));
+        // truncated
+        Assert.assertEquals(-1, ttl(new TestMessage(1, 0x8380, 1, 1, 0, 0).question("example.com", 1).a(300, 1).get()));
+        // SERVFAIL and REFUSED
+        Assert.assertEquals(-1, ttl(new TestMessage(1, 0x8182, 1, 0, 1, 0).question("example.com", 1).soa(300, 300).get()));
+        Assert.assertEquals(-1, ttl(new TestMessage(1, 0x8185, 1, 0, 0, 0).question("example.com", 1).get()));
+        // record exceeding the message
+        byte[] response = new TestMessage(1, 0x8180, 1, 1, 0, 0).question("example.com", 1).a(300, 1).get();
+        Assert.assertEquals(-1, DNSResponseCache.getCacheTTL(response, 0, response.length - 1));
+        Assert.assertEquals(-1, DNSResponseCache.getCacheTTL(response, 0, 11));
+    }
+
+    @Test
+    public void writeResponseRewritesIdQuestionAndTTL() throws IOException {
+        byte[] answer = new TestMessage(1, 0x8180, 1, 1, 1, 1).question("example.com", 1).a(300, 1).soa(600, 600).opt(1232, false).get();
+        long now = System.currentTimeMillis();
+        DNSResponseCache.Entry entry = new DNSResponseCache.Entry(answer, now - 100000, now + 200000);
+        QueryContext ctx = request(new TestMessage(0x1234, 0x0100, 1, 0, 0, 0).question("ExAmple.COM", 1).get());
+        try {
+            DatagramPacket target = new DatagramPacket(new byte[4], 0, 4); // too small - replaced
+            DNSResponseCache.writeResponse(ctx, entry, target, now, -1);
+            byte[] data = target.getData();
+            ByteBuffer buf = ByteBuffer.wrap(data, target.getOffset(), target.getLength());
+            Assert.assertEquals(answer.length, target.getLength());
+            Assert.assertEquals(0x1234, buf.getShort(0) & 0xFFFF);
+            Assert.assertEquals('E', data[13]);
+            Assert.assertEquals('C', data[21]);
+            int answerPos = 12 + 13 + 4;
+            Assert.assertEquals(200, buf.getInt(answerPos + 6));
+            Assert.assertEquals(500, buf.getInt(answerPos + 16 + 6));
+            Assert.assertEquals(0, buf.getInt(answerPos + 16 + 34 + 5)); // OPT flags untouched
+
+            // serve stale with fixed TTL - original entry is not changed
+            DNSResponseCache.writeResponse(ctx, entry, target, now, 30);
+            Assert.assertEquals(30, ByteBuffer.wrap(target.getData()).getInt(answerPos + 6));
+            Assert.assertEquals(30, ByteBuffer.wrap(target.getData()).getInt(answerPos + 16 + 6));
+            Assert.assertEquals(300, ByteBuffer.wrap(answer).getInt(answerPos + 6));
+
+            // TTL does not get negative for expired entries
+            DNSResponseCache.writeResponse(ctx, entry, target, now + 1000000, -1);
+            Assert.assertEquals(0, ByteBuffer.wrap(target.getData()).getInt(answerPos + 6));
+        } finally {
+            ctx.release();
+        }
+    }
+
+    @Test
+    public void dnssecRequests() throws IOException {
+        QueryContext plain = request(new TestMessage(1, 0x0100, 1, 0, 0, 0).question("example.com", 1).get());
+        QueryContext edns = request(new TestMessage(1, 0x0100, 1, 0, 0, 1).question("example.com", 1).opt(1232, false).get());
+        QueryContext dnssecOK = request(new TestMessage(1, 0x0100, 1, 0, 0, 1).question("example.com", 1).opt(1232, true).get());
+        QueryContext checkingDisabled = request(new TestMessage(1, 0x0110, 1, 0, 0, 0).question("example.com", 1).get());
+        Assert.assertFalse(DNSResponseCache.isDNSSECRequest(plain));
+        Assert.assertFalse(DNSResponseCache.isDNSSECRequest(edns));
+        Assert.assertTrue(DNSResponseCache.isDNSSECRequest(dnssecOK));
+        Assert.assertTrue(DNSResponseCache.isDNSSECRequest(checkingDisabled));
+    }
+
+    @Test
+    public void maxResponseSize() throws IOException {
+        Assert.assertEquals(512, DNSResponseCache.getMaxResponseSize(request(new TestMessage(1, 0x0100, 1, 0, 0, 0).question("example.com", 1).get())));
+        Assert.assertEquals(1232, DNSResponseCache.getMaxResponseSize(request(new TestMessage(1, 0x0100, 1, 0, 0, 1).question("example.com", 1).opt(1232, false).get())));
+        // payload sizes below 512 are treated as 512 (RFC 6891)
+        Assert.assertEquals(512, DNSResponseCache.getMaxResponseSize(request(new TestMessage(1, 0x0100, 1, 0, 0, 1).question("example.com", 1).opt(100, false).get())));
+        // incomplete OPT record
+        byte[] truncated = new TestMessage(1, 0x0100, 1, 0, 0, 1).question("example.com", 1).opt(4096, false).get();
+        QueryContext ctx = QueryContext.obtain();
+        ctx.init(truncated, 0, truncated.length - 3);
+        Assert.assertEquals(512, DNSResponseCache.getMaxResponseSize(ctx));
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        DNSResponseCache cache = createCache(10);
+        long now = System.currentTimeMillis();
+        Assert.assertNotNull(cache.store("a.com/1/1", packet(new TestMessage(1, 0x8180, 1, 1, 0, 0).question("a.com", 1).a(300, 1).get()), now));
+        Assert.assertNotNull(cache.store("b.com/1/1", packet(new TestMessage(1, 0x8183, 1, 0, 1, 0).question("b.com", 1).soa(60, 60).get()), now));
+        Assert.assertNull(cache.store("c.com/1/1", packet(new TestMessage(1, 0x8182, 1, 0, 0, 0).question("c.com", 1).get()), now));
+        // expired longer than serve stale max age
+        Assert.assertNotNull(cache.store("d.com/1/1", packet(new TestMessage(1, 0x8180, 1, 1, 0, 0).question("d.com", 1).a(10, 4).get()), now - 2 * 86400000L));
+
+        File file = new File(folder.getRoot(), "snapshot");
+        cache.saveSnapshot(file);
+        Assert.assertEquals(3, readSnapshotKeys(file).size());
+
+        DNSResponseCache loaded = createCache(10);
+        loaded.loadSnapshot(file);
+        File file2 = new File(folder.getRoot(), "snapshot2");
+        loaded.saveSnapshot(file2);
+        ArrayList<String> keys = readSnapshotKeys(file2);
+        Assert.assertEquals(2, keys.size());
+        Assert.assertTrue(keys.contains("a.com/1/1"));
+        Assert.assertTrue(keys.contains("b.com/1/1"));
+
+        // unchanged when saved again
+        loaded = createCache(10);
+        loaded.loadSnapshot(file2);
+        File file3 = new File(folder.getRoot(), "snapshot3");
+        loaded.saveSnapshot(file3);
+        Assert.assertArrayEquals(Files.readAllBytes(file2.toPath()), Files.readAllBytes(file3.toPath()));
+    }
+
+    @Test
+    public void invalidSnapshotIsIgnored() throws IOException {
+        File file = folder.newFile("snapshot");
+        Files.write(file.toPath(), "garbage".getBytes("UTF-8"));
+        DNSResponseCache cache = createCache(10);
+        cache.loadSnapshot(file);
+        File file2 = new File(folder.getRoot(), "snapshot2");
+        cache.saveSnapshot(file2);
+        Assert.assertEquals(0, readSnapshotKeys(file2).size());
+    }
+
+    @Test
+    public void refreshedEntryIsNotEvicted() throws IOException {
+        DNSResponseCache cache = createCache(2);
+        long now = System.currentTimeMillis();
+        cache.store("a.com/1/1", packet(new TestMessage(1, 0x8180, 1, 1, 0, 0).question("a.com", 1).a(300, 1).get()), now);
+        cache.store("b.com/1/1", packet(new TestMessage(1, 0x8180, 1, 1, 0, 0).question("b.com", 1).a(300, 2).get()), now);
+        // refresh of a.com (prefetch) - b.com is the least recently used one now
+        cache.store("a.com/1/1", packet(new TestMessage(1, 0x8180, 1, 1, 0, 0).question("a.com", 1).a(300, 1).get()), now);
+        cache.store("c.com/1/1", packet(new TestMessage(1, 0x8180, 1, 1, 0, 0).question("c.com", 1).a(300, 3).get()), now);
+
+        File file = new File(folder.getRoot(), "snapshot");
+        cache.saveSnapshot(file);
+        ArrayList<String> keys = readSnapshotKeys(file);
+        Assert.assertEquals(2, keys.size());
+        Assert.assertTrue(keys.contains("a.com/1/1"));
+        Assert.assertTrue(keys.contains("c.com/1/1"));
+    }
+}
@@ -0,0 +1,145 @@
+package dnsfilter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class DNSServerTest {
+
+    private static DNSServer create(String spec) throws IOException {
+        return DNSServer.getInstance().createDNSServer(spec, 1000);
+    }
+
+    private static void assertAddress(DNSServer server, String host, String ip, int port) {
+        InetSocketAddress address = server.address;
+        Assert.assertEquals(host, address.getHostName());
+        Assert.assertEquals(ip, address.getAddress().getHostAddress());
+        Assert.assertEquals(port, address.getPort());
+    }
+
+    @Test
+    public void tcpServerKeepsHostName() throws IOException {
+        DNSServer server = create("[9.9.9.9]::53::TCP::dns.quad9.net");
+        Assert.assertEquals("TCP", server.getProtocolName());
+        assertAddress(server, "dns.quad9.net", "9.9.9.9", 53);
+    }
+
+    @Test
+    public void dotServerKeepsHostName() throws IOException {
+        DNSServer server = create("[2606:4700:4700::1111]::853::DOT::cloudflare-dns.com");
+        Assert.assertEquals("DOT", server.getProtocolName());
+        assertAddress(server, "cloudflare-dns.com", "2606:4700:4700:0:0:0:0:1111", 853);
+    }
+
+    @Test
+    public void tcpServerWithoutHostName() throws IOException {
+        DNSServer server = create("[1.1.1.1]::53::TCP");
+        Assert.assertEquals("1.1.1.1", server.address.getAddress().getHostAddress());
+        Assert.assertEquals(53, server.address.getPort());
+    }
+
+    @Test(expected = IOException.class)
+    public void tcpServerRejectsUrl() throws IOException {
+        create("[9.9.9.9]::53::TCP::https://dns.quad9.net");
+    }
+
+    @Test(expected = IOException.class)
+    public void dotServerRejectsUrl() throws IOException {
+        create("9.9.9.9::853::DOT::https://dns.quad9.net");
+    }
+
+    private static byte[] copy(DatagramPacket packet) {
+        return Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+    }
+
+    // packet with the message at offset 5 of a larger buffer
+    private static DatagramPacket packet(byte[] message) {
+        byte[] buf = new byte[message.length + 20];
+        System.arraycopy(message, 0, buf, 5, message.length);
+        return new DatagramPacket(buf, 5, message.length);
+    }
+
+    @Test
+    public void findOPT() throws IOException {
+        byte[] noOPT = new TestMessage(1, 0x0100, 1, 0, 0, 0).question("example.com", 1).get();
+        Assert.assertEquals(-1, UDP.findOPT(noOPT, 0, noOPT.length));
+
+        byte[] withOPT = new TestMessage(1, 0x8180, 1, 1, 0, 2).question("example.com", 1).a(300, 1).a(300, 2).opt(1232, false).get();
+        Assert.assertEquals(29 + 16 + 16, UDP.findOPT(withOPT, 0, withOPT.length));
+        DatagramPacket shifted = packet(withOPT);
+        Assert.assertEquals(5 + 29 + 16 + 16, UDP.findOPT(shifted.getData(), shifted.getOffset(), shifted.getLength()));
+
+        // type 41 outside of the additional section does not count
+        byte[] inAnswer = new TestMessage(1, 0x8180, 1, 1, 0, 0).question("example.com", 1).record(41, 0, new byte[0]).get();
+        Assert.assertEquals(-1, UDP.findOPT(inAnswer, 0, inAnswer.length));
+
+        // invalid messages
+        Assert.assertEquals(-1, UDP.findOPT(withOPT, 0, 40));
+        Assert.assertEquals(-1, UDP.findOPT(new byte[5], 0, 5));
+    }
+
+    @Test
+    public void addOPT() throws IOException {
+        byte[] message = new TestMessage(0x4711, 0x0100, 1, 0, 0, 0).question("example.com", 1).get();
+        DatagramPacket request = packet(message);
+        DatagramPacket withOPT = UDP.addOPT(request);
+        byte[] data = copy(withOPT);
+        Assert.assertEquals(message.length + 11, data.length);
+        // header except the additional count and question unchanged
+        Assert.assertArrayEquals(Arrays.copyOf(message, 10), Arrays.copyOf(data, 10));
+        Assert.assertArrayEquals(Arrays.copyOfRange(message, 12, message.length), Arrays.copyOfRange(data, 12, message.length));
+        Assert.assertEquals(1, ByteBuffer.wrap(data).getShort(10));
+        int optPos = UDP.findOPT(data, 0, data.length);
+        Assert.assertEquals(message.length, optPos);
+        Assert.assertEquals(41, ByteBuffer.wrap(data).getShort(optPos + 1));
+        Assert.assertEquals(DNSServer.ednsUDPSize, ByteBuffer.wrap(data).getShort(optPos + 3) & 0xFFFF);
+        Assert.assertEquals(0, ByteBuffer.wrap(data).getInt(optPos + 5)); // no DO bit
+        Assert.assertEquals(0, ByteBuffer.wrap(data).getShort(optPos + 9));
+        // original request unchanged
+        Assert.assertArrayEquals(message, copy(request));
+
+        DatagramPacket invalid = new DatagramPacket(new byte[8], 0, 8);
+        Assert.assertSame(invalid, UDP.addOPT(invalid));
+    }
+
+    @Test
+    public void stripOPT() throws IOException {
+        // OPT with an option in between other additional records
+        byte[] response = new TestMessage(1, 0x8180, 1, 1, 0, 3).question("example.com", 1).a(300, 1)
+                .a(300, 2).opt(1232, false, new byte[]{0, 10, 0, 2, 1, 2}).a(300, 3).get();
+        byte[] expected = new TestMessage(1, 0x8180, 1, 1, 0, 2).question("example.com", 1).a(300, 1)
+                .a(300, 2).a(300, 3).get();
+        DatagramPacket packet = packet(response);
+        UDP.stripOPT(packet);
+        Assert.assertArrayEquals(expected, copy(packet));
+
+        // no OPT - unchanged
+        UDP.stripOPT(packet);
+        Assert.assertArrayEquals(expected, copy(packet));
+    }
+
+    @Test
+    public void stripOPTTruncatesLargeResponse() throws IOException {
+        byte[] txt = new byte[200];
+        byte[] response = new TestMessage(1, 0x8180, 1, 3, 0, 1).question("example.com", 16)
+                .record(16, 300, txt).record(16, 300, txt).record(16, 300, txt).opt(1232, false).get();
+        DatagramPacket packet = packet(response);
+        UDP.stripOPT(packet);
+        byte[] expected = new TestMessage(1, 0x8380, 1, 0, 0, 0).question("example.com", 16).get();
+        Assert.assertArrayEquals(expected, copy(packet));
+
+        // fits into 512 bytes without the OPT record - not truncated
+        byte[] small = new TestMessage(1, 0x8180, 1, 2, 0, 1).question("example.com", 16)
+                .record(16, 300, new byte[229]).record(16, 300, new byte[230]).opt(1232, false).get();
+        Assert.assertEquals(523, small.length);
+        packet = packet(small);
+        UDP.stripOPT(packet);
+        Assert.assertEquals(512, packet.getLength());
+        Assert.assertEquals(0, packet.getData()[packet.getOffset() + 2] & 2);
+    }
+}
@@ -0,0 +1,69 @@
+package dnsfilter;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class QueryTraceTest {
+
+    @After
+    public void disable() {
+        QueryTrace.configure(0, 1000, 64);
+    }
+
+    private static void query(String host, long sleepMillis) throws IOException, InterruptedException {
+        byte[] request = new TestMessage(1, 0x0100, 1, 0, 0, 0).question(host, 1).get();
+        QueryContext ctx = QueryContext.obtain();
+        ctx.init(request, 0, request.length);
+        ctx.mark(QueryContext.T_UPSTREAM_START);
+        Thread.sleep(sleepMillis);
+        ctx.mark(QueryContext.T_UPSTREAM_DONE);
+        ctx.mark(QueryContext.T_PATCHED);
+        ctx.mark(QueryContext.T_RESPONDED);
+        ctx.release();
+    }
+
+    private static String dump(boolean slowOnly) {
+        StringBuilder str = new StringBuilder();
+        for (String line : QueryTrace.dump(slowOnly))
+            str.append(line).append('\n');
+        return str.toString();
+    }
+
+    @Test
+    public void unsampledSlowQueryIsRetained() throws IOException, InterruptedException {
+        QueryTrace.configure(1000000, 50, 4); // practically no query sampled
+        query("fast.example.com", 0);
+        query("slow.example.com", 80);
+
+        String slow = dump(true);
+        Assert.assertFalse(slow.contains("fast.example.com"));
+        Assert.assertTrue(slow.contains("slow.example.com, 1, "));
+        Assert.assertTrue(slow.contains("SLOW, not sampled"));
+        Assert.assertTrue(slow.contains("received"));
+        Assert.assertTrue(slow.contains("upstream done"));
+        Assert.assertTrue(slow.contains("responded"));
+        Assert.assertFalse(slow.contains("local resolved"));
+        // not in the ring of recent (sampled) traces
+        Assert.assertEquals(slow, dump(false));
+    }
+
+    @Test
+    public void sampledQueryIsRetainedOnce() throws IOException, InterruptedException {
+        QueryTrace.configure(1, 50, 4);
+        query("slow.example.com", 80);
+        String all = dump(false);
+        Assert.assertTrue(all.contains("slow.example.com"));
+        Assert.assertFalse(all.contains("not sampled"));
+        Assert.assertEquals(all.indexOf("slow.example.com"), all.lastIndexOf("slow.example.com"));
+    }
+
+    @Test
+    public void disabledTracingRetainsNothing() throws IOException, InterruptedException {
+        QueryTrace.configure(0, 10, 4);
+        query("slow.example.com", 30);
+        Assert.assertEquals(0, QueryTrace.dump(false).length);
+    }
+}
@@ -0,0 +1,82 @@
+package dnsfilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// minimal DNS message builder for tests
+class TestMessage {
+
+    private static final int PTR = 0xC00C; // compression pointer to the question name
+
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(bytes);
+
+    TestMessage(int id, int flags, int qd, int an, int ns, int ar) throws IOException {
+        out.writeShort(id);
+        out.writeShort(flags);
+        out.writeShort(qd);
+        out.writeShort(an);
+        out.writeShort(ns);
+        out.writeShort(ar);
+    }
+
+    TestMessage question(String host, int type) throws IOException {
+        for (String label : host.split("\\.")) {
+            out.writeByte(label.length());
+            out.writeBytes(label);
+        }
+        out.writeByte(0);
+        out.writeShort(type);
+        out.writeShort(1);
+        return this;
+    }
+
+    TestMessage a(int ttl, int lastByte) throws IOException {
+        return record(1, ttl, new byte[]{10, 0, 0, (byte) lastByte});
+    }
+
+    TestMessage record(int type, int ttl, byte[] rdata) throws IOException {
+        out.writeShort(PTR);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeInt(ttl);
+        out.writeShort(rdata.length);
+        out.write(rdata);
+        return this;
+    }
+
+    TestMessage soa(int ttl, int minimum) throws IOException {
+        out.writeShort(PTR);
+        out.writeShort(6);
+        out.writeShort(1);
+        out.writeInt(ttl);
+        out.writeShort(22);
+        out.writeByte(0); // mname
+        out.writeByte(0); // rname
+        out.writeInt(1); // serial
+        out.writeInt(3600); // refresh
+        out.writeInt(600); // retry
+        out.writeInt(86400); // expire
+        out.writeInt(minimum);
+        return this;
+    }
+
+    TestMessage opt(int payloadSize, boolean dnssecOK) throws IOException {
+        return opt(payloadSize, dnssecOK, new byte[0]);
+    }
+
+    TestMessage opt(int payloadSize, boolean dnssecOK, byte[] options) throws IOException {
+        out.writeByte(0);
+        out.writeShort(41);
+        out.writeShort(payloadSize);
+        out.writeInt(dnssecOK ? 0x8000 : 0);
+        out.writeShort(options.length);
+        out.write(options);
+        return this;
+    }
+
+    byte[] get() {
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,161 @@
+package util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class ByteRingBufferTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static String drainOne(ByteRingBuffer ring) {
+        ByteBuffer out = ByteBuffer.allocate(ring.capacity());
+        if (ring.drainTo(out, 1) != 1)
+            return null;
+        return new String(out.array(), 0, out.position(), UTF_8);
+    }
+
+    @Test
+    public void wrapAround() {
+        ByteRingBuffer ring = new ByteRingBuffer(64);
+        Assert.assertEquals(64, ring.capacity());
+        // record lengths not aligned to the ring size, so records start at every unit and wrap over the end
+        for (int i = 0; i < 1000; i++) {
+            String record = "record-" + i + "-" + "xyz".substring(0, i % 4);
+            byte[] b = record.getBytes(UTF_8);
+            if (i % 2 == 0)
+                Assert.assertTrue(ring.offer(b, 0, b.length));
+            else
+                Assert.assertTrue(ring.offer("record-", i + "-", "xyz".substring(0, i % 4)));
+            Assert.assertEquals(record, drainOne(ring));
+            Assert.assertEquals(0, ring.pending());
+        }
+    }
+
+    @Test
+    public void fullRingRejectsUntilDrained() {
+        ByteRingBuffer ring = new ByteRingBuffer(64);
+        int cnt = 0;
+        while (ring.offer("12345678", null, null))
+            cnt++;
+        Assert.assertEquals(8, cnt); // one 8 byte unit per record
+        Assert.assertEquals(64, ring.pending());
+
+        Assert.assertEquals("12345678", drainOne(ring));
+        Assert.assertTrue(ring.offer("abcdefgh", null, null));
+        Assert.assertFalse(ring.offer("x", null, null));
+
+        ByteBuffer out = ByteBuffer.allocate(64);
+        Assert.assertEquals(8, ring.drainTo(out));
+        Assert.assertEquals(0, ring.pending());
+        String all = new String(out.array(), 0, out.position(), UTF_8);
+        Assert.assertTrue(all.endsWith("12345678abcdefgh"));
+    }
+
+    @Test
+    public void drainStopsAtRecordNotFitting() {
+        ByteRingBuffer ring = new ByteRingBuffer(64);
+        Assert.assertTrue(ring.offer("abc", null, null));
+        Assert.assertTrue(ring.offer("defghijk", null, null));
+        ByteBuffer out = ByteBuffer.allocate(5);
+        Assert.assertEquals(1, ring.drainTo(out));
+        Assert.assertEquals(3, out.position());
+        Assert.assertEquals("defghijk", drainOne(ring));
+    }
+
+    @Test
+    public void multiByteAndTruncation() {
+        ByteRingBuffer ring = new ByteRingBuffer(64);
+        String s = "héllo € 😀";
+        Assert.assertEquals(s.getBytes(UTF_8).length, ByteRingBuffer.utf8Length(s));
+        Assert.assertTrue(ring.offer(s, null, null));
+        Assert.assertEquals(s, drainOne(ring));
+
+        // longer than maxRecordLength - truncated, a split character is padded
+        StringBuilder longStr = new StringBuilder("a");
+        while (longStr.length() < 40)
+            longStr.append('€');
+        Assert.assertTrue(ring.offer(longStr.toString(), null, null));
+        String truncated = drainOne(ring);
+        Assert.assertEquals(ring.maxRecordLength(), truncated.getBytes(UTF_8).length);
+        Assert.assertTrue(truncated.startsWith("a€€"));
+        Assert.assertTrue(truncated.endsWith(" "));
+    }
+
+    @Test
+    public void truncationKeepsSuffix() {
+        ByteRingBuffer ring = new ByteRingBuffer(64);
+        StringBuilder longStr = new StringBuilder();
+        while (longStr.length() < 100)
+            longStr.append("0123456789");
+        Assert.assertTrue(ring.offer("ts ", longStr.toString(), "\r\n"));
+        String truncated = drainOne(ring);
+        Assert.assertEquals(ring.maxRecordLength(), truncated.length());
+        Assert.assertEquals("ts " + longStr.substring(0, ring.maxRecordLength() - 5) + "\r\n", truncated);
+
+        // cut within a multi byte character - padded in front of the suffix
+        longStr = new StringBuilder("ab");
+        while (longStr.length() < 40)
+            longStr.append('€');
+        Assert.assertTrue(ring.offer(null, longStr.toString(), "\n"));
+        truncated = drainOne(ring);
+        Assert.assertEquals(ring.maxRecordLength(), truncated.getBytes(UTF_8).length);
+        Assert.assertTrue(truncated.endsWith("€  \n"));
+
+        // not truncated - unchanged
+        Assert.assertTrue(ring.offer("ts ", "line", "\n"));
+        Assert.assertEquals("ts line\n", drainOne(ring));
+    }
+
+    @Test
+    public void concurrentOfferAndDrain() throws InterruptedException {
+        final int producers = 4;
+        final int records = 50000;
+        final ByteRingBuffer ring = new ByteRingBuffer(1024);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final String prefix = p + ":";
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < records; i++) {
+                        while (!ring.offer(prefix, Integer.toString(i), "\n"))
+                            Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        int received = 0;
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        StringBuilder partial = new StringBuilder();
+        long deadline = System.currentTimeMillis() + 60000;
+        while (received < producers * records && System.currentTimeMillis() < deadline) {
+            out.clear();
+            if (ring.drainTo(out) == 0) {
+                Thread.yield();
+                continue;
+            }
+            partial.append(new String(out.array(), 0, out.position(), UTF_8));
+            int end;
+            while ((end = partial.indexOf("\n")) != -1) {
+                String line = partial.substring(0, end);
+                partial.delete(0, end + 1);
+                int sep = line.indexOf(':');
+                int p = Integer.parseInt(line.substring(0, sep));
+                // records of one producer are consumed in the order they were offered
+                Assert.assertEquals(next[p]++, Integer.parseInt(line.substring(sep + 1)));
+                received++;
+            }
+        }
+        for (int p = 0; p < producers; p++)
+            threads[p].join();
+        Assert.assertEquals(producers * records, received);
+        Assert.assertEquals(0, partial.length());
+        Assert.assertEquals(0, ring.pending());
+    }
+}
@@ -0,0 +1,146 @@
+package util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpaceSavingTest {
+
+    private static void offer(SpaceSaving sketch, String name, int times) {
+        for (int i = 0; i < times; i++)
+            sketch.offer(Utils.getLongStringHash(name), name);
+    }
+
+    private static int indexOf(SpaceSaving.Snapshot snapshot, String name) {
+        for (int i = 0; i < snapshot.size(); i++)
+            if (snapshot.names[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    @Test
+    public void offerCountsExactlyBelowCapacity() {
+        SpaceSaving sketch = new SpaceSaving(4);
+        offer(sketch, "a.com", 3);
+        offer(sketch, "b.com", 5);
+        offer(sketch, "c.com", 1);
+
+        SpaceSaving.Snapshot snapshot = sketch.snapshot();
+        Assert.assertEquals(3, snapshot.size());
+        Assert.assertEquals(9, snapshot.total);
+        Assert.assertEquals(0, snapshot.min);
+        Assert.assertArrayEquals(new String[]{"b.com", "a.com", "c.com"}, snapshot.names);
+        Assert.assertArrayEquals(new long[]{5, 3, 1}, snapshot.counts);
+        Assert.assertArrayEquals(new long[]{0, 0, 0}, snapshot.errors);
+    }
+
+    @Test
+    public void offerEvictsMinimum() {
+        SpaceSaving sketch = new SpaceSaving(2);
+        offer(sketch, "a.com", 3);
+        offer(sketch, "b.com", 1);
+        offer(sketch, "c.com", 1); // replaces b.com, takes over its count as error
+
+        SpaceSaving.Snapshot snapshot = sketch.snapshot();
+        Assert.assertEquals(2, snapshot.size());
+        Assert.assertEquals(-1, indexOf(snapshot, "b.com"));
+        int c = indexOf(snapshot, "c.com");
+        Assert.assertEquals(2, snapshot.counts[c]);
+        Assert.assertEquals(1, snapshot.errors[c]);
+        Assert.assertEquals(3, snapshot.counts[indexOf(snapshot, "a.com")]);
+        Assert.assertEquals(2, snapshot.min);
+        Assert.assertEquals(5, snapshot.total);
+    }
+
+    @Test
+    public void heavyHittersSurviveEviction() {
+        SpaceSaving sketch = new SpaceSaving(16);
+        for (int i = 0; i < 10000; i++) {
+            offer(sketch, "heavy" + (i % 4) + ".com", 1);
+            offer(sketch, "rare" + i + ".com", 1);
+        }
+        SpaceSaving.Snapshot snapshot = sketch.snapshot();
+        Assert.assertEquals(16, snapshot.size());
+        for (int i = 0; i < 4; i++) {
+            int idx = indexOf(snapshot, "heavy" + i + ".com");
+            Assert.assertTrue(idx != -1 && idx < 4);
+            // never underestimated, overestimated by at most error
+            Assert.assertTrue(snapshot.counts[idx] >= 2500);
+            Assert.assertTrue(snapshot.counts[idx] - snapshot.errors[idx] <= 2500);
+        }
+    }
+
+    @Test
+    public void snapshotAndResetClears() {
+        SpaceSaving sketch = new SpaceSaving(2);
+        offer(sketch, "a.com", 2);
+        offer(sketch, "b.com", 1);
+        offer(sketch, "c.com", 1);
+        Assert.assertEquals(2, sketch.snapshotAndReset().size());
+
+        SpaceSaving.Snapshot snapshot = sketch.snapshot();
+        Assert.assertEquals(0, snapshot.size());
+        Assert.assertEquals(0, snapshot.total);
+        offer(sketch, "c.com", 1);
+        Assert.assertEquals(1, sketch.snapshot().counts[0]);
+        Assert.assertEquals(0, sketch.snapshot().errors[0]);
+    }
+
+    @Test
+    public void mergeEmpty() {
+        SpaceSaving.Snapshot merged = SpaceSaving.Snapshot.merge(SpaceSaving.Snapshot.empty(), SpaceSaving.Snapshot.empty(), 8);
+        Assert.assertEquals(0, merged.size());
+        Assert.assertEquals(0, merged.total);
+        Assert.assertEquals(0, merged.min);
+
+        SpaceSaving sketch = new SpaceSaving(8);
+        offer(sketch, "a.com", 2);
+        merged = SpaceSaving.Snapshot.merge(SpaceSaving.Snapshot.empty(), sketch.snapshot(), 8);
+        Assert.assertEquals(1, merged.size());
+        Assert.assertEquals(2, merged.counts[0]);
+        Assert.assertEquals(2, merged.total);
+        merged = SpaceSaving.Snapshot.merge(sketch.snapshot(), new SpaceSaving(8).snapshotAndReset(), 8);
+        Assert.assertEquals(1, merged.size());
+        Assert.assertEquals(2, merged.counts[0]);
+    }
+
+    @Test
+    public void mergeSumsCommonKeys() {
+        SpaceSaving s1 = new SpaceSaving(8);
+        offer(s1, "a.com", 3);
+        offer(s1, "b.com", 1);
+        SpaceSaving s2 = new SpaceSaving(8);
+        offer(s2, "a.com", 2);
+        offer(s2, "c.com", 4);
+
+        SpaceSaving.Snapshot merged = SpaceSaving.Snapshot.merge(s1.snapshot(), s2.snapshot(), 8);
+        Assert.assertArrayEquals(new String[]{"a.com", "c.com", "b.com"}, merged.names);
+        Assert.assertArrayEquals(new long[]{5, 4, 1}, merged.counts);
+        Assert.assertArrayEquals(new long[]{0, 0, 0}, merged.errors);
+        Assert.assertEquals(10, merged.total);
+        Assert.assertEquals(0, merged.min);
+    }
+
+    @Test
+    public void mergeTruncatesToCapacity() {
+        SpaceSaving s1 = new SpaceSaving(2);
+        offer(s1, "a.com", 5);
+        offer(s1, "b.com", 2);
+        offer(s1, "x.com", 1); // evicts b.com, s1 is full with min 3
+        SpaceSaving s2 = new SpaceSaving(2);
+        offer(s2, "a.com", 1);
+        offer(s2, "c.com", 6);
+
+        SpaceSaving.Snapshot snap1 = s1.snapshot();
+        Assert.assertEquals(3, snap1.min);
+        SpaceSaving.Snapshot merged = SpaceSaving.Snapshot.merge(snap1, s2.snapshot(), 2);
+        Assert.assertEquals(2, merged.size());
+        // c.com might have been counted up to min of s1 there
+        Assert.assertEquals("c.com", merged.names[0]);
+        Assert.assertEquals(9, merged.counts[0]);
+        Assert.assertEquals(3, merged.errors[0]);
+        Assert.assertEquals("a.com", merged.names[1]);
+        Assert.assertEquals(6, merged.counts[1]);
+        Assert.assertEquals(15, merged.total);
+        Assert.assertEquals(6, merged.min);
+    }
+}
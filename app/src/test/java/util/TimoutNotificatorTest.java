@@ -0,0 +1,134 @@
+package util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimoutNotificatorTest {
+
+    private static final long SLACK = 1000;
+
+    private static class Listener implements TimeoutListener {
+        volatile long timeout;
+        volatile long notifiedAt = 0;
+        final AtomicInteger notifications = new AtomicInteger();
+        final CountDownLatch done;
+
+        Listener(long timeout, CountDownLatch done) {
+            this.timeout = timeout;
+            this.done = done;
+        }
+
+        @Override
+        public void timeoutNotification() {
+            notifiedAt = System.currentTimeMillis();
+            notifications.incrementAndGet();
+            if (done != null)
+                done.countDown();
+        }
+
+        @Override
+        public long getTimoutTime() {
+            return timeout;
+        }
+    }
+
+    private final TimoutNotificator notificator = TimoutNotificator.getNewInstance(1);
+
+    @After
+    public void shutdown() {
+        notificator.shutdown();
+    }
+
+    private static void assertExpired(Listener l) {
+        Assert.assertEquals(1, l.notifications.get());
+        Assert.assertTrue(l.notifiedAt > l.timeout);
+        Assert.assertTrue(l.notifiedAt - l.timeout < SLACK);
+    }
+
+    @Test
+    public void expiresOnLowerLevels() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long[] delays = {5, 30, 150, 700};
+        CountDownLatch done = new CountDownLatch(delays.length);
+        Listener[] listeners = new Listener[delays.length];
+        // register in reverse order - expiry order must follow the timeouts
+        for (int i = delays.length - 1; i >= 0; i--) {
+            listeners[i] = new Listener(now + delays[i], done);
+            notificator.register(listeners[i]);
+        }
+        Assert.assertEquals(delays.length, notificator.getRegisteredCount());
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < listeners.length; i++) {
+            assertExpired(listeners[i]);
+            if (i > 0)
+                Assert.assertTrue(listeners[i].notifiedAt >= listeners[i - 1].notifiedAt);
+        }
+        Assert.assertEquals(0, notificator.getRegisteredCount());
+    }
+
+    @Test
+    public void cascadesFromHigherLevel() throws InterruptedException {
+        // more than 64 * 64 ticks ahead - starts on level 2 and cascades down twice
+        CountDownLatch done = new CountDownLatch(1);
+        Listener l = new Listener(System.currentTimeMillis() + 4200, done);
+        notificator.register(l);
+
+        Thread.sleep(3000);
+        Assert.assertEquals(0, l.notifications.get());
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertExpired(l);
+    }
+
+    @Test
+    public void unregisteredIsNotNotified() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        CountDownLatch done = new CountDownLatch(1);
+        Listener removed = new Listener(now + 50, null);
+        Listener kept = new Listener(now + 100, done);
+        notificator.register(removed);
+        notificator.register(kept);
+        notificator.unregister(removed);
+        Assert.assertEquals(1, notificator.getRegisteredCount());
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(0, removed.notifications.get());
+        assertExpired(kept);
+    }
+
+    @Test
+    public void extendedTimeoutIsRescheduled() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Listener l = new Listener(System.currentTimeMillis() + 50, done);
+        notificator.register(l);
+        // extended without registering again - checked on expiry
+        l.timeout = System.currentTimeMillis() + 400;
+
+        Thread.sleep(200);
+        Assert.assertEquals(0, l.notifications.get());
+        Assert.assertEquals(1, notificator.getRegisteredCount());
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertExpired(l);
+    }
+
+    @Test
+    public void registerAgainNotifiesOnce() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Listener l = new Listener(System.currentTimeMillis() + 50, done);
+        notificator.register(l);
+        l.timeout = System.currentTimeMillis() + 150;
+        notificator.register(l);
+        Assert.assertEquals(1, notificator.getRegisteredCount());
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertExpired(l);
+        Assert.assertEquals(0, notificator.getRegisteredCount());
+    }
+}